@@ -0,0 +1,267 @@
+package com.example.exoplayer;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.StrictMode;
+import android.os.SystemClock;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 主线程开启penaltyDeath的StrictMode后绑定多个BaseVideoView并setPath，
+ * 从本地HTTP服务播放设备上现编码的MP4，一直等到全部onPrepared。
+ * 播放器创建、MediaSource、缓存初始化和prepare回调只要有一处在主线程读写磁盘或访问网络，进程就会崩溃
+ */
+@RunWith(AndroidJUnit4.class)
+public class MainThreadStrictModeTest {
+    private static final int VIEW_COUNT = 4;
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int FRAME_RATE = 30;
+    private static final int FRAME_COUNT = 60;
+    private static final long PREPARE_TIMEOUT_MS = 15_000;
+    /**
+     * 全部prepare之后继续保持StrictMode，覆盖第一帧渲染和进度回调
+     */
+    private static final long PLAY_MS = 1000;
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private MockWebServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        File file = new File(InstrumentationRegistry.getInstrumentation().getContext().getCacheDir(),
+                "strict-mode.mp4");
+        encodeClip(file);
+        byte[] content = new byte[(int) file.length()];
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            input.readFully(content);
+        }
+        file.delete();
+        server = new MockWebServer();
+        server.setDispatcher(new Mp4Dispatcher(content));
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void bindAndPrepareWithoutMainThreadIo() throws InterruptedException {
+        CountDownLatch prepared = new CountDownLatch(VIEW_COUNT);
+        AtomicReference<Exception> playError = new AtomicReference<>();
+        // 每次运行用新的路径，不命中上次留下的缓存
+        String urlFormat = server.url("/strict-mode-" + SystemClock.elapsedRealtime() + "-%d.mp4").toString();
+        try (ActivityScenario<MainActivity> scenario = ActivityScenario.launch(MainActivity.class)) {
+            ArrayList<BaseVideoView> views = new ArrayList<>();
+            StrictMode.ThreadPolicy[] oldPolicy = new StrictMode.ThreadPolicy[1];
+            scenario.onActivity(activity -> {
+                oldPolicy[0] = StrictMode.getThreadPolicy();
+                StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                        .detectDiskReads()
+                        .detectDiskWrites()
+                        .detectNetwork()
+                        .penaltyLog()
+                        .penaltyDeath()
+                        .build());
+                ViewGroup content = activity.findViewById(android.R.id.content);
+                for (int i = 0; i < VIEW_COUNT; i++) {
+                    BaseVideoView view = new BaseVideoView(activity);
+                    content.addView(view, new FrameLayout.LayoutParams(WIDTH, HEIGHT));
+                    view.setOnPlayStatusListener(new PreparedListener(prepared, playError));
+                    view.setPath(String.format(urlFormat, i), i == 0);
+                    views.add(view);
+                }
+            });
+            boolean allPrepared = prepared.await(PREPARE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            SystemClock.sleep(PLAY_MS);
+            InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+            scenario.onActivity(activity -> {
+                for (BaseVideoView view : views) {
+                    view.releasePlayer();
+                }
+                StrictMode.setThreadPolicy(oldPolicy[0]);
+            });
+            assertNull(playError.get());
+            assertTrue("prepared " + (VIEW_COUNT - prepared.getCount()) + "/" + VIEW_COUNT, allPrepared);
+        }
+    }
+
+    /**
+     * 用系统编码器生成一段H.264的MP4，不用往仓库里放二进制文件
+     */
+    private static void encodeClip(File file) throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, WIDTH, HEIGHT);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, 500_000);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        MediaCodec encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+        MediaMuxer muxer = new MediaMuxer(file.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        try {
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoder.start();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            int track = -1;
+            int queuedFrames = 0;
+            boolean inputDone = false;
+            boolean outputDone = false;
+            while (!outputDone) {
+                if (!inputDone) {
+                    int inputIndex = encoder.dequeueInputBuffer(10_000);
+                    if (inputIndex >= 0) {
+                        long timeUs = queuedFrames * 1_000_000L / FRAME_RATE;
+                        if (queuedFrames == FRAME_COUNT) {
+                            encoder.queueInputBuffer(inputIndex, 0, 0, timeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            fillFrame(encoder.getInputImage(inputIndex), queuedFrames);
+                            encoder.queueInputBuffer(inputIndex, 0, WIDTH * HEIGHT * 3 / 2, timeUs, 0);
+                            queuedFrames++;
+                        }
+                    }
+                }
+                int outputIndex = encoder.dequeueOutputBuffer(info, 10_000);
+                if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    track = muxer.addTrack(encoder.getOutputFormat());
+                    muxer.start();
+                } else if (outputIndex >= 0) {
+                    ByteBuffer data = encoder.getOutputBuffer(outputIndex);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                        muxer.writeSampleData(track, data, info);
+                    }
+                    encoder.releaseOutputBuffer(outputIndex, false);
+                    outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                }
+            }
+            encoder.stop();
+            muxer.stop();
+        } finally {
+            encoder.release();
+            muxer.release();
+        }
+    }
+
+    /**
+     * 亮度按帧移动的渐变，色度取中间值
+     */
+    private static void fillFrame(Image image, int frame) {
+        Image.Plane[] planes = image.getPlanes();
+        for (int p = 0; p < planes.length; p++) {
+            ByteBuffer buffer = planes[p].getBuffer();
+            int rowStride = planes[p].getRowStride();
+            int pixelStride = planes[p].getPixelStride();
+            int width = p == 0 ? WIDTH : WIDTH / 2;
+            int height = p == 0 ? HEIGHT : HEIGHT / 2;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    buffer.put(y * rowStride + x * pixelStride, p == 0 ? (byte) (x + y + frame * 8) : (byte) 128);
+                }
+            }
+        }
+    }
+
+    private static final class PreparedListener implements OnPlayStatusListener {
+        private final CountDownLatch prepared;
+        private final AtomicReference<Exception> playError;
+
+        PreparedListener(CountDownLatch prepared, AtomicReference<Exception> playError) {
+            this.prepared = prepared;
+            this.playError = playError;
+        }
+
+        @Override
+        public void onPrepared(IMediaPlayer mediaPlayer) {
+            prepared.countDown();
+        }
+
+        @Override
+        public void onPlayStart() {
+        }
+
+        @Override
+        public void onPlayPause() {
+        }
+
+        @Override
+        public void onProgressUpdate(int progress) {
+        }
+
+        @Override
+        public void onPlayError(Exception error) {
+            playError.compareAndSet(null, error);
+        }
+    }
+
+    /**
+     * 按Range头返回MP4的一部分，播放器会先读开头再跳到文件末尾的moov
+     */
+    private static final class Mp4Dispatcher extends Dispatcher {
+        private final byte[] content;
+
+        Mp4Dispatcher(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            int start = 0;
+            int end = content.length - 1;
+            String range = request.getHeader("Range");
+            MockResponse response = new MockResponse().setHeader("Content-Type", "video/mp4");
+            if (range != null) {
+                Matcher matcher = RANGE.matcher(range);
+                if (!matcher.matches()) {
+                    return response.setResponseCode(416);
+                }
+                start = Integer.parseInt(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) {
+                    end = Math.min(end, Integer.parseInt(matcher.group(2)));
+                }
+                if (start > end) {
+                    return response.setResponseCode(416)
+                            .setHeader("Content-Range", "bytes */" + content.length);
+                }
+                response.setResponseCode(206)
+                        .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+            }
+            return response.setHeader("Accept-Ranges", "bytes")
+                    .setBody(new Buffer().write(content, start, end - start + 1));
+        }
+    }
+}
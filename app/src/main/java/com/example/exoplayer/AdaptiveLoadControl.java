@@ -0,0 +1,344 @@
+package com.example.exoplayer;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.LoadControl;
+import com.google.android.exoplayer2.Renderer;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
+import com.google.android.exoplayer2.upstream.Allocator;
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+import com.google.android.exoplayer2.util.Clock;
+import com.google.android.exoplayer2.util.Util;
+
+/**
+ * 运行时调整缓冲阈值的LoadControl。
+ * 阈值由{@link Policy}根据带宽估计、最近的卡顿次数和设备内存等级计算，
+ * 判断逻辑与DefaultLoadControl一致。所有方法都在播放线程调用。
+ */
+final class AdaptiveLoadControl implements LoadControl {
+    /**
+     * 阈值最多每隔这么久重新计算一次
+     */
+    private static final long POLICY_UPDATE_INTERVAL_MS = 1000;
+    /**
+     * 统计卡顿次数的时间窗口
+     */
+    static final long REBUFFER_WINDOW_MS = 60 * 1000;
+    private static final int MAX_REBUFFER_HISTORY = 16;
+    private static final long MIN_BUFFER_FLOOR_US = 500_000;
+    /**
+     * 快进快退时只缓冲这么多，关键帧之间的数据在下一次seek时都会丢掉
+     */
+    private static final long TRICK_PLAY_BUFFER_US = 1_000_000;
+    /**
+     * 快速播放时目标缓冲字节数最多放大的倍数，仍然受setMaxBufferBytes()限制
+     */
+    private static final float MAX_SPEED_BYTES_SCALE = 2f;
+
+    private static final int VIDEO_BUFFER_SEGMENTS = 200;
+    private static final int AUDIO_BUFFER_SEGMENTS = 54;
+    private static final int TEXT_BUFFER_SEGMENTS = 2;
+    private static final int OTHER_BUFFER_SEGMENTS = 2;
+    private static final int MIN_BUFFER_SEGMENTS = 200;
+
+    /**
+     * 根据输入计算缓冲阈值
+     */
+    interface Policy {
+        void computeThresholds(Inputs inputs, Thresholds out);
+    }
+
+    static final class Inputs {
+        /**
+         * 带宽估计，bps
+         */
+        long bitrateEstimate;
+        /**
+         * REBUFFER_WINDOW_MS内的卡顿次数
+         */
+        int recentRebufferCount;
+        int memoryClassMb;
+    }
+
+    static final class Thresholds {
+        int minBufferMs = MediaPlayerExo.MIN_BUFFER_MS;
+        int maxBufferMs = MediaPlayerExo.MAX_BUFFER_MS;
+        int bufferForPlaybackMs = MediaPlayerExo.BUFFER_FOR_PLAYBACK_MS;
+        int bufferForPlaybackAfterRebufferMs = MediaPlayerExo.BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS;
+        /**
+         * 相对默认目标缓冲字节数的比例
+         */
+        float targetBufferScale = 1f;
+
+        void set(int minBufferMs, int maxBufferMs, int bufferForPlaybackMs, int bufferForPlaybackAfterRebufferMs) {
+            this.minBufferMs = minBufferMs;
+            this.maxBufferMs = maxBufferMs;
+            this.bufferForPlaybackMs = bufferForPlaybackMs;
+            this.bufferForPlaybackAfterRebufferMs = bufferForPlaybackAfterRebufferMs;
+        }
+
+        @Override
+        public String toString() {
+            return "min=" + minBufferMs + ", max=" + maxBufferMs + ", playback=" + bufferForPlaybackMs
+                    + ", afterRebuffer=" + bufferForPlaybackAfterRebufferMs + ", bytesScale=" + targetBufferScale;
+        }
+    }
+
+    /**
+     * 快网络起播激进，网络不稳定时缓冲更深，低内存设备限制缓冲上限
+     */
+    static final class DefaultPolicy implements Policy {
+        static final long FAST_BITRATE = 8_000_000;
+        static final long SLOW_BITRATE = 1_500_000;
+        static final int LOW_MEMORY_CLASS_MB = 128;
+
+        @Override
+        public void computeThresholds(Inputs inputs, Thresholds out) {
+            if (inputs.recentRebufferCount >= 2
+                    || (inputs.bitrateEstimate > 0 && inputs.bitrateEstimate < SLOW_BITRATE)) {
+                out.set(15000, 30000, 2500, 5000);
+            } else if (inputs.recentRebufferCount == 0 && inputs.bitrateEstimate >= FAST_BITRATE) {
+                out.set(MediaPlayerExo.MIN_BUFFER_MS, MediaPlayerExo.MAX_BUFFER_MS, 1000, 2000);
+            } else {
+                out.set(MediaPlayerExo.MIN_BUFFER_MS, MediaPlayerExo.MAX_BUFFER_MS,
+                        MediaPlayerExo.BUFFER_FOR_PLAYBACK_MS, MediaPlayerExo.BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS);
+            }
+            if (inputs.memoryClassMb > 0 && inputs.memoryClassMb < LOW_MEMORY_CLASS_MB) {
+                out.maxBufferMs = Math.min(out.maxBufferMs, 15000);
+                out.minBufferMs = Math.min(out.minBufferMs, out.maxBufferMs);
+                out.targetBufferScale = 0.5f;
+            } else {
+                out.targetBufferScale = 1f;
+            }
+        }
+    }
+
+    private final DefaultAllocator allocator;
+    private final BandwidthMeter bandwidthMeter;
+    private final Policy policy;
+    private final Clock clock;
+    private final Inputs inputs = new Inputs();
+    private final Thresholds thresholds = new Thresholds();
+    private final long[] rebufferTimesMs = new long[MAX_REBUFFER_HISTORY];
+    private int rebufferHistorySize;
+    private int rebufferHistoryNext;
+    private long lastPolicyUpdateMs = C.TIME_UNSET;
+    private volatile int defaultTargetBufferBytes;
+    private volatile int targetBufferBytes;
+    private volatile int maxBufferBytes;
+    private boolean isBuffering;
+    private boolean inRebuffer;
+    private volatile boolean trickPlay;
+    private volatile float speedBytesScale = 1f;
+
+    AdaptiveLoadControl(BandwidthMeter bandwidthMeter, int memoryClassMb) {
+        this(bandwidthMeter, memoryClassMb, new DefaultPolicy(), Clock.DEFAULT);
+    }
+
+    /**
+     * 传入假的Clock可以在测试里确定性地模拟
+     */
+    AdaptiveLoadControl(BandwidthMeter bandwidthMeter, int memoryClassMb, Policy policy, Clock clock) {
+        this.allocator = new DefaultAllocator(true, C.DEFAULT_BUFFER_SEGMENT_SIZE);
+        this.bandwidthMeter = bandwidthMeter;
+        this.policy = policy;
+        this.clock = clock;
+        this.inputs.memoryClassMb = memoryClassMb;
+        this.defaultTargetBufferBytes = MIN_BUFFER_SEGMENTS * C.DEFAULT_BUFFER_SEGMENT_SIZE;
+        updateThresholds(true);
+    }
+
+    @Override
+    public void onPrepared() {
+        reset(false);
+    }
+
+    @Override
+    public void onTracksSelected(Renderer[] renderers, TrackGroupArray trackGroups, TrackSelectionArray trackSelections) {
+        int segments = 0;
+        for (int i = 0; i < renderers.length; i++) {
+            if (trackSelections.get(i) != null) {
+                segments += getBufferSegments(renderers[i].getTrackType());
+            }
+        }
+        defaultTargetBufferBytes = Math.max(MIN_BUFFER_SEGMENTS, segments) * C.DEFAULT_BUFFER_SEGMENT_SIZE;
+        applyTargetBufferBytes();
+    }
+
+    @Override
+    public void onStopped() {
+        reset(true);
+    }
+
+    @Override
+    public void onReleased() {
+        reset(true);
+    }
+
+    @Override
+    public Allocator getAllocator() {
+        return allocator;
+    }
+
+    @Override
+    public long getBackBufferDurationUs() {
+        return 0;
+    }
+
+    @Override
+    public boolean retainBackBufferFromKeyframe() {
+        return false;
+    }
+
+    @Override
+    public boolean shouldContinueLoading(long playbackPositionUs, long bufferedDurationUs, float playbackSpeed) {
+        updateThresholds(false);
+        // 同样的播放时长，快速播放要消耗更多数据
+        speedBytesScale = Math.max(1f, Math.min(playbackSpeed, MAX_SPEED_BYTES_SCALE));
+        applyTargetBufferBytes();
+        boolean targetBufferSizeReached = allocator.getTotalBytesAllocated() >= targetBufferBytes;
+        if (trickPlay) {
+            isBuffering = bufferedDurationUs < TRICK_PLAY_BUFFER_US && !targetBufferSizeReached;
+            return isBuffering;
+        }
+        long maxBufferUs = C.msToUs(thresholds.maxBufferMs);
+        long minBufferUs = C.msToUs(thresholds.minBufferMs);
+        if (playbackSpeed > 1) {
+            // 快速播放时按播放时长而不是媒体时长计算
+            minBufferUs = Util.getMediaDurationForPlayoutDuration(minBufferUs, playbackSpeed);
+            maxBufferUs = Util.getMediaDurationForPlayoutDuration(maxBufferUs, playbackSpeed);
+        }
+        minBufferUs = Math.max(minBufferUs, MIN_BUFFER_FLOOR_US);
+        if (bufferedDurationUs < minBufferUs) {
+            isBuffering = !targetBufferSizeReached;
+        } else if (bufferedDurationUs >= maxBufferUs || targetBufferSizeReached) {
+            isBuffering = false;
+        }
+        return isBuffering;
+    }
+
+    @Override
+    public boolean shouldStartPlayback(long bufferedDurationUs, float playbackSpeed, boolean rebuffering) {
+        if (rebuffering && !inRebuffer) {
+            inRebuffer = true;
+            recordRebuffer(clock.elapsedRealtime());
+        }
+        if (trickPlay) {
+            // 播放器一直暂停，只要渲染器准备好就显示关键帧
+            return true;
+        }
+        updateThresholds(false);
+        bufferedDurationUs = Util.getPlayoutDurationForMediaDuration(bufferedDurationUs, playbackSpeed);
+        long minBufferDurationUs = C.msToUs(rebuffering
+                ? thresholds.bufferForPlaybackAfterRebufferMs : thresholds.bufferForPlaybackMs);
+        boolean start = minBufferDurationUs <= 0
+                || bufferedDurationUs >= minBufferDurationUs
+                || allocator.getTotalBytesAllocated() >= targetBufferBytes;
+        if (start) {
+            inRebuffer = false;
+        }
+        return start;
+    }
+
+    private void recordRebuffer(long nowMs) {
+        rebufferTimesMs[rebufferHistoryNext] = nowMs;
+        rebufferHistoryNext = (rebufferHistoryNext + 1) % MAX_REBUFFER_HISTORY;
+        rebufferHistorySize = Math.min(rebufferHistorySize + 1, MAX_REBUFFER_HISTORY);
+        // 卡顿后马上调整，不等下一个周期
+        lastPolicyUpdateMs = C.TIME_UNSET;
+    }
+
+    private int countRecentRebuffers(long nowMs) {
+        int count = 0;
+        for (int i = 0; i < rebufferHistorySize; i++) {
+            if (nowMs - rebufferTimesMs[i] <= REBUFFER_WINDOW_MS) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void updateThresholds(boolean force) {
+        long nowMs = clock.elapsedRealtime();
+        if (!force && lastPolicyUpdateMs != C.TIME_UNSET && nowMs - lastPolicyUpdateMs < POLICY_UPDATE_INTERVAL_MS) {
+            return;
+        }
+        lastPolicyUpdateMs = nowMs;
+        inputs.bitrateEstimate = bandwidthMeter.getBitrateEstimate();
+        inputs.recentRebufferCount = countRecentRebuffers(nowMs);
+        policy.computeThresholds(inputs, thresholds);
+        applyTargetBufferBytes();
+    }
+
+    /**
+     * 目标字节数只在这里计算，targetBufferBytes和分配器的目标始终一致
+     */
+    private synchronized void applyTargetBufferBytes() {
+        int target = (int) (defaultTargetBufferBytes * thresholds.targetBufferScale * speedBytesScale);
+        int maxBytes = maxBufferBytes;
+        if (maxBytes > 0) {
+            target = Math.min(target, maxBytes);
+        }
+        if (target != targetBufferBytes) {
+            targetBufferBytes = target;
+            allocator.setTargetBufferSize(target);
+        }
+    }
+
+    private void reset(boolean resetAllocator) {
+        defaultTargetBufferBytes = MIN_BUFFER_SEGMENTS * C.DEFAULT_BUFFER_SEGMENT_SIZE;
+        isBuffering = false;
+        inRebuffer = false;
+        speedBytesScale = 1f;
+        applyTargetBufferBytes();
+        if (resetAllocator) {
+            allocator.reset();
+        }
+    }
+
+    private static int getBufferSegments(int trackType) {
+        switch (trackType) {
+            case C.TRACK_TYPE_VIDEO:
+                return VIDEO_BUFFER_SEGMENTS;
+            case C.TRACK_TYPE_AUDIO:
+                return AUDIO_BUFFER_SEGMENTS;
+            case C.TRACK_TYPE_TEXT:
+                return TEXT_BUFFER_SEGMENTS;
+            default:
+                return OTHER_BUFFER_SEGMENTS;
+        }
+    }
+
+    /**
+     * 限制缓冲占用的内存，0表示不限制。可以在任意线程调用，
+     * 已经缓冲的数据在播放消耗后释放，限制以内不会再加载新数据
+     */
+    void setMaxBufferBytes(int maxBytes) {
+        maxBufferBytes = maxBytes;
+        // 立刻更新分配器的目标，变小时释放分配器里空闲的内存，取消限制时恢复
+        applyTargetBufferBytes();
+    }
+
+    /**
+     * 快进快退时只缓冲很少的数据，可以在任意线程调用
+     */
+    void setTrickPlay(boolean trickPlay) {
+        this.trickPlay = trickPlay;
+    }
+
+    long getAllocatedBytes() {
+        return allocator.getTotalBytesAllocated();
+    }
+
+    /**
+     * @return 当前分配器的目标字节数
+     */
+    int getTargetBufferBytes() {
+        return targetBufferBytes;
+    }
+
+    Thresholds getThresholds() {
+        return thresholds;
+    }
+}
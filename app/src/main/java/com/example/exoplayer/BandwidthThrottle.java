@@ -0,0 +1,63 @@
+package com.example.exoplayer;
+
+import android.os.SystemClock;
+
+import java.io.InterruptedIOException;
+
+/**
+ * 令牌桶限速，多个下载线程共享同一个预算
+ */
+final class BandwidthThrottle {
+    private long bytesPerSecond;
+    private long availableBytes;
+    private long lastRefillMs;
+
+    /**
+     * @param bytesPerSecond 小于等于0表示不限速
+     */
+    BandwidthThrottle(long bytesPerSecond) {
+        setBytesPerSecond(bytesPerSecond);
+    }
+
+    synchronized void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.availableBytes = bytesPerSecond;
+        this.lastRefillMs = SystemClock.elapsedRealtime();
+        notifyAll();
+    }
+
+    synchronized long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * 消耗bytes个令牌，不够时阻塞等待
+     */
+    synchronized void acquire(int bytes) throws InterruptedIOException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        refill();
+        availableBytes -= bytes;
+        while (availableBytes < 0 && bytesPerSecond > 0) {
+            long waitMs = Math.max(1, -availableBytes * 1000 / bytesPerSecond);
+            try {
+                wait(waitMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            refill();
+        }
+    }
+
+    private void refill() {
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - lastRefillMs;
+        if (elapsed > 0) {
+            // 最多攒一秒的额度，避免空闲后突发
+            availableBytes = Math.min(bytesPerSecond, availableBytes + elapsed * bytesPerSecond / 1000);
+            lastRefillMs = now;
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package com.example.exoplayer;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.os.Handler;
-import android.os.Message;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -15,8 +17,10 @@ import android.view.TextureView;
 import android.view.View;
 import android.widget.FrameLayout;
 
+import java.util.List;
 
-public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTextureListener, IMediaPlayer.OnPreparedListener, IMediaPlayer.OnStartListener, IMediaPlayer.OnErrorListener {
+
+public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTextureListener, IMediaPlayer.OnPreparedListener, IMediaPlayer.OnStartListener, IMediaPlayer.OnErrorListener, IMediaPlayer.OnRenderedFirstFrameListener, IMediaPlayer.OnVideoSizeChangedListener, IMediaPlayer.OnPlaylistItemChangedListener, ProgressTicker.Callback {
     private static final String TAG = "MediaPlayerView";
     protected static final int STATE_ERROR = -1;
     protected static final int STATE_IDLE = 0;
@@ -25,6 +29,12 @@ public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTex
     protected static final int STATE_TEXTURE_AVAILABLE = 3;
     protected static final int STATE_PLAYING = 4;
     protected static final int STATE_PAUSED = 5;
+    public static final int DEFAULT_PROGRESS_INTERVAL_MS = 50;
+    /**
+     * 选轨时允许视频分辨率超出显示大小的倍数
+     */
+    public static final float DEFAULT_TRACK_SIZE_OVERSAMPLE = 1.25f;
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
 
     private String mUrl;
     protected int mCurrentState = STATE_IDLE;
@@ -37,24 +47,43 @@ public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTex
     private Surface mSurface;
     private OnPlayStatusListener onPlayStatusListener;
     private IMediaPlayer videoPlayer;
+    private int mProgressIntervalMs = DEFAULT_PROGRESS_INTERVAL_MS;
+    private float mTrackSizeOversample = DEFAULT_TRACK_SIZE_OVERSAMPLE;
+    private int mLastReportedPosition = -1;
+    private StartupTrace mStartupTrace;
+    private boolean mReleasedKeepingPosition;
+    private PlayerHandoff mOutgoingHandoff;
+    private PlayerHandoff mIncomingHandoff;
+    /**
+     * 正在等播放器池在后台创建播放器，拿到后执行mOnPlayerAcquired
+     */
+    private boolean mAcquiring;
+    private int mAcquireToken;
+    private Runnable mOnPlayerAcquired;
+    /**
+     * 外部调用的start/pause/seek先进队列，合并后在主线程下一次消息里执行
+     */
+    private final PlayerCommandQueue mCommandQueue = new PlayerCommandQueue(new PlayerCommandQueue.Target() {
+        @Override
+        public boolean isPlayRequested() {
+            return mTargetState == STATE_PLAYING;
+        }
 
-    private static final int MSG_PROCESS_UPDATE = 1;
-    private static final int MSG_AUTO_START_PREPARING = 2;
+        @Override
+        public void performStart() {
+            doStart();
+        }
 
-    @SuppressLint("HandlerLeak")
-    private Handler mHandler = new Handler() {
         @Override
-        public void handleMessage(Message msg) {
-            if (msg.what == MSG_PROCESS_UPDATE) {
-                if (videoPlayer != null && mCurrentState == STATE_PLAYING && onPlayStatusListener != null) {
-                    int pos = videoPlayer.getCurrentPosition();
-                    onPlayStatusListener.onProgressUpdate(pos);
-                    mHandler.removeMessages(MSG_AUTO_START_PREPARING);
-                    mHandler.sendEmptyMessageDelayed(MSG_PROCESS_UPDATE, 50);
-                }
-            }
+        public void performPause() {
+            doPause();
+        }
+
+        @Override
+        public void performSeek(int positionMs) {
+            doSeek(positionMs);
         }
-    };
+    }, sMainHandler::post);
 
     public BaseVideoView(Context context) {
         super(context);
@@ -69,15 +98,18 @@ public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTex
     }
 
     public void setPath(String url, boolean autoStart) {
+        setPath(url, autoStart, SystemClock.elapsedRealtime());
+    }
+
+    private void setPath(String url, boolean autoStart, long setPathTime) {
         Log.e(TAG, "setPath.url=" + url);
         if (TextUtils.isEmpty(url)) {
             return;
         }
         if (videoPlayer == null) {
-            videoPlayer = new MediaPlayerExo(getContext());
-            videoPlayer.init();
-            setCurrentState(STATE_IDLE);
-            mTargetState = STATE_IDLE;
+            mTargetState = autoStart ? STATE_PLAYING : STATE_IDLE;
+            acquirePlayer(() -> setPath(url, mTargetState == STATE_PLAYING, setPathTime));
+            return;
         }
         if (mCurrentState == STATE_PLAYING) {
             return;
@@ -85,7 +117,7 @@ public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTex
 
         if (mCurrentState == STATE_PAUSED) {
             mTargetState = STATE_PLAYING;
-            start();
+            doStart();
             return;
         }
 
@@ -99,7 +131,7 @@ public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTex
         if (mCurrentState == STATE_TEXTURE_AVAILABLE) {
             if (autoStart) {
                 mTargetState = STATE_PLAYING;
-                start();
+                doStart();
             }
             return;
         }
@@ -107,24 +139,133 @@ public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTex
         this.mUrl = url;
         videoPlayer.setOnErrorListener(this);
         videoPlayer.setOnPreparedListener(this);
-        videoPlayer.setOnStartListener(this);
+        setPlayerListeners();
 
         if (this.mUrl == null) {
             return;
         }
 
+        mStartupTrace = StartupTracer.get().newSession(this.mUrl);
+        mStartupTrace.mark(StartupTrace.PHASE_SET_PATH, setPathTime);
+        mStartupTrace.mark(StartupTrace.PHASE_PLAYER_INIT);
+        videoPlayer.setStartupTrace(mStartupTrace);
+
+        mReleasedKeepingPosition = false;
         mTargetState = autoStart ? STATE_PLAYING : STATE_TEXTURE_AVAILABLE;
-        setCurrentState(STATE_PREPARING);
+        setCurrentState(STATE_PREPARING, "setPath");
+        updateVideoSizeLimit(null, 0);
         videoPlayer.prepare(this.mUrl);
     }
 
+    /**
+     * 列表播放，切换到下一项时复用同一个播放器，不需要重新创建
+     */
+    public void setPlaylist(List<String> urls, int startIndex, boolean autoStart) {
+        if (urls == null || urls.isEmpty()) {
+            return;
+        }
+        setPlaylist(urls, startIndex, autoStart, SystemClock.elapsedRealtime());
+    }
+
+    private void setPlaylist(List<String> urls, int startIndex, boolean autoStart, long setPathTime) {
+        if (videoPlayer == null) {
+            mTargetState = autoStart ? STATE_PLAYING : STATE_IDLE;
+            acquirePlayer(() -> setPlaylist(urls, startIndex, mTargetState == STATE_PLAYING, setPathTime));
+            return;
+        }
+        stopProcessUpdate();
+        startIndex = Math.max(0, Math.min(startIndex, urls.size() - 1));
+        mUrl = urls.get(startIndex);
+        setPlayerListeners();
+        mStartupTrace = StartupTracer.get().newSession(mUrl);
+        mStartupTrace.mark(StartupTrace.PHASE_SET_PATH, setPathTime);
+        mStartupTrace.mark(StartupTrace.PHASE_PLAYER_INIT);
+        videoPlayer.setStartupTrace(mStartupTrace);
+        mReleasedKeepingPosition = false;
+        mSeekPositionForReUrl = -1;
+        mTargetState = autoStart ? STATE_PLAYING : STATE_TEXTURE_AVAILABLE;
+        setCurrentState(STATE_PREPARING, "setPlaylist");
+        updateVideoSizeLimit(null, 0);
+        videoPlayer.setPlaylist(urls, startIndex);
+    }
+
+    /**
+     * 从播放器池租用播放器，池里没有时在后台创建，不阻塞主线程。
+     * 等待期间再次调用只保留最后一次的操作，releasePlayer()会取消等待
+     */
+    private void acquirePlayer(Runnable onAcquired) {
+        mOnPlayerAcquired = onAcquired;
+        if (mAcquiring) {
+            return;
+        }
+        mAcquiring = true;
+        int token = ++mAcquireToken;
+        MediaPlayerPool.get(getContext()).acquireAsync(player -> {
+            if (token != mAcquireToken) {
+                MediaPlayerPool.get(getContext()).recycle(player);
+                return;
+            }
+            mAcquiring = false;
+            videoPlayer = player;
+            MemoryGovernor.get(getContext()).register(this);
+            setCurrentState(STATE_IDLE, "acquired");
+            Runnable action = mOnPlayerAcquired;
+            mOnPlayerAcquired = null;
+            if (action != null) {
+                action.run();
+            }
+        });
+    }
+
+    public void next() {
+        if (canSeek()) {
+            videoPlayer.next();
+        }
+    }
+
+    public void previous() {
+        if (canSeek()) {
+            videoPlayer.previous();
+        }
+    }
+
+    public void insert(int index, String url) {
+        if (videoPlayer != null) {
+            videoPlayer.insert(index, url);
+        }
+    }
+
+    /**
+     * 在主线程下一次消息里执行，和之后紧接着的pause()合并，意图和当前相同时不做任何事
+     */
     public void start() {
+        mCommandQueue.start();
+    }
+
+    public void pause() {
+        mCommandQueue.pause();
+    }
+
+    /**
+     * 连续多次seek只执行最后一次
+     */
+    public void seek(int position) {
+        mCommandQueue.seek(position);
+    }
+
+    private void doStart() {
+        if (mAcquiring) {
+            mTargetState = STATE_PLAYING;
+            return;
+        }
         if (mUrl == null) {
             return;
         }
         if (mCurrentState == STATE_IDLE || mCurrentState == STATE_ERROR) {
             mTargetState = STATE_PLAYING;
-            releasePlayer();
+            if (!mReleasedKeepingPosition) {
+                releasePlayer();
+            }
             setPath(mUrl, true);
             return;
         }
@@ -139,8 +280,9 @@ public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTex
         }
 
         if (mCurrentState == STATE_PAUSED || mCurrentState == STATE_TEXTURE_AVAILABLE) {
-            setCurrentState(STATE_PLAYING);
+            setCurrentState(STATE_PLAYING, "start");
             mTargetState = STATE_PLAYING;
+            MemoryGovernor.get(getContext()).onPlaybackResumed(this);
             this.videoPlayer.start();
             if (this.onPlayStatusListener != null) {
                 this.onPlayStatusListener.onPlayStart();
@@ -149,13 +291,19 @@ public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTex
         }
     }
 
-    public void pause() {
+    private void doPause() {
+        if (mAcquiring) {
+            mTargetState = STATE_IDLE;
+            return;
+        }
         if (videoPlayer != null) {
-            if (mCurrentState == STATE_PAUSED || mCurrentState == STATE_IDLE) {
+            if (mCurrentState == STATE_PAUSED || mCurrentState == STATE_IDLE || mCurrentState == STATE_ERROR) {
+                return;
+            }
+            if (!setCurrentState(STATE_PAUSED, "pause")) {
                 return;
             }
             videoPlayer.stop();
-            setCurrentState(STATE_PAUSED);
             mTargetState = STATE_PAUSED;
             stopProcessUpdate();
             if (this.onPlayStatusListener != null) {
@@ -165,6 +313,21 @@ public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTex
 
     }
 
+    public boolean isPlaying() {
+        return mCurrentState == STATE_PLAYING;
+    }
+
+    /**
+     * @return 最近的状态切换和实际发给播放器的命令，排查问题用
+     */
+    public List<String> getTransitionTrace() {
+        return mCommandQueue.getTrace();
+    }
+
+    public String getCommandStats() {
+        return mCommandQueue.getStats();
+    }
+
     public int getCurrentPosition() {
         if (videoPlayer != null) {
             return videoPlayer.getCurrentPosition();
@@ -179,7 +342,7 @@ public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTex
         return videoPlayer.getDuration();
     }
 
-    public void seek(int position) {
+    private void doSeek(int position) {
         mSeekPositionForReUrl = -1;
         if (videoPlayer != null) {
             if (mCurrentState == STATE_PAUSED || mCurrentState == STATE_TEXTURE_AVAILABLE || mCurrentState == STATE_PLAYING || mCurrentState == STATE_PREPARED) {
@@ -189,20 +352,88 @@ public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTex
     }
 
 
+    /**
+     * 拖动进度条时使用：beginScrub()，拖动中不停调用scrubTo()，松手时endScrub()
+     */
+    public void beginScrub() {
+        if (canSeek()) {
+            videoPlayer.beginScrub();
+        }
+    }
+
+    public void scrubTo(int position) {
+        if (canSeek()) {
+            videoPlayer.scrubTo(position);
+        }
+    }
+
+    public void endScrub(int position) {
+        mSeekPositionForReUrl = -1;
+        if (canSeek()) {
+            videoPlayer.endScrub(position);
+        }
+    }
+
+    /**
+     * 播放速度，见IMediaPlayer.setSpeed()。重新设置地址后恢复正常速度
+     */
+    public void setSpeed(float speed) {
+        if (canSeek()) {
+            videoPlayer.setSpeed(speed);
+        }
+    }
+
+    /**
+     * 拖动时显示的预览图，取自positionMs之前最近的关键帧，不会让播放器seek。
+     * 还没生成时返回null，生成好后回调PreviewStore.OnPreviewReadyListener
+     */
+    public Bitmap getPreviewFrame(int positionMs) {
+        return PreviewStore.get(getContext()).getPreviewFrame(mUrl, positionMs);
+    }
+
+    private boolean canSeek() {
+        return videoPlayer != null && (mCurrentState == STATE_PAUSED || mCurrentState == STATE_TEXTURE_AVAILABLE
+                || mCurrentState == STATE_PLAYING || mCurrentState == STATE_PREPARED);
+    }
+
     public void setOnPlayStatusListener(OnPlayStatusListener onPlayStatusListener) {
         this.onPlayStatusListener = onPlayStatusListener;
     }
 
+    /**
+     * 进度回调的最小间隔，按屏幕刷新对齐，0表示每帧回调
+     */
+    public void setProgressUpdateInterval(int intervalMs) {
+        mProgressIntervalMs = intervalMs;
+        if (mCurrentState == STATE_PLAYING) {
+            ProgressTicker.get().register(this, intervalMs);
+        }
+    }
+
+    /**
+     * 选轨时视频分辨率最多是显示大小的多少倍，小于等于0表示不限制
+     */
+    public void setTrackSizeOversample(float oversample) {
+        mTrackSizeOversample = oversample;
+        if (videoPlayer != null) {
+            updateVideoSizeLimit(mVideoWidth > 0 ? calcTextureLayout(mVideoRotationDegree) : null, mVideoRotationDegree);
+        }
+    }
+
     public void releasePlayer() {
-        setCurrentState(STATE_IDLE);
+        mCommandQueue.clear();
+        setCurrentState(STATE_IDLE, "release");
         mTargetState = STATE_IDLE;
+        mAcquiring = false;
+        mAcquireToken++;
+        mOnPlayerAcquired = null;
         if (videoPlayer != null) {
-            videoPlayer.release();
+            MediaPlayerPool.get(getContext()).recycle(videoPlayer);
+            MemoryGovernor.get(getContext()).unregister(this);
             videoPlayer = null;
         }
         Log.i(TAG, "releasePlayer");
-        mHandler.removeMessages(MSG_AUTO_START_PREPARING);
-        mHandler.removeMessages(MSG_PROCESS_UPDATE);
+        stopProcessUpdate();
         int childCount = getChildCount();
         if (childCount > 0) {
             removeAllViews();
@@ -214,21 +445,179 @@ public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTex
         mSurface = null;
         mSeekPositionForReUrl = -1;
         onPlayStatusListener = null;
+        mStartupTrace = null;
+        mReleasedKeepingPosition = false;
+        mOutgoingHandoff = null;
+        mIncomingHandoff = null;
+    }
+
+    /**
+     * 把prepare好的播放器连同缓冲的数据和播放位置交出去，之后这个view回到空闲状态。
+     * 播放器继续往当前画面上渲染，直到新的view调用attachPlayer()换上自己的surface
+     *
+     * @return 没有可交出的播放器时返回null
+     */
+    public PlayerHandoff detachPlayer() {
+        if (videoPlayer == null || mUrl == null || mCurrentState == STATE_IDLE || mCurrentState == STATE_ERROR) {
+            return null;
+        }
+        stopProcessUpdate();
+        boolean playing = mCurrentState == STATE_PLAYING || mTargetState == STATE_PLAYING;
+        PlayerHandoff handoff = new PlayerHandoff(getContext(), videoPlayer, mUrl, mCurrentState, playing,
+                mVideoWidth, mVideoHeight, mVideoRotationDegree, mStartupTrace, mSurface);
+        videoPlayer.setOnPreparedListener(null);
+        videoPlayer.setOnErrorListener(null);
+        videoPlayer.setOnStartListener(null);
+        videoPlayer.setOnRenderedFirstFrameListener(null);
+        videoPlayer.setOnVideoSizeChangedListener(null);
+        videoPlayer.setOnPlaylistItemChangedListener(null);
+        MemoryGovernor.get(getContext()).unregister(this);
+        videoPlayer = null;
+        mOutgoingHandoff = handoff;
+        mIncomingHandoff = null;
+        mStartupTrace = null;
+        mCommandQueue.clear();
+        setCurrentState(STATE_IDLE, "detach");
+        mTargetState = STATE_IDLE;
+        Log.i(TAG, "detachPlayer");
+        return handoff;
+    }
+
+    /**
+     * 接手另一个view交出的播放器，只换surface，不重新prepare
+     */
+    public boolean attachPlayer(PlayerHandoff handoff) {
+        if (handoff == null) {
+            return false;
+        }
+        if (videoPlayer != null || mAcquiring) {
+            OnPlayStatusListener listener = onPlayStatusListener;
+            releasePlayer();
+            onPlayStatusListener = listener;
+        }
+        mOutgoingHandoff = null;
+        mIncomingHandoff = handoff;
+        handoff.onAttached();
+        mUrl = handoff.url;
+        videoPlayer = handoff.player;
+        MemoryGovernor.get(getContext()).register(this);
+        setPlayerListeners();
+        mStartupTrace = handoff.startupTrace;
+        Log.i(TAG, "attachPlayer, state=" + handoff.state);
+        if (handoff.state == STATE_PREPARING) {
+            // 还没prepare完，等onPrepared()回调到这个view
+            mTargetState = handoff.playing ? STATE_PLAYING : STATE_TEXTURE_AVAILABLE;
+            setCurrentState(STATE_PREPARING, "attach");
+            return true;
+        }
+        mVideoWidth = handoff.videoWidth;
+        mVideoHeight = handoff.videoHeight;
+        mVideoRotationDegree = handoff.rotationDegrees;
+        mTargetState = handoff.playing ? STATE_PLAYING : STATE_PAUSED;
+        setCurrentState(STATE_PREPARED, "attach");
+        if (onPlayStatusListener != null) {
+            onPlayStatusListener.onPrepared(videoPlayer);
+        }
+        layoutVideoView(mVideoRotationDegree);
+        if (mTextureView != null && mTextureView.isAvailable() && mSurface != null) {
+            // 复用还在的TextureView，不用等onSurfaceTextureAvailable
+            videoPlayer.setSurface(mSurface);
+            handoff.onSurfaceAttached();
+            setCurrentState(STATE_TEXTURE_AVAILABLE, "attach");
+            if (mTargetState == STATE_PLAYING) {
+                doStart();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 释放播放器(内存紧张或者超过同时解码的数量)，保留地址和播放位置，之后调用start()或setPath()从原位置继续
+     *
+     * @return 释放的缓冲字节数
+     */
+    long releaseKeepingPosition() {
+        if (videoPlayer == null) {
+            return 0;
+        }
+        long bytes = videoPlayer.getBufferedBytes();
+        int position = videoPlayer.getCurrentPosition();
+        OnPlayStatusListener listener = onPlayStatusListener;
+        releasePlayer();
+        onPlayStatusListener = listener;
+        mSeekPositionForReUrl = position;
+        mReleasedKeepingPosition = true;
+        return bytes;
+    }
+
+    boolean isVisibleOnScreen() {
+        return isAttachedToWindow() && isShown() && getGlobalVisibleRect(new Rect());
+    }
+
+    /**
+     * @return 在屏幕上可见部分占整个view的比例，0到1
+     */
+    float getVisibleFraction(Rect outRect) {
+        int area = getWidth() * getHeight();
+        if (area <= 0 || !isAttachedToWindow() || !isShown() || !getGlobalVisibleRect(outRect)) {
+            return 0f;
+        }
+        return outRect.width() * outRect.height() / (float) area;
+    }
+
+    String getUrl() {
+        return mUrl;
+    }
+
+    boolean hasPlayer() {
+        return videoPlayer != null;
+    }
+
+    long getBufferedBytes() {
+        return videoPlayer == null ? 0 : videoPlayer.getBufferedBytes();
+    }
+
+    void setMaxBufferBytes(int maxBytes) {
+        if (videoPlayer != null) {
+            videoPlayer.setMaxBufferBytes(maxBytes);
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        // 接手播放器时view可能还没布局，布局完成后再放TextureView
+        if (videoPlayer != null && mVideoWidth > 0 && mCurrentState != STATE_IDLE
+                && mCurrentState != STATE_PREPARING && mCurrentState != STATE_ERROR) {
+            layoutVideoView(mVideoRotationDegree);
+        } else if (videoPlayer != null && mCurrentState == STATE_PREPARING) {
+            updateVideoSizeLimit(null, 0);
+        }
     }
 
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
+        PlaybackCoordinator.get().unregister(this);
         releasePlayer();
     }
 
     @Override
     public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
         mSurface = new Surface(surface);
+        if (mStartupTrace != null) {
+            mStartupTrace.mark(StartupTrace.PHASE_SURFACE_ATTACHED);
+        }
         if (videoPlayer != null) {
             videoPlayer.setSurface(mSurface);
-            setCurrentState(STATE_TEXTURE_AVAILABLE);
-            if (mTargetState == STATE_PLAYING) {
-                start();
+            if (mIncomingHandoff != null) {
+                mIncomingHandoff.onSurfaceAttached();
+            }
+            // 还在准备中时只设置surface，等onPrepared()再切换状态，不算非法切换
+            if (mCurrentState != STATE_PREPARED && mCurrentState != STATE_PLAYING && mCurrentState != STATE_PAUSED) {
+                return;
+            }
+            if (setCurrentState(STATE_TEXTURE_AVAILABLE, "surfaceAvailable") && mTargetState == STATE_PLAYING) {
+                doStart();
             }
         }
     }
@@ -240,6 +629,13 @@ public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTex
 
     @Override
     public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+        if (mOutgoingHandoff != null) {
+            mOutgoingHandoff.onSourceSurfaceDestroyed(mSurface);
+        }
+        if (videoPlayer != null && mSurface != null) {
+            // 播放器先放开surface，一段时间没有新surface才切到只播声音
+            videoPlayer.setSurface(null);
+        }
         mSurface = null;
         return true;
     }
@@ -254,15 +650,27 @@ public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTex
         mVideoWidth = mp.getWidth();
         mVideoHeight = mp.getHeight();
         mVideoRotationDegree = mp.getRotationDegrees();
+        if (mStartupTrace != null) {
+            mStartupTrace.mark(StartupTrace.PHASE_PREPARED);
+        }
         if (videoPlayer != null) {
             if (onPlayStatusListener != null) {
                 onPlayStatusListener.onPrepared(mp);
             }
             layoutVideoView(mp.getRotationDegrees());
-            setCurrentState(STATE_PREPARED);
+            setCurrentState(STATE_PREPARED, "prepared");
+            // moov已经在缓存里了，顺便建好关键帧索引
+            PreviewStore.get(getContext()).prepare(mUrl);
             if (mSeekPositionForReUrl > 0) {
-                seek(mSeekPositionForReUrl);
-                mSeekPositionForReUrl = -1;
+                doSeek(mSeekPositionForReUrl);
+            }
+            if (mSurface != null && mTextureView != null && mTextureView.isAvailable()) {
+                // 同一个播放器重新设置了列表，surface还在，不会再回调onSurfaceTextureAvailable
+                videoPlayer.setSurface(mSurface);
+                setCurrentState(STATE_TEXTURE_AVAILABLE, "prepared");
+                if (mTargetState == STATE_PLAYING) {
+                    doStart();
+                }
             }
         }
     }
@@ -272,6 +680,34 @@ public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTex
 
     }
 
+    @Override
+    public void onVideoSizeChanged(IMediaPlayer mp, int width, int height) {
+        mVideoWidth = width;
+        mVideoHeight = height;
+        if (mCurrentState != STATE_IDLE && mCurrentState != STATE_PREPARING && mCurrentState != STATE_ERROR) {
+            layoutVideoView(mp.getRotationDegrees());
+        }
+    }
+
+    @Override
+    public void onPlaylistItemChanged(IMediaPlayer mp, int index, String url) {
+        mUrl = url;
+        mVideoRotationDegree = mp.getRotationDegrees();
+        mLastReportedPosition = -1;
+        // 新的一项时长不同，让外面重新取一次
+        if (onPlayStatusListener != null) {
+            onPlayStatusListener.onPrepared(mp);
+        }
+    }
+
+    @Override
+    public void onRenderedFirstFrame(IMediaPlayer mp) {
+        if (mIncomingHandoff != null && mSurface != null) {
+            mIncomingHandoff.onFirstFrameRendered();
+            mIncomingHandoff = null;
+        }
+    }
+
     @Override
     public boolean onError(IMediaPlayer mp, int what, Exception error) {
         Log.i("MediaPlayer", "url:" + mUrl, error);
@@ -281,20 +717,53 @@ public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTex
         return false;
     }
 
-    private void setCurrentState(int state) {
+    private void setPlayerListeners() {
+        videoPlayer.setOnErrorListener(this);
+        videoPlayer.setOnPreparedListener(this);
+        videoPlayer.setOnStartListener(this);
+        videoPlayer.setOnRenderedFirstFrameListener(this);
+        videoPlayer.setOnVideoSizeChangedListener(this);
+        videoPlayer.setOnPlaylistItemChangedListener(this);
+    }
+
+    /**
+     * 所有状态切换都走这里，不合法的切换不生效
+     */
+    private boolean setCurrentState(int state, String reason) {
+        if (!mCommandQueue.onTransition(mCurrentState, state, reason)) {
+            Log.w(TAG, "invalid transition " + mCurrentState + "->" + state + " (" + reason + ")");
+            return false;
+        }
         mCurrentState = state;
         setKeepScreenOn(state == STATE_PLAYING);
+        return true;
     }
 
     private void startProcessUpdate() {
         Log.i(TAG, "startProcessUpdate");
-        mHandler.removeMessages(MSG_PROCESS_UPDATE);
-        mHandler.sendEmptyMessageDelayed(MSG_PROCESS_UPDATE, 50);
+        mLastReportedPosition = -1;
+        ProgressTicker.get().register(this, mProgressIntervalMs);
     }
 
     private void stopProcessUpdate() {
         Log.i(TAG, "stopProcessUpdate");
-        mHandler.removeMessages(MSG_PROCESS_UPDATE);
+        ProgressTicker.get().unregister(this);
+    }
+
+    @Override
+    public void onProgressTick(long frameTimeNanos) {
+        if (videoPlayer == null || mCurrentState != STATE_PLAYING || onPlayStatusListener == null) {
+            return;
+        }
+        if (!isShown()) {
+            return;
+        }
+        int pos = videoPlayer.getCurrentPosition();
+        if (pos == mLastReportedPosition) {
+            return;
+        }
+        mLastReportedPosition = pos;
+        onPlayStatusListener.onProgressUpdate(pos);
     }
 
     protected void layoutVideoView(int videoRotation) {
@@ -304,6 +773,7 @@ public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTex
         }
         int paramW = info.x;
         int paramH = info.y;
+        updateVideoSizeLimit(info, videoRotation);
 
         TextureView textureView = findTextureView();
         if (textureView != null) {
@@ -327,6 +797,38 @@ public class BaseVideoView extends FrameLayout implements TextureView.SurfaceTex
         }
     }
 
+    /**
+     * 按显示大小限制选轨的分辨率。还不知道视频大小时只知道view的大小，
+     * 也不知道视频是否旋转，宽高都按长边限制
+     *
+     * @param layout calcTextureLayout()的结果，null表示还没有
+     */
+    private void updateVideoSizeLimit(Point layout, int videoRotation) {
+        if (videoPlayer == null) {
+            return;
+        }
+        if (mTrackSizeOversample <= 0) {
+            videoPlayer.setVideoSizeLimit(0, 0);
+            return;
+        }
+        int width;
+        int height;
+        if (layout != null) {
+            // 显示大小是旋转后的，视频轨道的宽高是旋转前的
+            boolean rotated = videoRotation % 180 == 90;
+            width = rotated ? layout.y : layout.x;
+            height = rotated ? layout.x : layout.y;
+        } else {
+            width = Math.max(getWidth(), getHeight());
+            height = width;
+        }
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        videoPlayer.setVideoSizeLimit((int) (width * mTrackSizeOversample + 0.5f),
+                (int) (height * mTrackSizeOversample + 0.5f));
+    }
+
     protected Point calcTextureLayout(int videoRotation) {
         if (mVideoWidth <= 0 || mVideoHeight <= 0) {
             return null;
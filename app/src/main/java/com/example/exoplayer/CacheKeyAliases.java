@@ -0,0 +1,356 @@
+package com.example.exoplayer;
+
+import android.net.Uri;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DummyDataSource;
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+import com.google.android.exoplayer2.upstream.cache.ContentMetadata;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 缓存key的别名表：key规则变化后旧key下的数据、内容相同但地址不同的视频，都映射到实际存数据的key。
+ * 持久化在SimpleCache目录之外，别名指向的数据被淘汰后自动失效。
+ * 迁移和去重都在后台线程执行，正在被写入的key跳过，下次启动再处理。
+ */
+final class CacheKeyAliases {
+    private static final String TAG = "CacheKeyAliases";
+    private static final int MAGIC = 0x564b414c;
+    private static final int VERSION = 1;
+    /**
+     * 内容指纹取开头多少字节，再加上总长度
+     */
+    static final int FINGERPRINT_BYTES = 64 * 1024;
+    private static final int COMPARE_BUFFER_BYTES = 64 * 1024;
+
+    private final AtomicFile file;
+    private final ConcurrentHashMap<String, String> aliases = new ConcurrentHashMap<>();
+    private volatile int migratedCount;
+    private volatile int dedupedCount;
+    private volatile long reclaimedBytes;
+
+    CacheKeyAliases(File file) {
+        this.file = new AtomicFile(file);
+    }
+
+    /**
+     * @return key实际存数据用的key，没有别名时返回key本身
+     */
+    String resolve(String key) {
+        String target = aliases.get(key);
+        return target != null ? target : key;
+    }
+
+    void load() {
+        if (!file.getBaseFile().exists()) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(file.openRead()))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                return;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                aliases.put(input.readUTF(), input.readUTF());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "failed to load aliases", e);
+        }
+    }
+
+    /**
+     * 按新的key规则整理已有的缓存：旧key算出的新key还没有数据时直接指向旧key，不用复制；
+     * 两边都有数据时保留缓存得多的那份，删掉另一份
+     */
+    synchronized void migrate(Cache cache, VideoCache.KeyStrategy strategy) {
+        HashSet<String> keys = new HashSet<>(cache.getKeys());
+        boolean changed = false;
+        // 指向的数据已经被淘汰的别名不再需要
+        for (Map.Entry<String, String> entry : aliases.entrySet()) {
+            if (!keys.contains(entry.getValue())) {
+                aliases.remove(entry.getKey());
+                changed = true;
+            }
+        }
+        for (String key : keys) {
+            String normalized = strategy.buildCacheKey(Uri.parse(key));
+            if (normalized.equals(key)) {
+                continue;
+            }
+            String existing = resolve(normalized);
+            if (existing.equals(key)) {
+                continue;
+            }
+            if (keys.contains(existing)) {
+                if (merge(cache, existing, key, false) == null) {
+                    continue;
+                }
+            } else {
+                aliases.put(normalized, key);
+            }
+            migratedCount++;
+            changed = true;
+        }
+        if (changed) {
+            save();
+        }
+        Log.i(TAG, "migrate done, " + getStats());
+    }
+
+    /**
+     * 合并内容重复的视频，只处理完整缓存的。指纹相同的再逐字节比较全部内容，完全一样才删掉一份
+     */
+    synchronized void deduplicate(Cache cache) {
+        HashMap<String, String> keyByFingerprint = new HashMap<>();
+        boolean changed = false;
+        for (String key : new HashSet<>(cache.getKeys())) {
+            String fingerprint = fingerprint(cache, key);
+            if (fingerprint == null) {
+                continue;
+            }
+            String other = keyByFingerprint.get(fingerprint);
+            if (other == null) {
+                keyByFingerprint.put(fingerprint, key);
+                continue;
+            }
+            String keep = merge(cache, other, key, true);
+            if (keep == null) {
+                continue;
+            }
+            keyByFingerprint.put(fingerprint, keep);
+            dedupedCount++;
+            changed = true;
+        }
+        if (changed) {
+            save();
+        }
+        Log.i(TAG, "deduplicate done, " + getStats());
+    }
+
+    String getStats() {
+        return "aliases=" + aliases.size() + ", migrated=" + migratedCount + ", deduped=" + dedupedCount
+                + ", reclaimedBytes=" + reclaimedBytes;
+    }
+
+    /**
+     * 保留缓存得多的key，删掉另一个并把指向它的别名都改到保留的key。
+     * 两个key都先加锁，比较和删除期间播放器和下载不会写入
+     *
+     * @param compareContent 是否要求两份内容逐字节相同
+     * @return 保留的key，有key正在被写入或者内容不同时返回null，不做任何修改
+     */
+    @Nullable
+    private String merge(Cache cache, String first, String second, boolean compareContent) {
+        CacheSpan firstLock = tryLock(cache, first);
+        if (firstLock == null) {
+            Log.d(TAG, "skip merge, key in use: " + first);
+            return null;
+        }
+        CacheSpan secondLock = tryLock(cache, second);
+        try {
+            if (secondLock == null) {
+                Log.d(TAG, "skip merge, key in use: " + second);
+                return null;
+            }
+            if (compareContent && !isSameContent(cache, first, second)) {
+                Log.i(TAG, "fingerprint matched but content differs: " + first + ", " + second);
+                return null;
+            }
+            // 离线下载固定的key不能删
+            boolean keepFirst = VideoCache.isPinned(first)
+                    || (!VideoCache.isPinned(second) && getCachedBytes(cache, first) >= getCachedBytes(cache, second));
+            String keep = keepFirst ? first : second;
+            String drop = keepFirst ? second : first;
+            reclaimedBytes += getCachedBytes(cache, drop);
+            try {
+                cache.removeResource(drop);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "failed to remove " + drop, e);
+            }
+            for (Map.Entry<String, String> entry : aliases.entrySet()) {
+                if (entry.getValue().equals(drop)) {
+                    entry.setValue(keep);
+                }
+            }
+            aliases.put(drop, keep);
+            return keep;
+        } finally {
+            if (secondLock != null) {
+                cache.releaseHoleSpan(secondLock);
+            }
+            cache.releaseHoleSpan(firstLock);
+        }
+    }
+
+    /**
+     * 在已缓存数据的末尾之后锁住key。SimpleCache的写锁是整个key的，
+     * 拿不到说明播放器或下载正在往这个key写数据
+     *
+     * @return 拿到的锁，用完要releaseHoleSpan()；key正在被写入时返回null
+     */
+    @Nullable
+    private static CacheSpan tryLock(Cache cache, String key) {
+        long end = Math.max(0, ContentMetadata.getContentLength(cache.getContentMetadata(key)));
+        for (CacheSpan span : cache.getCachedSpans(key)) {
+            end = Math.max(end, span.position + span.length);
+        }
+        try {
+            CacheSpan span = cache.startReadWriteNonBlocking(key, end);
+            if (span != null && span.isCached) {
+                return null;
+            }
+            return span;
+        } catch (Cache.CacheException e) {
+            Log.w(TAG, "failed to lock " + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * 逐字节比较两个完整缓存的key，只读缓存不访问网络
+     */
+    private static boolean isSameContent(Cache cache, String first, String second) {
+        long length = ContentMetadata.getContentLength(cache.getContentMetadata(first));
+        if (length <= 0 || length != ContentMetadata.getContentLength(cache.getContentMetadata(second))
+                || !cache.isCached(first, 0, length) || !cache.isCached(second, 0, length)) {
+            return false;
+        }
+        CacheDataSource firstSource = new CacheDataSource(cache, DummyDataSource.INSTANCE);
+        CacheDataSource secondSource = new CacheDataSource(cache, DummyDataSource.INSTANCE);
+        try {
+            firstSource.open(new DataSpec(Uri.parse(first), 0, length, first));
+            secondSource.open(new DataSpec(Uri.parse(second), 0, length, second));
+            byte[] firstBuffer = new byte[COMPARE_BUFFER_BYTES];
+            byte[] secondBuffer = new byte[COMPARE_BUFFER_BYTES];
+            long remaining = length;
+            while (remaining > 0) {
+                int chunk = (int) Math.min(remaining, COMPARE_BUFFER_BYTES);
+                if (!readFully(firstSource, firstBuffer, chunk) || !readFully(secondSource, secondBuffer, chunk)
+                        || !Arrays.equals(firstBuffer, secondBuffer)) {
+                    return false;
+                }
+                remaining -= chunk;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            closeQuietly(firstSource);
+            closeQuietly(secondSource);
+        }
+    }
+
+    /**
+     * 读满buffer的前length字节，后面的字节保持不变
+     */
+    private static boolean readFully(CacheDataSource dataSource, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read = dataSource.read(buffer, offset, length - offset);
+            if (read == C.RESULT_END_OF_INPUT) {
+                return false;
+            }
+            offset += read;
+        }
+        return true;
+    }
+
+    private static void closeQuietly(CacheDataSource dataSource) {
+        try {
+            dataSource.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static long getCachedBytes(Cache cache, String key) {
+        long bytes = 0;
+        for (CacheSpan span : cache.getCachedSpans(key)) {
+            bytes += span.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * 用来找可能重复的视频，相同时还要比较全部内容
+     *
+     * @return 总长度和开头数据的SHA-1，长度未知或者没有完整缓存时返回null
+     */
+    private static String fingerprint(Cache cache, String key) {
+        long length = ContentMetadata.getContentLength(cache.getContentMetadata(key));
+        if (length <= 0 || !cache.isCached(key, 0, length)) {
+            return null;
+        }
+        int headLength = (int) Math.min(length, FINGERPRINT_BYTES);
+        CacheDataSource dataSource = new CacheDataSource(cache, DummyDataSource.INSTANCE);
+        try {
+            dataSource.open(new DataSpec(Uri.parse(key), 0, headLength, key));
+            byte[] head = new byte[headLength];
+            int offset = 0;
+            while (offset < headLength) {
+                int read = dataSource.read(head, offset, headLength - offset);
+                if (read == C.RESULT_END_OF_INPUT) {
+                    return null;
+                }
+                offset += read;
+            }
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(Util.getUtf8Bytes(Long.toString(length)));
+            digest.update(head);
+            byte[] hash = digest.digest();
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return null;
+        } finally {
+            closeQuietly(dataSource);
+        }
+    }
+
+    private void save() {
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = file.startWrite();
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(outputStream));
+            HashMap<String, String> snapshot = new HashMap<>(aliases);
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(snapshot.size());
+            for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeUTF(entry.getValue());
+            }
+            output.flush();
+            file.finishWrite(outputStream);
+        } catch (IOException e) {
+            Log.w(TAG, "failed to save aliases", e);
+            if (outputStream != null) {
+                file.failWrite(outputStream);
+            }
+        }
+    }
+}
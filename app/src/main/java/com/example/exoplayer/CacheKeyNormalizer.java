@@ -0,0 +1,83 @@
+package com.example.exoplayer;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * 默认的缓存key规则：去掉CDN鉴权、过期时间之类每次都会变的参数，剩下的参数排序，
+ * 多个CDN域名可以映射到同一个域名，这样同一个视频换了签名或者域名还能命中缓存。
+ * 配置好之后再交给VideoCache.setKeyStrategy()，之后不要再修改。
+ */
+final class CacheKeyNormalizer implements VideoCache.KeyStrategy {
+    /**
+     * 常见CDN的鉴权参数，不区分大小写
+     */
+    static final String[] DEFAULT_IGNORED_PARAMETERS = {
+            "token", "auth_key", "sign", "signature", "expires", "policy", "key-pair-id",
+            "wssecret", "wstime", "txsecret", "txtime"
+    };
+
+    private final HashSet<String> ignoredParameters = new HashSet<>();
+    private final HashMap<String, String> hostAliases = new HashMap<>();
+
+    CacheKeyNormalizer() {
+        Collections.addAll(ignoredParameters, DEFAULT_IGNORED_PARAMETERS);
+    }
+
+    CacheKeyNormalizer addIgnoredParameter(String name) {
+        ignoredParameters.add(name.toLowerCase(Locale.US));
+        return this;
+    }
+
+    /**
+     * host的视频和canonicalHost上的是同一份
+     */
+    CacheKeyNormalizer addHostAlias(String host, String canonicalHost) {
+        hostAliases.put(host.toLowerCase(Locale.US), canonicalHost.toLowerCase(Locale.US));
+        return this;
+    }
+
+    @Override
+    public String buildCacheKey(Uri uri) {
+        String scheme = uri.getScheme();
+        String host = uri.getHost();
+        if (scheme == null || host == null || uri.isOpaque()) {
+            return uri.toString();
+        }
+        host = host.toLowerCase(Locale.US);
+        String canonicalHost = hostAliases.get(host);
+        StringBuilder builder = new StringBuilder(uri.toString().length())
+                .append(scheme.toLowerCase(Locale.US)).append("://")
+                .append(canonicalHost != null ? canonicalHost : host);
+        if (uri.getPort() != -1) {
+            builder.append(':').append(uri.getPort());
+        }
+        String path = uri.getEncodedPath();
+        if (path != null) {
+            builder.append(path);
+        }
+        String query = uri.getEncodedQuery();
+        if (!TextUtils.isEmpty(query)) {
+            ArrayList<String> parameters = new ArrayList<>();
+            for (String parameter : query.split("&")) {
+                int end = parameter.indexOf('=');
+                String name = Uri.decode(end < 0 ? parameter : parameter.substring(0, end));
+                if (!parameter.isEmpty() && !ignoredParameters.contains(name.toLowerCase(Locale.US))) {
+                    parameters.add(parameter);
+                }
+            }
+            // 参数顺序不影响内容
+            Collections.sort(parameters);
+            for (int i = 0; i < parameters.size(); i++) {
+                builder.append(i == 0 ? '?' : '&').append(parameters.get(i));
+            }
+        }
+        return builder.toString();
+    }
+}
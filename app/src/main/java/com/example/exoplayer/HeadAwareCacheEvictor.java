@@ -0,0 +1,208 @@
+package com.example.exoplayer;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 区分每个视频的开头(head)和其余部分(tail)的LRU淘汰策略：
+ * 空间不够时先淘汰tail，tail淘汰完才淘汰head，保证起播需要的数据尽量留在缓存里。
+ * 单个key超过配额时只淘汰它自己靠后的tail。
+ * 固定(pinned)的key不参与淘汰，也不占总大小，用于离线下载的视频。
+ * <p>
+ * 所有回调都在SimpleCache的锁内执行。
+ */
+final class HeadAwareCacheEvictor implements CacheEvictor {
+    private final long maxBytes;
+    private final long headBytes;
+    private final long perKeyQuota;
+    /**
+     * 可以在任意线程修改，淘汰时才读取
+     */
+    private final Set<String> pinnedKeys;
+
+    private final TreeSet<CacheSpan> headSpans = new TreeSet<>(HeadAwareCacheEvictor::compareByTouch);
+    private final TreeSet<CacheSpan> tailSpans = new TreeSet<>(HeadAwareCacheEvictor::compareByTouch);
+    private final HashMap<String, KeyUsage> keyUsages = new HashMap<>();
+    private long currentSize;
+
+    private volatile long headHits;
+    private volatile long headMisses;
+    private volatile long tailHits;
+    private volatile long tailMisses;
+    private volatile long headEvictions;
+    private volatile long tailEvictions;
+
+    /**
+     * @param maxBytes    缓存总大小
+     * @param headBytes   position小于该值的span视为head
+     * @param perKeyQuota 单个key最多占用的字节数，小于等于0表示不限制
+     * @param pinnedKeys  线程安全的集合，其中的key不会被淘汰
+     */
+    HeadAwareCacheEvictor(long maxBytes, long headBytes, long perKeyQuota, Set<String> pinnedKeys) {
+        this.maxBytes = maxBytes;
+        this.headBytes = headBytes;
+        this.perKeyQuota = perKeyQuota;
+        this.pinnedKeys = pinnedKeys;
+    }
+
+    @Override
+    public boolean requiresCacheSpanTouches() {
+        return true;
+    }
+
+    @Override
+    public void onCacheInitialized() {
+
+    }
+
+    @Override
+    public void onStartFile(Cache cache, String key, long position, long length) {
+        if (isHead(position)) {
+            headMisses++;
+        } else {
+            tailMisses++;
+        }
+        if (length != C.LENGTH_UNSET) {
+            evictCache(cache, length);
+        }
+    }
+
+    @Override
+    public void onSpanAdded(Cache cache, CacheSpan span) {
+        spansFor(span).add(span);
+        currentSize += span.length;
+        KeyUsage usage = keyUsages.get(span.key);
+        if (usage == null) {
+            usage = new KeyUsage();
+            keyUsages.put(span.key, usage);
+        }
+        usage.spans.add(span);
+        usage.bytes += span.length;
+        enforceQuota(cache, usage);
+        evictCache(cache, 0);
+    }
+
+    @Override
+    public void onSpanRemoved(Cache cache, CacheSpan span) {
+        spansFor(span).remove(span);
+        currentSize -= span.length;
+        KeyUsage usage = keyUsages.get(span.key);
+        if (usage != null && usage.spans.remove(span)) {
+            usage.bytes -= span.length;
+            if (usage.spans.isEmpty()) {
+                keyUsages.remove(span.key);
+            }
+        }
+    }
+
+    @Override
+    public void onSpanTouched(Cache cache, CacheSpan oldSpan, CacheSpan newSpan) {
+        if (isHead(newSpan.position)) {
+            headHits++;
+        } else {
+            tailHits++;
+        }
+        onSpanRemoved(cache, oldSpan);
+        onSpanAdded(cache, newSpan);
+    }
+
+    float getHeadHitRatio() {
+        return ratio(headHits, headMisses);
+    }
+
+    float getTailHitRatio() {
+        return ratio(tailHits, tailMisses);
+    }
+
+    String getStats() {
+        return "head hit=" + headHits + " miss=" + headMisses + " evicted=" + headEvictions
+                + ", tail hit=" + tailHits + " miss=" + tailMisses + " evicted=" + tailEvictions;
+    }
+
+    private boolean isHead(long position) {
+        return position < headBytes;
+    }
+
+    private TreeSet<CacheSpan> spansFor(CacheSpan span) {
+        return isHead(span.position) ? headSpans : tailSpans;
+    }
+
+    private void enforceQuota(Cache cache, KeyUsage usage) {
+        if (perKeyQuota <= 0 || usage.spans.isEmpty() || pinnedKeys.contains(usage.spans.first().key)) {
+            return;
+        }
+        while (usage.bytes > perKeyQuota && !usage.spans.isEmpty()) {
+            CacheSpan last = usage.spans.last();
+            if (isHead(last.position)) {
+                break;
+            }
+            cache.removeSpan(last);
+            tailEvictions++;
+        }
+    }
+
+    private void evictCache(Cache cache, long requiredSpace) {
+        long limit = maxBytes + getPinnedBytes();
+        while (currentSize + requiredSpace > limit) {
+            CacheSpan tail = firstUnpinned(tailSpans);
+            CacheSpan head = tail == null ? firstUnpinned(headSpans) : null;
+            if (tail != null) {
+                cache.removeSpan(tail);
+                tailEvictions++;
+            } else if (head != null) {
+                cache.removeSpan(head);
+                headEvictions++;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private long getPinnedBytes() {
+        long bytes = 0;
+        for (String key : pinnedKeys) {
+            KeyUsage usage = keyUsages.get(key);
+            if (usage != null) {
+                bytes += usage.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    private CacheSpan firstUnpinned(TreeSet<CacheSpan> spans) {
+        Iterator<CacheSpan> iterator = spans.iterator();
+        while (iterator.hasNext()) {
+            CacheSpan span = iterator.next();
+            if (!pinnedKeys.contains(span.key)) {
+                return span;
+            }
+        }
+        return null;
+    }
+
+    private static float ratio(long hits, long misses) {
+        long total = hits + misses;
+        return total == 0 ? 0f : hits / (float) total;
+    }
+
+    private static int compareByTouch(CacheSpan lhs, CacheSpan rhs) {
+        long delta = lhs.lastTouchTimestamp - rhs.lastTouchTimestamp;
+        if (delta == 0) {
+            return lhs.compareTo(rhs);
+        }
+        return lhs.lastTouchTimestamp < rhs.lastTouchTimestamp ? -1 : 1;
+    }
+
+    private static final class KeyUsage {
+        // CacheSpan自身按position排序
+        final TreeSet<CacheSpan> spans = new TreeSet<>();
+        long bytes;
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.exoplayer;
+
+/**
+ * 固定宽度分桶的直方图，只用long数组计数，记录时不分配内存
+ */
+final class Histogram {
+    private final long bucketWidth;
+    private final long[] counts;
+    private long total;
+    private long sum;
+    private long max;
+
+    /**
+     * 超过bucketWidth * bucketCount的值都记在最后一个桶里
+     */
+    Histogram(long bucketWidth, int bucketCount) {
+        this.bucketWidth = bucketWidth;
+        this.counts = new long[bucketCount];
+    }
+
+    synchronized void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int index = (int) Math.min(value / bucketWidth, counts.length - 1);
+        counts[index]++;
+        total++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * @param percentile 0到100
+     * @return 所在桶的上界，没有数据时返回0
+     */
+    synchronized long percentile(float percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * percentile / 100f);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target && counts[i] > 0) {
+                return Math.min((i + 1) * bucketWidth, max);
+            }
+        }
+        return max;
+    }
+
+    synchronized long getCount() {
+        return total;
+    }
+
+    synchronized long getMean() {
+        return total == 0 ? 0 : sum / total;
+    }
+
+    synchronized long getMax() {
+        return max;
+    }
+
+    synchronized void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        total = 0;
+        sum = 0;
+        max = 0;
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.exoplayer;
+
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 限制同一个host同时在建立中的请求数，从open()开始到收到响应头为止。
+ * 边下边播的连接会在整个播放期间保持打开，不计入限制，否则名额很快被占满；
+ * 限制的是同时握手和等待首字节的请求，避免一次打开很多个view时互相抢带宽。
+ * OkHttp的Dispatcher只限制异步请求，OkHttpDataSource走的是同步请求，所以在这里限制。
+ */
+final class HostLimitedDataSource implements DataSource {
+    private static final String TAG = "HostLimitedDataSource";
+
+    private final DataSource upstream;
+    private final Limiter limiter;
+
+    HostLimitedDataSource(DataSource upstream, Limiter limiter) {
+        this.upstream = upstream;
+        this.limiter = limiter;
+    }
+
+    @Override
+    public void addTransferListener(TransferListener transferListener) {
+        upstream.addTransferListener(transferListener);
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        Semaphore permit = limiter.acquire(dataSpec.uri.getHost());
+        try {
+            return upstream.open(dataSpec);
+        } finally {
+            if (permit != null) {
+                permit.release();
+            }
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+        return upstream.read(buffer, offset, readLength);
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        return upstream.getUri();
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+        return upstream.getResponseHeaders();
+    }
+
+    @Override
+    public void close() throws IOException {
+        upstream.close();
+    }
+
+    static final class Limiter {
+        private final int maxPerHost;
+        private final HashMap<String, Semaphore> semaphores = new HashMap<>();
+
+        Limiter(int maxPerHost) {
+            this.maxPerHost = maxPerHost;
+        }
+
+        @Nullable
+        Semaphore acquire(@Nullable String host) throws InterruptedIOException {
+            if (host == null || maxPerHost <= 0) {
+                return null;
+            }
+            Semaphore semaphore;
+            synchronized (semaphores) {
+                semaphore = semaphores.get(host);
+                if (semaphore == null) {
+                    semaphore = new Semaphore(maxPerHost);
+                    semaphores.put(host, semaphore);
+                }
+            }
+            if (!semaphore.tryAcquire()) {
+                Log.d(TAG, "connection limit reached for " + host);
+                // 名额只在建立请求期间占用，最多等连接和读取超时，不会一直卡住
+                try {
+                    semaphore.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            return semaphore;
+        }
+    }
+}
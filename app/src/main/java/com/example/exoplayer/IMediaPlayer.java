@@ -2,17 +2,62 @@ package com.example.exoplayer;
 
 import android.view.Surface;
 
+import java.util.List;
+
 public interface IMediaPlayer {
   void init();
 
+  /**
+   * 在后台线程创建播放器，完成后在主线程回调，之后才能使用
+   */
+  void initAsync(OnInitializedListener listener);
+
+  /**
+   * 创建MediaSource在后台线程完成，准备好后回调OnPreparedListener
+   */
   void prepare(String url);
 
+  /**
+   * 按列表顺序播放，各项之间无缝切换，当前项播放时会预先缓冲下一项。
+   * 和prepare()一样会回调OnPreparedListener
+   */
+  void setPlaylist(List<String> urls, int startIndex);
+
+  void next();
+
+  void previous();
+
+  void insert(int index, String url);
+
+  /**
+   * @return 当前播放的是列表中的第几项，不是列表播放时返回0
+   */
+  int getCurrentIndex();
+
   void start();
 
   void stop();
 
   void seek(int position);
 
+  /**
+   * 开始拖动进度条，拖动过程中按关键帧seek
+   */
+  void beginScrub();
+
+  /**
+   * 拖动中的位置，上一次seek的画面还没出来时只记下最新的位置
+   */
+  void scrubTo(int position);
+
+  /**
+   * 结束拖动，精确seek到最终位置
+   */
+  void endScrub(int position);
+
+  /**
+   * 0.5到2倍速正常播放，声音不变调；更快或者负数(倒退)时只显示关键帧
+   */
   void setSpeed(float speed);
 
   void setLoop(boolean isLoop);
@@ -41,6 +86,36 @@ public interface IMediaPlayer {
 
   void setOnStartListener(OnStartListener listener);
 
+  void setOnRenderedFirstFrameListener(OnRenderedFirstFrameListener listener);
+
+  void setOnVideoSizeChangedListener(OnVideoSizeChangedListener listener);
+
+  void setOnPlaylistItemChangedListener(OnPlaylistItemChangedListener listener);
+
+  /**
+   * 起播各阶段的时间点记录到trace里，传null表示不记录
+   */
+  void setStartupTrace(StartupTrace trace);
+
+  /**
+   * 当前缓冲占用的内存字节数
+   */
+  long getBufferedBytes();
+
+  /**
+   * 限制缓冲占用的内存字节数，0表示不限制
+   */
+  void setMaxBufferBytes(int maxBytes);
+
+  /**
+   * 选轨时视频分辨率的上限，一般是画面实际显示的大小，0表示不限制
+   */
+  void setVideoSizeLimit(int maxWidth, int maxHeight);
+
+
+  interface OnInitializedListener {
+    void onInitialized(IMediaPlayer mp);
+  }
 
   interface OnPreparedListener {
     void onPrepared(IMediaPlayer mp);
@@ -50,6 +125,24 @@ public interface IMediaPlayer {
     void OnStart(IMediaPlayer mp);
   }
 
+  /**
+   * 起播、seek或者换surface之后第一帧画面渲染出来
+   */
+  interface OnRenderedFirstFrameListener {
+    void onRenderedFirstFrame(IMediaPlayer mp);
+  }
+
+  interface OnVideoSizeChangedListener {
+    void onVideoSizeChanged(IMediaPlayer mp, int width, int height);
+  }
+
+  /**
+   * 播放列表切换到了另一项，自动播完切换或者调用next()/previous()
+   */
+  interface OnPlaylistItemChangedListener {
+    void onPlaylistItemChanged(IMediaPlayer mp, int index, String url);
+  }
+
   interface OnErrorListener {
     boolean onError(IMediaPlayer mp, int what, Exception error);
   }
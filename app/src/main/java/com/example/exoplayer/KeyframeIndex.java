@@ -0,0 +1,428 @@
+package com.example.exoplayer;
+
+import android.net.Uri;
+import android.util.AtomicFile;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * MP4视频轨道的关键帧表：每个同步帧的时间(us)和在文件中的偏移，用两个long数组保存。
+ * 从moov里的stss/stts/stsz/stsc/stco解析得到，可以持久化，每个缓存key只需要解析一次。
+ * 时间是解码时间，没有处理ctts和edit list，用于预览和关键帧seek足够。
+ */
+final class KeyframeIndex {
+    private static final int MAGIC = 0x4b465849;
+    private static final int VERSION = 1;
+    /**
+     * moov超过这个大小就不解析了
+     */
+    private static final int MAX_MOOV_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_TOP_LEVEL_BOXES = 64;
+
+    private static final int TYPE_FTYP = Util.getIntegerCodeForString("ftyp");
+    private static final int TYPE_MOOV = Util.getIntegerCodeForString("moov");
+    private static final int TYPE_TRAK = Util.getIntegerCodeForString("trak");
+    private static final int TYPE_MDIA = Util.getIntegerCodeForString("mdia");
+    private static final int TYPE_MDHD = Util.getIntegerCodeForString("mdhd");
+    private static final int TYPE_HDLR = Util.getIntegerCodeForString("hdlr");
+    private static final int TYPE_VIDE = Util.getIntegerCodeForString("vide");
+    private static final int TYPE_MINF = Util.getIntegerCodeForString("minf");
+    private static final int TYPE_STBL = Util.getIntegerCodeForString("stbl");
+    private static final int TYPE_STSS = Util.getIntegerCodeForString("stss");
+    private static final int TYPE_STTS = Util.getIntegerCodeForString("stts");
+    private static final int TYPE_STSZ = Util.getIntegerCodeForString("stsz");
+    private static final int TYPE_STSC = Util.getIntegerCodeForString("stsc");
+    private static final int TYPE_STCO = Util.getIntegerCodeForString("stco");
+    private static final int TYPE_CO64 = Util.getIntegerCodeForString("co64");
+
+    final String key;
+    private final long[] timesUs;
+    private final long[] offsets;
+
+    KeyframeIndex(String key, long[] timesUs, long[] offsets) {
+        this.key = key;
+        this.timesUs = timesUs;
+        this.offsets = offsets;
+    }
+
+    int size() {
+        return timesUs.length;
+    }
+
+    long getTimeUs(int index) {
+        return timesUs[index];
+    }
+
+    long getOffset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * @return 时间不晚于timeUs的最后一个关键帧，timeUs在第一个关键帧之前时返回0，没有关键帧时返回-1
+     */
+    int floorIndex(long timeUs) {
+        if (timesUs.length == 0) {
+            return -1;
+        }
+        int index = Util.binarySearchFloor(timesUs, timeUs, true, false);
+        return Math.max(index, 0);
+    }
+
+    /**
+     * 间隔至少minIntervalUs的关键帧子集，用来决定生成哪些缩略图
+     */
+    KeyframeIndex sparse(long minIntervalUs) {
+        int count = 0;
+        long[] sparseTimes = new long[timesUs.length];
+        long[] sparseOffsets = new long[offsets.length];
+        long lastTimeUs = C.TIME_UNSET;
+        for (int i = 0; i < timesUs.length; i++) {
+            if (lastTimeUs == C.TIME_UNSET || timesUs[i] - lastTimeUs >= minIntervalUs) {
+                sparseTimes[count] = timesUs[i];
+                sparseOffsets[count] = offsets[i];
+                lastTimeUs = timesUs[i];
+                count++;
+            }
+        }
+        long[] times = new long[count];
+        long[] positions = new long[count];
+        System.arraycopy(sparseTimes, 0, times, 0, count);
+        System.arraycopy(sparseOffsets, 0, positions, 0, count);
+        return new KeyframeIndex(key, times, positions);
+    }
+
+    void write(File file) throws IOException {
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream outputStream = atomicFile.startWrite();
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(outputStream));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(key);
+            output.writeInt(timesUs.length);
+            for (long timeUs : timesUs) {
+                output.writeLong(timeUs);
+            }
+            for (long offset : offsets) {
+                output.writeLong(offset);
+            }
+            output.flush();
+            atomicFile.finishWrite(outputStream);
+        } catch (IOException e) {
+            atomicFile.failWrite(outputStream);
+            throw e;
+        }
+    }
+
+    /**
+     * @return 文件不存在、格式不对或者key不一致时返回null
+     */
+    @Nullable
+    static KeyframeIndex read(File file, String key) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION || !key.equals(input.readUTF())) {
+                return null;
+            }
+            int count = input.readInt();
+            if (count < 0 || count > file.length() / 16) {
+                return null;
+            }
+            long[] timesUs = new long[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                timesUs[i] = input.readLong();
+            }
+            for (int i = 0; i < count; i++) {
+                offsets[i] = input.readLong();
+            }
+            return new KeyframeIndex(key, timesUs, offsets);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 从头开始逐个读顶层box找到moov并解析，mdat之类的大box直接跳过
+     *
+     * @return 不是MP4或者没有视频轨道时返回null
+     */
+    @Nullable
+    static KeyframeIndex build(DataSource dataSource, Uri uri, String key) throws IOException {
+        byte[] header = new byte[16];
+        long position = 0;
+        for (int i = 0; i < MAX_TOP_LEVEL_BOXES; i++) {
+            int headerLength = readRange(dataSource, new DataSpec(uri, position, header.length, key), header);
+            if (headerLength < 8) {
+                return null;
+            }
+            ParsableByteArray data = new ParsableByteArray(header, headerLength);
+            long size = data.readUnsignedInt();
+            int type = data.readInt();
+            int headerSize = 8;
+            if (size == 1) {
+                if (headerLength < 16) {
+                    return null;
+                }
+                size = data.readUnsignedLongToLong();
+                headerSize = 16;
+            }
+            if (i == 0 && type != TYPE_FTYP) {
+                return null;
+            }
+            if (type == TYPE_MOOV) {
+                if (size < headerSize || size - headerSize > MAX_MOOV_BYTES) {
+                    return null;
+                }
+                byte[] moov = new byte[(int) (size - headerSize)];
+                int read = readRange(dataSource, new DataSpec(uri, position + headerSize, moov.length, key), moov);
+                if (read < moov.length) {
+                    return null;
+                }
+                return parseMoov(key, moov);
+            }
+            if (size < headerSize) {
+                // size为0表示一直到文件结尾，后面不会再有moov
+                return null;
+            }
+            position += size;
+        }
+        return null;
+    }
+
+    private static int readRange(DataSource dataSource, DataSpec dataSpec, byte[] buffer) throws IOException {
+        try {
+            dataSource.open(dataSpec);
+            int total = 0;
+            while (total < buffer.length) {
+                int read = dataSource.read(buffer, total, buffer.length - total);
+                if (read == C.RESULT_END_OF_INPUT) {
+                    break;
+                }
+                total += read;
+            }
+            return total;
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    @Nullable
+    static KeyframeIndex parseMoov(String key, byte[] moov) {
+        BoxReader reader = new BoxReader(moov);
+        int trakStart = 0;
+        while (true) {
+            int trak = reader.find(trakStart, moov.length, TYPE_TRAK);
+            if (trak < 0) {
+                return null;
+            }
+            int trakEnd = reader.boxEnd;
+            trakStart = trakEnd;
+            int mdia = reader.find(trak, trakEnd, TYPE_MDIA);
+            if (mdia < 0) {
+                continue;
+            }
+            int mdiaEnd = reader.boxEnd;
+            int hdlr = reader.find(mdia, mdiaEnd, TYPE_HDLR);
+            if (hdlr < 0) {
+                continue;
+            }
+            reader.data.setPosition(hdlr + 8);
+            if (reader.data.readInt() != TYPE_VIDE) {
+                continue;
+            }
+            int mdhd = reader.find(mdia, mdiaEnd, TYPE_MDHD);
+            int minf = reader.find(mdia, mdiaEnd, TYPE_MINF);
+            if (mdhd < 0 || minf < 0) {
+                return null;
+            }
+            int stbl = reader.find(minf, reader.boxEnd, TYPE_STBL);
+            if (stbl < 0) {
+                return null;
+            }
+            int stblEnd = reader.boxEnd;
+            reader.data.setPosition(mdhd);
+            int version = reader.data.readUnsignedByte();
+            reader.data.skipBytes(version == 1 ? 3 + 8 + 8 : 3 + 4 + 4);
+            long timescale = reader.data.readUnsignedInt();
+            return parseSampleTable(key, reader, stbl, stblEnd, timescale);
+        }
+    }
+
+    @Nullable
+    private static KeyframeIndex parseSampleTable(String key, BoxReader reader, int stbl, int stblEnd, long timescale) {
+        ParsableByteArray data = reader.data;
+        int stts = reader.find(stbl, stblEnd, TYPE_STTS);
+        int stsz = reader.find(stbl, stblEnd, TYPE_STSZ);
+        int stsc = reader.find(stbl, stblEnd, TYPE_STSC);
+        int stco = reader.find(stbl, stblEnd, TYPE_STCO);
+        boolean chunkOffsets64 = false;
+        if (stco < 0) {
+            stco = reader.find(stbl, stblEnd, TYPE_CO64);
+            chunkOffsets64 = true;
+        }
+        if (timescale <= 0 || stts < 0 || stsz < 0 || stsc < 0 || stco < 0) {
+            return null;
+        }
+        // 没有stss表示每一帧都是关键帧
+        int stss = reader.find(stbl, stblEnd, TYPE_STSS);
+        int[] syncSamples = null;
+        if (stss >= 0) {
+            data.setPosition(stss + 4);
+            syncSamples = new int[data.readUnsignedIntToInt()];
+            for (int i = 0; i < syncSamples.length; i++) {
+                syncSamples[i] = data.readUnsignedIntToInt();
+            }
+        }
+
+        data.setPosition(stsz + 4);
+        int fixedSampleSize = data.readUnsignedIntToInt();
+        int sampleCount = data.readUnsignedIntToInt();
+        int sampleSizesPosition = data.getPosition();
+
+        data.setPosition(stco + 4);
+        long[] chunkOffsets = new long[data.readUnsignedIntToInt()];
+        for (int i = 0; i < chunkOffsets.length; i++) {
+            chunkOffsets[i] = chunkOffsets64 ? data.readUnsignedLongToLong() : data.readUnsignedInt();
+        }
+
+        data.setPosition(stsc + 4);
+        int stscCount = data.readUnsignedIntToInt();
+        int[] stscFirstChunks = new int[stscCount];
+        int[] stscSamplesPerChunk = new int[stscCount];
+        for (int i = 0; i < stscCount; i++) {
+            stscFirstChunks[i] = data.readUnsignedIntToInt();
+            stscSamplesPerChunk[i] = data.readUnsignedIntToInt();
+            data.skipBytes(4);
+        }
+
+        data.setPosition(stts + 4);
+        int sttsRemainingEntries = data.readUnsignedIntToInt();
+        int sttsPosition = data.getPosition();
+        if (sampleCount == 0 || chunkOffsets.length == 0 || stscCount == 0 || sttsRemainingEntries == 0) {
+            return null;
+        }
+
+        int keyframeCount = syncSamples == null ? sampleCount : syncSamples.length;
+        long[] timesUs = new long[keyframeCount];
+        long[] offsets = new long[keyframeCount];
+        int found = 0;
+        int nextSync = 0;
+
+        int stscIndex = 0;
+        int chunk = 0;
+        int remainingInChunk = stscSamplesPerChunk[0];
+        long offset = chunkOffsets[0];
+        int sttsRemainingSamples = 0;
+        long sttsDelta = 0;
+        long decodeTime = 0;
+        for (int sample = 0; sample < sampleCount && found < keyframeCount; sample++) {
+            while (remainingInChunk == 0) {
+                chunk++;
+                if (chunk >= chunkOffsets.length) {
+                    return null;
+                }
+                if (stscIndex + 1 < stscCount && stscFirstChunks[stscIndex + 1] - 1 == chunk) {
+                    stscIndex++;
+                }
+                remainingInChunk = stscSamplesPerChunk[stscIndex];
+                offset = chunkOffsets[chunk];
+            }
+            while (sttsRemainingSamples == 0 && sttsRemainingEntries > 0) {
+                data.setPosition(sttsPosition);
+                sttsRemainingSamples = data.readUnsignedIntToInt();
+                sttsDelta = data.readUnsignedInt();
+                sttsPosition = data.getPosition();
+                sttsRemainingEntries--;
+            }
+
+            if (syncSamples == null || (nextSync < syncSamples.length && syncSamples[nextSync] == sample + 1)) {
+                timesUs[found] = Util.scaleLargeTimestamp(decodeTime, C.MICROS_PER_SECOND, timescale);
+                offsets[found] = offset;
+                found++;
+                nextSync++;
+            }
+
+            int sampleSize;
+            if (fixedSampleSize != 0) {
+                sampleSize = fixedSampleSize;
+            } else {
+                data.setPosition(sampleSizesPosition + sample * 4);
+                sampleSize = data.readUnsignedIntToInt();
+            }
+            offset += sampleSize;
+            remainingInChunk--;
+            decodeTime += sttsDelta;
+            sttsRemainingSamples--;
+        }
+        if (found < keyframeCount) {
+            long[] foundTimes = new long[found];
+            long[] foundOffsets = new long[found];
+            System.arraycopy(timesUs, 0, foundTimes, 0, found);
+            System.arraycopy(offsets, 0, foundOffsets, 0, found);
+            timesUs = foundTimes;
+            offsets = foundOffsets;
+        }
+        return new KeyframeIndex(key, timesUs, offsets);
+    }
+
+    /**
+     * 在内存里的moov中按类型查找子box
+     */
+    private static final class BoxReader {
+        final ParsableByteArray data;
+        /**
+         * 最近一次find找到的box的结束位置
+         */
+        int boxEnd;
+
+        BoxReader(byte[] moov) {
+            this.data = new ParsableByteArray(moov);
+        }
+
+        /**
+         * @return 找到的box内容的起始位置(跳过header)，找不到返回-1
+         */
+        int find(int start, int end, int type) {
+            int position = start;
+            while (position + 8 <= end) {
+                data.setPosition(position);
+                long size = data.readUnsignedInt();
+                int boxType = data.readInt();
+                int headerSize = 8;
+                if (size == 1) {
+                    size = data.readUnsignedLongToLong();
+                    headerSize = 16;
+                } else if (size == 0) {
+                    size = end - position;
+                }
+                if (size < headerSize || position + size > end) {
+                    return -1;
+                }
+                if (boxType == type) {
+                    boxEnd = (int) (position + size);
+                    return position + headerSize;
+                }
+                position += size;
+            }
+            return -1;
+        }
+    }
+}
@@ -2,7 +2,6 @@ package com.example.exoplayer;
 
 import androidx.appcompat.app.AppCompatActivity;
 
-import android.annotation.SuppressLint;
 import android.content.Intent;
 import android.os.Bundle;
 import android.widget.ProgressBar;
@@ -10,24 +9,32 @@ import android.widget.TextView;
 
 public class MainActivity extends AppCompatActivity implements OnPlayStatusListener {
 
+    private static final String PATH = "http://vfx.mtime.cn/Video/2019/03/21/mp4/190321153853126488.mp4";
+
     private BaseVideoView videoView;
     private TextView time;
     private ProgressBar progressBar;
+    private final char[] timeText = new char[12];
+    private int lastTimeTenths = -1;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
         setContentView(R.layout.activity_main);
-        String path = "http://vfx.mtime.cn/Video/2019/03/21/mp4/190321153853126488.mp4";
         videoView = findViewById(R.id.videoView);
         time = findViewById(R.id.time);
         progressBar = findViewById(R.id.processBar);
 
-        videoView.setPath(path, false);
         videoView.setOnPlayStatusListener(this);
+        // 上一个页面交过来的播放器直接接着用，不用重新prepare
+        if (!videoView.attachPlayer(PlayerHandoff.take(PATH))) {
+            MediaPlayerPool.get(this).prewarm(1);
+            videoView.setPath(PATH, false);
+        }
 
         findViewById(R.id.newActivity).setOnClickListener(v -> {
+            PlayerHandoff.park(videoView.detachPlayer());
             Intent intent = new Intent();
             intent.setClass(getApplicationContext(), MainActivity.class);
             startActivity(intent);
@@ -37,13 +44,19 @@ public class MainActivity extends AppCompatActivity implements OnPlayStatusListe
     @Override
     protected void onResume() {
         super.onResume();
+        videoView.attachPlayer(PlayerHandoff.take(PATH));
         videoView.start();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        videoView.pause();
+        if (isFinishing()) {
+            // 返回上一个页面时把播放器交回去
+            PlayerHandoff.park(videoView.detachPlayer());
+        } else {
+            videoView.pause();
+        }
     }
 
 
@@ -68,13 +81,25 @@ public class MainActivity extends AppCompatActivity implements OnPlayStatusListe
 
     }
 
-    @SuppressLint("SetTextI18n")
     @Override
     public void onProgressUpdate(int progress) {
         progressBar.setProgress(progress / 10);
-        int second = progress / 1000;
-        int remind = (progress - second * 1000) / 100;
-        time.setText(second + "." + remind);
+        int tenths = progress / 100;
+        if (tenths == lastTimeTenths) {
+            return;
+        }
+        lastTimeTenths = tenths;
+        // 每帧都可能回调，拼字符串会不停分配内存，这里直接写进复用的char数组
+        int end = timeText.length;
+        int start = end;
+        timeText[--start] = (char) ('0' + tenths % 10);
+        timeText[--start] = '.';
+        int second = tenths / 10;
+        do {
+            timeText[--start] = (char) ('0' + second % 10);
+            second /= 10;
+        } while (second > 0 && start > 0);
+        time.setText(timeText, start, end - start);
     }
 
     @Override
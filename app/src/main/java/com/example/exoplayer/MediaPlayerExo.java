@@ -1,18 +1,27 @@
 package com.example.exoplayer;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.view.Surface;
 
-import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.DefaultRenderersFactory;
 import com.google.android.exoplayer2.ExoPlaybackException;
 import com.google.android.exoplayer2.Format;
-import com.google.android.exoplayer2.LoadControl;
+import com.google.android.exoplayer2.PlaybackParameters;
 import com.google.android.exoplayer2.Player;
 import com.google.android.exoplayer2.SeekParameters;
 import com.google.android.exoplayer2.SimpleExoPlayer;
 import com.google.android.exoplayer2.analytics.AnalyticsListener;
-import com.google.android.exoplayer2.database.ExoDatabaseProvider;
+import com.google.android.exoplayer2.decoder.DecoderCounters;
+import com.google.android.exoplayer2.mediacodec.MediaCodecRenderer;
+import com.google.android.exoplayer2.source.ConcatenatingMediaSource;
 import com.google.android.exoplayer2.source.ExtractorMediaSource;
 import com.google.android.exoplayer2.source.LoopingMediaSource;
 import com.google.android.exoplayer2.source.MediaSource;
@@ -20,19 +29,14 @@ import com.google.android.exoplayer2.trackselection.AdaptiveTrackSelection;
 import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
 import com.google.android.exoplayer2.trackselection.TrackSelection;
 import com.google.android.exoplayer2.trackselection.TrackSelector;
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
 import com.google.android.exoplayer2.upstream.DataSource;
-import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
-import com.google.android.exoplayer2.upstream.DefaultHttpDataSourceFactory;
-import com.google.android.exoplayer2.upstream.FileDataSource;
-import com.google.android.exoplayer2.upstream.cache.CacheDataSink;
-import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
-import com.google.android.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor;
 import com.google.android.exoplayer2.upstream.cache.SimpleCache;
 import com.google.android.exoplayer2.util.Clock;
 import com.google.android.exoplayer2.util.Log;
-import com.google.android.exoplayer2.util.Util;
 
-import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 public class MediaPlayerExo implements IMediaPlayer {
     private static int count = 0;
@@ -41,18 +45,91 @@ public class MediaPlayerExo implements IMediaPlayer {
     public static final int MAX_BUFFER_MS = 10000; //最高数据加载时机，默认值为30秒
     public static final int BUFFER_FOR_PLAYBACK_MS = 1500; //最低数据播放时机， 默认值为2.5秒
     public static final int BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS = 3500; //最低数据重新播放时机，默认值为5秒
+    public static final int CACHE_AWAIT_MS = 300; //缓存还没初始化完成时最多等待的时间，超时则不走缓存
+    public static final float MIN_SPEED = 0.5f; //正常变速播放的范围，声音变速不变调
+    public static final float MAX_SMOOTH_SPEED = 2f;
+    public static final float MAX_TRICK_SPEED = 16f; //超过MAX_SMOOTH_SPEED或者倒退时只显示关键帧
+    private static final long TRICK_FRAME_INTERVAL_MS = 200; //快进快退时每隔多久显示一个关键帧
+    private static final int SEEK_EXACT = 0; //普通的精确seek
+    private static final int SEEK_SCRUB = 1; //拖动过程中的关键帧seek
+    private static final int SEEK_TRICK = 2; //快进快退定时的关键帧seek
+    private static final long SEEK_TIMEOUT_MS = 2000; //seek后这么久还没渲染出画面就不再等，避免拖动和快进快退卡住
+    private static final long VIDEO_DISABLE_DELAY_MS = 1000; //没有surface这么久才关视频渲染器，交接和切换view时很快会有新surface
+
+    /**
+     * 创建SimpleExoPlayer和MediaSource的后台线程，所有播放器共用
+     */
+    private static Handler sSetupHandler;
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
 
     private SimpleExoPlayer exoPlayer;
+    private AdaptiveLoadControl loadControl;
+    private DefaultTrackSelector trackSelector;
+    private int maxVideoWidth;
+    private int maxVideoHeight;
+    private int videoRendererIndex = C.INDEX_UNSET;
+    /**
+     * 没有surface时关掉视频渲染器，只播声音
+     */
+    private boolean videoDisabled;
+    private long offscreenStartMs = C.TIME_UNSET;
+    private long offscreenStartCpuMs;
+    private long offscreenStartBytes;
     private Context context;
 
     private OnPreparedListener mOnPreparedListener;
     private OnStartListener mOnStartListener;
     private OnErrorListener mOnErrorListener;
+    private OnRenderedFirstFrameListener mOnRenderedFirstFrameListener;
+    private OnVideoSizeChangedListener mOnVideoSizeChangedListener;
+    private OnPlaylistItemChangedListener mOnPlaylistItemChangedListener;
     private int mWidth;
     private int mHeight;
     private int mRotationDegrees;
     private Surface mSurface;
     private boolean isPrepared = false;
+    private StartupTrace mStartupTrace;
+    private boolean scrubbing;
+    private boolean seekInFlight;
+    private int seekType;
+    private int pendingScrubPosition = -1;
+    private long seekStartMs = C.TIME_UNSET;
+    private int scrubSeekCount;
+    private int scrubCoalescedCount;
+    private final PlaybackMetricsCollector metricsCollector = new PlaybackMetricsCollector();
+    private ConcatenatingMediaSource playlist;
+    private final ArrayList<String> playlistUrls = new ArrayList<>();
+    private int currentIndex;
+    /**
+     * 每次prepare/reset加一，后台建好的MediaSource回到主线程时已经过期就丢掉
+     */
+    private int prepareToken;
+    /**
+     * 正在后台创建播放器时等待回调的listener，没有在创建时为null
+     */
+    private ArrayList<OnInitializedListener> pendingInitListeners;
+    private String url;
+    private float speed = 1f;
+    /**
+     * 快进快退的倍速，0表示不在trick play。期间播放器一直暂停，定时seek到关键帧
+     */
+    private float trickSpeed;
+    private boolean trickPaused;
+    private long trickBasePositionMs;
+    private long trickBaseRealtimeMs;
+    private final TrickPlayPlanner trickPlanner = new TrickPlayPlanner();
+    private float trickSavedVolume = 1f;
+    private int trickSkippedCount;
+    private final Runnable trickRunnable = this::onTrickTick;
+    private final Runnable seekTimeoutRunnable = () -> onSeekFinished(false);
+    private final Runnable videoDisableRunnable = () -> setVideoDisabled(true);
+    /**
+     * 当前倍速开始时的计数，换倍速时把这一段的解码负载记到PlaybackMetrics
+     */
+    private long speedStartMs = C.TIME_UNSET;
+    private long speedStartCpuMs;
+    private int speedStartDecoded;
+    private int speedStartRendered;
 
     public MediaPlayerExo(Context context) {
         this.context = context;
@@ -61,6 +138,10 @@ public class MediaPlayerExo implements IMediaPlayer {
     private AnalyticsListener analyticsListener = new AnalyticsListener() {
         @Override
         public void onPlayerError(EventTime eventTime, ExoPlaybackException error) {
+            onSeekFinished(false);
+            if (error.type == ExoPlaybackException.TYPE_RENDERER && context != null) {
+                recordDecoderInitFailures(error.getRendererException());
+            }
             if (mOnErrorListener != null) {
                 Log.e(TAG, "msg", error);
                 mOnErrorListener.onError(MediaPlayerExo.this, error.type, error);
@@ -91,6 +172,9 @@ public class MediaPlayerExo implements IMediaPlayer {
                         mWidth = format.width;
                         mHeight = format.height;
                         mRotationDegrees = format.rotationDegrees;
+                        if (mStartupTrace != null) {
+                            mStartupTrace.mark(StartupTrace.PHASE_READY);
+                        }
                         Log.e(TAG, "STATE_READY.width=" + format.width + "  height=" + format.height + "  duration=" + exoPlayer.getDuration() + "   frameRate=" + format.frameRate);
                         if (mOnPreparedListener != null && !isPrepared) {
                             mOnPreparedListener.onPrepared(MediaPlayerExo.this);
@@ -98,10 +182,66 @@ public class MediaPlayerExo implements IMediaPlayer {
                         }
                     }
                     break;
+                case Player.STATE_IDLE:
+                case Player.STATE_ENDED:
+                    onSeekFinished(false);
+                    break;
                 default:
                     break;
             }
         }
+
+        @Override
+        public void onDecoderInitialized(EventTime eventTime, int trackType, String decoderName, long initializationDurationMs) {
+            if (context != null) {
+                PlaybackHints.get(context).onDecoderInitialized(decoderName, initializationDurationMs);
+            }
+        }
+
+        @Override
+        public void onRenderedFirstFrame(EventTime eventTime, Surface surface) {
+            if (mStartupTrace != null) {
+                mStartupTrace.mark(StartupTrace.PHASE_FIRST_FRAME);
+            }
+            onSeekFinished(true);
+            if (mOnRenderedFirstFrameListener != null) {
+                mOnRenderedFirstFrameListener.onRenderedFirstFrame(MediaPlayerExo.this);
+            }
+        }
+
+        @Override
+        public void onPositionDiscontinuity(EventTime eventTime, int reason) {
+            checkPlaylistItemChanged();
+        }
+
+        @Override
+        public void onTimelineChanged(EventTime eventTime, int reason) {
+            checkPlaylistItemChanged();
+        }
+
+        @Override
+        public void onVideoSizeChanged(EventTime eventTime, int width, int height, int unappliedRotationDegrees,
+                                       float pixelWidthHeightRatio) {
+            if (width == mWidth && height == mHeight) {
+                return;
+            }
+            mWidth = width;
+            mHeight = height;
+            if (mOnVideoSizeChangedListener != null) {
+                mOnVideoSizeChangedListener.onVideoSizeChanged(MediaPlayerExo.this, width, height);
+            }
+        }
+
+        @Override
+        public void onSeekProcessed(EventTime eventTime) {
+            // 没有surface、没有视频轨、或者停在IDLE/ENDED时不会渲染，seek处理完就算结束。
+            // BUFFERING时等第一帧，等不到由seekTimeoutRunnable兜底
+            int state = exoPlayer == null ? Player.STATE_IDLE : exoPlayer.getPlaybackState();
+            if (mSurface == null || state == Player.STATE_IDLE || state == Player.STATE_ENDED
+                    || exoPlayer.getVideoFormat() == null) {
+                onSeekFinished(false);
+            }
+        }
     };
 
     @Override
@@ -109,21 +249,110 @@ public class MediaPlayerExo implements IMediaPlayer {
         if (exoPlayer != null) {
             return;
         }
+        AdaptiveLoadControl control = createLoadControl(context);
+        DefaultTrackSelector selector = createTrackSelector(context);
+        onPlayerBuilt(buildPlayer(context, control, selector), control, selector);
+    }
+
+    @Override
+    public void initAsync(OnInitializedListener listener) {
+        if (exoPlayer != null) {
+            listener.onInitialized(this);
+            return;
+        }
+        if (pendingInitListeners != null) {
+            pendingInitListeners.add(listener);
+            return;
+        }
+        pendingInitListeners = new ArrayList<>();
+        pendingInitListeners.add(listener);
+        Context appContext = context;
+        getSetupHandler().post(() -> {
+            AdaptiveLoadControl control = createLoadControl(appContext);
+            DefaultTrackSelector selector = createTrackSelector(appContext);
+            SimpleExoPlayer player = buildPlayer(appContext, control, selector);
+            sMainHandler.post(() -> {
+                ArrayList<OnInitializedListener> listeners = pendingInitListeners;
+                pendingInitListeners = null;
+                if (context == null) {
+                    // 建好之前已经release了
+                    player.release();
+                    return;
+                }
+                onPlayerBuilt(player, control, selector);
+                for (OnInitializedListener pending : listeners) {
+                    pending.onInitialized(this);
+                }
+            });
+        });
+    }
+
+    private static AdaptiveLoadControl createLoadControl(Context context) {
+        // 缓冲阈值根据带宽、卡顿次数和内存等级动态调整，上面的常量是中等网络下的取值
+        BandwidthMeter bandwidthMeter = PlaybackHints.getBandwidthMeter(context);
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClassMb = activityManager == null ? 0 : activityManager.getMemoryClass();
+        return new AdaptiveLoadControl(bandwidthMeter, memoryClassMb);
+    }
+
+    private static DefaultTrackSelector createTrackSelector(Context context) {
         // 创建轨道选择工厂
         TrackSelection.Factory videoTrackSelectionFactory = new AdaptiveTrackSelection.Factory();
         // 创建轨道选择器实例
-        TrackSelector trackSelector = new DefaultTrackSelector(context, videoTrackSelectionFactory);
-        LoadControl loadControl = new DefaultLoadControl.Builder()
-                .setBufferDurationsMs(MIN_BUFFER_MS, MAX_BUFFER_MS, BUFFER_FOR_PLAYBACK_MS, BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS)
-                .createDefaultLoadControl();
-        this.exoPlayer = new SimpleExoPlayer.Builder(context)
+        return new DefaultTrackSelector(context, videoTrackSelectionFactory);
+    }
+
+    /**
+     * 可以在任意线程调用，播放器的回调和之后的操作都在主线程
+     */
+    private static SimpleExoPlayer buildPlayer(Context context, AdaptiveLoadControl loadControl,
+                                               TrackSelector trackSelector) {
+        // 解码器按上次成功的顺序选择，失败时换下一个，结果都记到PlaybackHints
+        DefaultRenderersFactory renderersFactory = new DefaultRenderersFactory(context)
+                .setMediaCodecSelector(PlaybackHints.CODEC_SELECTOR)
+                .setEnableDecoderFallback(true);
+        return new SimpleExoPlayer.Builder(context, renderersFactory)
                 .setTrackSelector(trackSelector)
                 .setLoadControl(loadControl)
+                .setBandwidthMeter(PlaybackHints.getBandwidthMeter(context))
+                .setLooper(Looper.getMainLooper())
                 .setClock(Clock.DEFAULT)
                 .build();
+    }
+
+    /**
+     * 打开了解码器回退时，异常链上是依次失败的每个解码器
+     */
+    private void recordDecoderInitFailures(Exception exception) {
+        if (!(exception instanceof MediaCodecRenderer.DecoderInitializationException)) {
+            return;
+        }
+        PlaybackHints hints = PlaybackHints.get(context);
+        MediaCodecRenderer.DecoderInitializationException e =
+                (MediaCodecRenderer.DecoderInitializationException) exception;
+        while (e != null) {
+            if (e.codecInfo != null) {
+                hints.onDecoderInitFailed(e.mimeType, e.codecInfo.name);
+            }
+            e = e.fallbackDecoderInitializationException;
+        }
+    }
+
+    private void onPlayerBuilt(SimpleExoPlayer player, AdaptiveLoadControl control, DefaultTrackSelector selector) {
+        this.loadControl = control;
+        this.trackSelector = selector;
+        for (int i = 0; i < player.getRendererCount(); i++) {
+            if (player.getRendererType(i) == C.TRACK_TYPE_VIDEO) {
+                videoRendererIndex = i;
+                break;
+            }
+        }
+        applyVideoSizeLimit();
+        this.exoPlayer = player;
         this.exoPlayer.setRepeatMode(Player.REPEAT_MODE_ONE);
         this.exoPlayer.setSeekParameters(SeekParameters.EXACT);
         this.exoPlayer.addAnalyticsListener(analyticsListener);
+        this.exoPlayer.addAnalyticsListener(metricsCollector);
         isPrepared = false;
         Log.e(TAG, "init");
     }
@@ -132,15 +361,164 @@ public class MediaPlayerExo implements IMediaPlayer {
     public void prepare(String url) {
         if (this.exoPlayer != null) {
             isPrepared = false;
-            this.exoPlayer.prepare(buildMediaSource(Uri.parse(url), null));
-            this.exoPlayer.seekTo(0);
+            playlist = null;
+            playlistUrls.clear();
+            currentIndex = 0;
+            this.url = url;
+            metricsCollector.beginSession(url);
+            recordSpeedSegment();
             Log.e(TAG, "prepare:" + url);
+            Context appContext = context;
+            StartupTrace trace = mStartupTrace;
+            int token = ++prepareToken;
+            // 等缓存初始化和创建MediaSource都放到后台线程
+            getSetupHandler().post(() -> {
+                MediaSource source = buildMediaSource(appContext, Uri.parse(url), trace);
+                sMainHandler.post(() -> {
+                    if (token != prepareToken || this.exoPlayer == null) {
+                        return;
+                    }
+                    this.exoPlayer.prepare(source);
+                    this.exoPlayer.seekTo(0);
+                });
+            });
+        }
+    }
+
+    @Override
+    public void setPlaylist(List<String> urls, int startIndex) {
+        if (this.exoPlayer == null || urls == null || urls.isEmpty()) {
+            return;
+        }
+        startIndex = Math.max(0, Math.min(startIndex, urls.size() - 1));
+        isPrepared = false;
+        playlistUrls.clear();
+        playlistUrls.addAll(urls);
+        currentIndex = startIndex;
+        metricsCollector.beginSession(urls.get(startIndex));
+        recordSpeedSegment();
+        // 同一个播放器、同一套解码器依次播放，下一项在当前项缓冲完后接着缓冲。
+        // 各项的MediaSource在后台线程创建
+        ConcatenatingMediaSource concatenating = new ConcatenatingMediaSource();
+        playlist = concatenating;
+        this.exoPlayer.setRepeatMode(Player.REPEAT_MODE_OFF);
+        prefetchNext();
+        Log.e(TAG, "setPlaylist, size=" + urls.size() + ", startIndex=" + startIndex);
+        Context appContext = context;
+        StartupTrace trace = mStartupTrace;
+        ArrayList<String> items = new ArrayList<>(urls);
+        int start = startIndex;
+        int token = ++prepareToken;
+        getSetupHandler().post(() -> {
+            ArrayList<MediaSource> sources = new ArrayList<>(items.size());
+            for (int i = 0; i < items.size(); i++) {
+                sources.add(buildItemSource(appContext, Uri.parse(items.get(i)), i == start ? trace : null));
+            }
+            sMainHandler.post(() -> {
+                if (token != prepareToken || this.exoPlayer == null) {
+                    return;
+                }
+                concatenating.addMediaSources(0, sources);
+                this.exoPlayer.prepare(concatenating);
+                this.exoPlayer.seekTo(start, 0);
+            });
+        });
+    }
+
+    @Override
+    public void next() {
+        if (this.exoPlayer != null && playlist != null && this.exoPlayer.hasNext()) {
+            this.exoPlayer.next();
+        }
+    }
+
+    @Override
+    public void previous() {
+        if (this.exoPlayer != null && playlist != null && this.exoPlayer.hasPrevious()) {
+            this.exoPlayer.previous();
+        }
+    }
+
+    @Override
+    public void insert(int index, String url) {
+        if (playlist == null) {
+            return;
+        }
+        // 和setPlaylist()走同一个后台线程，保证按调用顺序加到列表里
+        ConcatenatingMediaSource concatenating = playlist;
+        Context appContext = context;
+        int token = prepareToken;
+        getSetupHandler().post(() -> {
+            MediaSource source = buildItemSource(appContext, Uri.parse(url), null);
+            sMainHandler.post(() -> {
+                if (token == prepareToken) {
+                    addPlaylistItem(concatenating, index, url, source);
+                }
+            });
+        });
+    }
+
+    /**
+     * url列表、currentIndex和播放器里的列表在同一次主线程回调里更新，
+     * 中间不会有按窗口下标取错url或者误判切换了当前项的时候
+     */
+    private void addPlaylistItem(ConcatenatingMediaSource concatenating, int index, String url, MediaSource source) {
+        int sourceIndex = Math.max(0, Math.min(index, playlistUrls.size()));
+        playlistUrls.add(sourceIndex, url);
+        concatenating.addMediaSource(sourceIndex, source);
+        if (sourceIndex <= currentIndex) {
+            currentIndex++;
+        }
+        if (sourceIndex == currentIndex + 1) {
+            prefetchNext();
+        }
+    }
+
+    @Override
+    public int getCurrentIndex() {
+        return currentIndex;
+    }
+
+    private void checkPlaylistItemChanged() {
+        if (this.exoPlayer == null || playlist == null) {
+            return;
+        }
+        int index = this.exoPlayer.getCurrentWindowIndex();
+        if (index == currentIndex || index >= playlistUrls.size()) {
+            return;
+        }
+        currentIndex = index;
+        String url = playlistUrls.get(index);
+        metricsCollector.beginSession(url);
+        Format format = this.exoPlayer.getVideoFormat();
+        if (format != null) {
+            mRotationDegrees = format.rotationDegrees;
+        }
+        prefetchNext();
+        Log.e(TAG, "playlist item changed, index=" + index);
+        if (mOnPlaylistItemChangedListener != null) {
+            mOnPlaylistItemChangedListener.onPlaylistItemChanged(this, index, url);
+        }
+    }
+
+    /**
+     * 播放器自己会在当前项缓冲完后缓冲下一项，这里提前把下一项的开头下载到缓存
+     */
+    private void prefetchNext() {
+        if (currentIndex + 1 < playlistUrls.size()) {
+            PrefetchManager.get(context).prefetch(playlistUrls.get(currentIndex + 1), 0);
         }
     }
 
     @Override
     public void start() {
-        if (this.exoPlayer != null) {
+        if (this.exoPlayer != null && trickSpeed != 0) {
+            if (trickPaused) {
+                trickPaused = false;
+                trickBaseRealtimeMs = SystemClock.elapsedRealtime();
+                sMainHandler.post(trickRunnable);
+            }
+        } else if (this.exoPlayer != null) {
             this.exoPlayer.setPlayWhenReady(true);
             Log.e(TAG, "setPlayWhenReady true");
         }
@@ -148,7 +526,14 @@ public class MediaPlayerExo implements IMediaPlayer {
 
     @Override
     public void stop() {
-        if (this.exoPlayer != null) {
+        if (this.exoPlayer != null && trickSpeed != 0) {
+            if (!trickPaused) {
+                // 停在当前显示的位置
+                trickBasePositionMs = getTrickPositionMs();
+                trickPaused = true;
+                sMainHandler.removeCallbacks(trickRunnable);
+            }
+        } else if (this.exoPlayer != null) {
             this.exoPlayer.setPlayWhenReady(false);
             Log.e(TAG, "setPlayWhenReady false");
         }
@@ -157,13 +542,258 @@ public class MediaPlayerExo implements IMediaPlayer {
     @Override
     public void seek(int position) {
         if (this.exoPlayer != null) {
-            this.exoPlayer.seekTo(position);
+            if (trickSpeed != 0) {
+                trickBasePositionMs = position;
+                trickBaseRealtimeMs = SystemClock.elapsedRealtime();
+                trickPlanner.setSpeed(trickSpeed);
+            }
+            seekTo(position, SEEK_EXACT);
+        }
+    }
+
+    @Override
+    public void beginScrub() {
+        if (this.exoPlayer == null || scrubbing) {
+            return;
+        }
+        scrubbing = true;
+        pendingScrubPosition = -1;
+        scrubSeekCount = 0;
+        scrubCoalescedCount = 0;
+        this.exoPlayer.setSeekParameters(SeekParameters.CLOSEST_SYNC);
+    }
+
+    @Override
+    public void scrubTo(int position) {
+        if (this.exoPlayer == null) {
+            return;
+        }
+        if (!scrubbing) {
+            seek(position);
+            return;
         }
+        if (seekInFlight) {
+            // 上一次seek的画面还没出来，只保留最新的位置
+            if (pendingScrubPosition >= 0) {
+                scrubCoalescedCount++;
+            }
+            pendingScrubPosition = position;
+            return;
+        }
+        seekTo(position, SEEK_SCRUB);
     }
 
+    @Override
+    public void endScrub(int position) {
+        if (this.exoPlayer == null) {
+            return;
+        }
+        if (pendingScrubPosition >= 0) {
+            scrubCoalescedCount++;
+        }
+        scrubbing = false;
+        pendingScrubPosition = -1;
+        this.exoPlayer.setSeekParameters(getDefaultSeekParameters());
+        seekTo(position, SEEK_EXACT);
+        Log.i(TAG, "endScrub, seeks=" + scrubSeekCount + ", coalesced=" + scrubCoalescedCount);
+    }
+
+    /**
+     * @param type SEEK_EXACT、SEEK_SCRUB或SEEK_TRICK，分开统计次数和耗时
+     */
+    private void seekTo(int position, int type) {
+        seekInFlight = true;
+        seekType = type;
+        seekStartMs = SystemClock.elapsedRealtime();
+        if (type == SEEK_SCRUB) {
+            scrubSeekCount++;
+        }
+        sMainHandler.removeCallbacks(seekTimeoutRunnable);
+        sMainHandler.postDelayed(seekTimeoutRunnable, SEEK_TIMEOUT_MS);
+        this.exoPlayer.seekTo(position);
+    }
+
+    private void onSeekFinished(boolean rendered) {
+        if (!seekInFlight) {
+            return;
+        }
+        seekInFlight = false;
+        sMainHandler.removeCallbacks(seekTimeoutRunnable);
+        if (seekType == SEEK_TRICK && trickSpeed != 0 && this.exoPlayer != null) {
+            // 没有关键帧表时播放器按seek参数落到了关键帧上，记下来判断之后的帧是不是同一个
+            trickPlanner.onKeyframeShown(this.exoPlayer.getCurrentPosition());
+        }
+        if (rendered) {
+            long latencyMs = SystemClock.elapsedRealtime() - seekStartMs;
+            if (seekType == SEEK_TRICK) {
+                PlaybackMetrics.get().recordTrickSeekLatency(latencyMs);
+            } else {
+                PlaybackMetrics.get().recordSeekLatency(latencyMs, seekType == SEEK_SCRUB);
+            }
+        }
+        if (scrubbing && pendingScrubPosition >= 0) {
+            int position = pendingScrubPosition;
+            pendingScrubPosition = -1;
+            seekTo(position, SEEK_SCRUB);
+        }
+    }
+
+    /**
+     * MIN_SPEED到MAX_SMOOTH_SPEED之间正常变速播放，声音变速不变调；
+     * 更快或者负数(倒退)时进入trick play，静音并只解码显示关键帧，最快MAX_TRICK_SPEED
+     */
     @Override
     public void setSpeed(float speed) {
-        //nothing
+        if (this.exoPlayer == null || speed == 0 || Float.isNaN(speed)) {
+            return;
+        }
+        speed = Math.max(-MAX_TRICK_SPEED, Math.min(speed, MAX_TRICK_SPEED));
+        if (speed > 0 && speed < MIN_SPEED) {
+            speed = MIN_SPEED;
+        }
+        if (speed == this.speed) {
+            return;
+        }
+        recordSpeedSegment();
+        this.speed = speed;
+        if (speed < 0 || speed > MAX_SMOOTH_SPEED) {
+            this.exoPlayer.setPlaybackParameters(PlaybackParameters.DEFAULT);
+            enterTrickPlay(speed);
+        } else {
+            exitTrickPlay();
+            // pitch为1时用Sonic做时间伸缩，音调不变
+            this.exoPlayer.setPlaybackParameters(new PlaybackParameters(speed, 1f));
+        }
+        Log.i(TAG, "speed " + speed);
+    }
+
+    private void enterTrickPlay(float speed) {
+        if (trickSpeed == 0) {
+            trickPaused = !this.exoPlayer.getPlayWhenReady();
+            trickSavedVolume = this.exoPlayer.getVolume();
+            trickSkippedCount = 0;
+            trickPlanner.start(speed);
+            this.exoPlayer.setVolume(0f);
+            this.exoPlayer.setPlayWhenReady(false);
+            if (loadControl != null) {
+                loadControl.setTrickPlay(true);
+            }
+            trickBasePositionMs = this.exoPlayer.getCurrentPosition();
+        } else {
+            trickBasePositionMs = getTrickPositionMs();
+            trickPlanner.setSpeed(speed);
+        }
+        trickSpeed = speed;
+        trickBaseRealtimeMs = SystemClock.elapsedRealtime();
+        // 倒退只往前找关键帧，快进只往后找
+        this.exoPlayer.setSeekParameters(trickPlanner.getSeekParameters());
+        sMainHandler.removeCallbacks(trickRunnable);
+        if (!trickPaused) {
+            sMainHandler.post(trickRunnable);
+        }
+    }
+
+    /**
+     * 回到正常播放，从trick play最后的位置精确seek并恢复播放/暂停状态
+     */
+    private void exitTrickPlay() {
+        if (trickSpeed == 0) {
+            return;
+        }
+        long positionMs = getTrickPositionMs();
+        sMainHandler.removeCallbacks(trickRunnable);
+        trickSpeed = 0;
+        if (loadControl != null) {
+            loadControl.setTrickPlay(false);
+        }
+        this.exoPlayer.setVolume(trickSavedVolume);
+        this.exoPlayer.setSeekParameters(getDefaultSeekParameters());
+        seekTo((int) positionMs, SEEK_EXACT);
+        this.exoPlayer.setPlayWhenReady(!trickPaused);
+        Log.i(TAG, "trick play end, frames=" + trickPlanner.getSeekCount() + ", sameKeyframe="
+                + trickPlanner.getSameKeyframeCount() + ", skipped=" + trickSkippedCount);
+    }
+
+    private void onTrickTick() {
+        if (this.exoPlayer == null || trickSpeed == 0 || trickPaused) {
+            return;
+        }
+        long targetMs = trickBasePositionMs
+                + (long) ((SystemClock.elapsedRealtime() - trickBaseRealtimeMs) * trickSpeed);
+        long durationMs = this.exoPlayer.getDuration();
+        if (targetMs <= 0 || (durationMs != C.TIME_UNSET && targetMs >= durationMs)) {
+            // 到头了，停在开头/结尾恢复正常速度
+            setSpeed(1f);
+            return;
+        }
+        sMainHandler.postDelayed(trickRunnable, TRICK_FRAME_INTERVAL_MS);
+        if (seekInFlight) {
+            // 上一个关键帧还没显示出来，跳过这一帧，解码跟不上时不会越积越多
+            trickSkippedCount++;
+            return;
+        }
+        String currentUrl = getCurrentUrl();
+        KeyframeIndex index = currentUrl == null ? null : PreviewStore.get(context).getKeyframeIndex(currentUrl);
+        long positionMs = trickPlanner.nextSeekPositionMs(targetMs, index);
+        if (positionMs == C.TIME_UNSET) {
+            // 还在同一个关键帧上就不用再解码
+            return;
+        }
+        seekTo((int) positionMs, SEEK_TRICK);
+    }
+
+    private long getTrickPositionMs() {
+        long positionMs = trickBasePositionMs;
+        if (!trickPaused) {
+            positionMs += (long) ((SystemClock.elapsedRealtime() - trickBaseRealtimeMs) * trickSpeed);
+        }
+        long durationMs = this.exoPlayer.getDuration();
+        if (durationMs != C.TIME_UNSET) {
+            positionMs = Math.min(positionMs, durationMs);
+        }
+        return Math.max(positionMs, 0);
+    }
+
+    private SeekParameters getDefaultSeekParameters() {
+        if (trickSpeed != 0) {
+            return trickPlanner.getSeekParameters();
+        }
+        return scrubbing ? SeekParameters.CLOSEST_SYNC : SeekParameters.EXACT;
+    }
+
+    private String getCurrentUrl() {
+        if (playlist != null) {
+            return currentIndex < playlistUrls.size() ? playlistUrls.get(currentIndex) : null;
+        }
+        return url;
+    }
+
+    /**
+     * 把上一个倍速这段时间的解码帧数、显示帧数和CPU时间记下来，用来比较不同倍速的解码负载
+     */
+    private void recordSpeedSegment() {
+        if (this.exoPlayer == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long cpuMs = Process.getElapsedCpuTime();
+        DecoderCounters counters = this.exoPlayer.getVideoDecoderCounters();
+        int decoded = 0;
+        int rendered = 0;
+        if (counters != null) {
+            counters.ensureUpdated();
+            decoded = counters.inputBufferCount;
+            rendered = counters.renderedOutputBufferCount;
+        }
+        if (speedStartMs != C.TIME_UNSET && isPlaying()) {
+            // 解码器重新创建后计数会从0开始
+            PlaybackMetrics.get().recordSpeed(speed, now - speedStartMs, cpuMs - speedStartCpuMs,
+                    Math.max(0, decoded - speedStartDecoded), Math.max(0, rendered - speedStartRendered));
+        }
+        speedStartMs = now;
+        speedStartCpuMs = cpuMs;
+        speedStartDecoded = decoded;
+        speedStartRendered = rendered;
     }
 
     @Override
@@ -176,19 +806,67 @@ public class MediaPlayerExo implements IMediaPlayer {
     @Override
     public void release() {
         reset();
+        if (this.exoPlayer != null) {
+            this.exoPlayer.release();
+            this.exoPlayer = null;
+            this.loadControl = null;
+            this.trackSelector = null;
+        }
+        context = null;
     }
 
+    /**
+     * 回到init()之后的状态，保留SimpleExoPlayer以便复用
+     */
     @Override
     public void reset() {
+        prepareToken++;
+        metricsCollector.endSession();
         if (this.exoPlayer != null) {
-            this.exoPlayer.release();
-            this.exoPlayer = null;
+            recordSpeedSegment();
+            if (trickSpeed != 0) {
+                sMainHandler.removeCallbacks(trickRunnable);
+                trickSpeed = 0;
+                this.exoPlayer.setVolume(trickSavedVolume);
+                if (loadControl != null) {
+                    loadControl.setTrickPlay(false);
+                }
+            }
+            this.exoPlayer.setPlaybackParameters(PlaybackParameters.DEFAULT);
+            this.exoPlayer.setPlayWhenReady(false);
+            this.exoPlayer.stop(true);
+            this.exoPlayer.clearVideoSurface();
+            sMainHandler.removeCallbacks(videoDisableRunnable);
+            setVideoDisabled(false);
+            this.exoPlayer.setRepeatMode(Player.REPEAT_MODE_ONE);
+            this.exoPlayer.setSeekParameters(SeekParameters.EXACT);
         }
-        context = null;
+        speed = 1f;
+        speedStartMs = C.TIME_UNSET;
+        url = null;
+        scrubbing = false;
+        seekInFlight = false;
+        sMainHandler.removeCallbacks(seekTimeoutRunnable);
+        pendingScrubPosition = -1;
+        if (loadControl != null) {
+            loadControl.setMaxBufferBytes(0);
+        }
+        setVideoSizeLimit(0, 0);
+        mOnPreparedListener = null;
+        mOnStartListener = null;
+        mOnErrorListener = null;
+        mOnRenderedFirstFrameListener = null;
+        mOnVideoSizeChangedListener = null;
+        mOnPlaylistItemChangedListener = null;
+        playlist = null;
+        playlistUrls.clear();
+        currentIndex = 0;
+        mStartupTrace = null;
         isPrepared = false;
         mSurface = null;
         mWidth = 0;
         mHeight = 0;
+        mRotationDegrees = 0;
     }
 
     @Override
@@ -196,6 +874,9 @@ public class MediaPlayerExo implements IMediaPlayer {
         if (this.exoPlayer == null) {
             return false;
         }
+        if (trickSpeed != 0) {
+            return !trickPaused;
+        }
         int state = this.exoPlayer.getPlaybackState();
         switch (state) {
             case Player.STATE_BUFFERING:
@@ -213,6 +894,9 @@ public class MediaPlayerExo implements IMediaPlayer {
         if (this.exoPlayer == null) {
             return 0;
         }
+        if (trickSpeed != 0) {
+            return (int) getTrickPositionMs();
+        }
         return (int) this.exoPlayer.getCurrentPosition();
     }
 
@@ -256,7 +940,46 @@ public class MediaPlayerExo implements IMediaPlayer {
                 mSurface = null;
             }
             this.exoPlayer.setVideoSurface(surface);
+            sMainHandler.removeCallbacks(videoDisableRunnable);
+            if (mSurface == null) {
+                // 延迟关闭，新surface很快到来时渲染器一直开着，不用从关键帧重新解码
+                if (!videoDisabled) {
+                    sMainHandler.postDelayed(videoDisableRunnable, VIDEO_DISABLE_DELAY_MS);
+                }
+            } else if (videoDisabled) {
+                setVideoDisabled(false);
+                // 视频渲染器重新打开后要从关键帧解码到当前位置，直接从最近的关键帧开始，声音可能跳一点
+                if (this.exoPlayer.getPlaybackState() != Player.STATE_IDLE) {
+                    this.exoPlayer.setSeekParameters(SeekParameters.CLOSEST_SYNC);
+                    this.exoPlayer.seekTo(this.exoPlayer.getCurrentWindowIndex(), this.exoPlayer.getCurrentPosition());
+                    this.exoPlayer.setSeekParameters(getDefaultSeekParameters());
+                }
+            }
+        }
+    }
+
+    /**
+     * 画面不可见时不再解码视频，分开的视频轨道也不再下载。
+     * 关闭期间的CPU时间和网络流量记到PlaybackMetrics，用来和不关闭时比较
+     */
+    private void setVideoDisabled(boolean disabled) {
+        if (disabled == videoDisabled || trackSelector == null || videoRendererIndex == C.INDEX_UNSET) {
+            return;
+        }
+        videoDisabled = disabled;
+        trackSelector.setParameters(trackSelector.buildUponParameters()
+                .setRendererDisabled(videoRendererIndex, disabled));
+        if (disabled) {
+            offscreenStartMs = SystemClock.elapsedRealtime();
+            offscreenStartCpuMs = Process.getElapsedCpuTime();
+            offscreenStartBytes = UpstreamStack.get(context).getResponseBytes();
+        } else if (offscreenStartMs != C.TIME_UNSET) {
+            PlaybackMetrics.get().recordOffscreen(SystemClock.elapsedRealtime() - offscreenStartMs,
+                    Process.getElapsedCpuTime() - offscreenStartCpuMs,
+                    UpstreamStack.get(context).getResponseBytes() - offscreenStartBytes);
+            offscreenStartMs = C.TIME_UNSET;
         }
+        Log.i(TAG, disabled ? "no surface, video renderer disabled" : "surface back, video renderer enabled");
     }
 
     @Override
@@ -274,58 +997,117 @@ public class MediaPlayerExo implements IMediaPlayer {
         this.mOnStartListener = listener;
     }
 
-    private MediaSource buildMediaSource(Uri uri, String overrideExtension) {
-        MediaSource videoSource;
-        String userAgent = Util.getUserAgent(this.context, "demo");
-        DataSource.Factory dataSourceFactory = new DefaultDataSourceFactory(this.context, null, new DefaultHttpDataSourceFactory(userAgent));
-        File cacheDir = context.getExternalCacheDir();
-        if (cacheDir != null) {
-            cacheDir = new File(cacheDir, "exo-video-cache");
-            cacheDir.mkdirs();
-            CacheDataSourceFactory cacheDataSourceFactory = new CacheDataSourceFactory(context, dataSourceFactory, cacheDir);
-            videoSource = new ExtractorMediaSource.Factory(cacheDataSourceFactory).createMediaSource(uri);
-        } else {
-            videoSource = new ExtractorMediaSource.Factory(dataSourceFactory).createMediaSource(uri);
+    @Override
+    public void setOnRenderedFirstFrameListener(OnRenderedFirstFrameListener listener) {
+        this.mOnRenderedFirstFrameListener = listener;
+    }
+
+    @Override
+    public void setOnVideoSizeChangedListener(OnVideoSizeChangedListener listener) {
+        this.mOnVideoSizeChangedListener = listener;
+    }
+
+    @Override
+    public void setOnPlaylistItemChangedListener(OnPlaylistItemChangedListener listener) {
+        this.mOnPlaylistItemChangedListener = listener;
+    }
+
+    @Override
+    public void setStartupTrace(StartupTrace trace) {
+        this.mStartupTrace = trace;
+    }
+
+    @Override
+    public long getBufferedBytes() {
+        return loadControl == null ? 0 : loadControl.getAllocatedBytes();
+    }
+
+    @Override
+    public void setMaxBufferBytes(int maxBytes) {
+        if (loadControl != null) {
+            loadControl.setMaxBufferBytes(maxBytes);
+        }
+    }
+
+    /**
+     * 只修改选轨参数，不重建数据源，可以在主线程调用
+     */
+    @Override
+    public void setVideoSizeLimit(int maxWidth, int maxHeight) {
+        if (maxWidth == maxVideoWidth && maxHeight == maxVideoHeight) {
+            return;
+        }
+        maxVideoWidth = maxWidth;
+        maxVideoHeight = maxHeight;
+        metricsCollector.setVideoSizeLimited(maxWidth > 0 && maxHeight > 0);
+        applyVideoSizeLimit();
+    }
+
+    private void applyVideoSizeLimit() {
+        if (trackSelector == null) {
+            return;
         }
+        DefaultTrackSelector.ParametersBuilder builder = trackSelector.buildUponParameters();
+        applyVideoSizeLimit(builder, maxVideoWidth, maxVideoHeight);
+        // 参数没变时不会重新选轨
+        trackSelector.setParameters(builder);
+        Log.i(TAG, "video size limit " + maxVideoWidth + "x" + maxVideoHeight);
+    }
+
+    private MediaSource buildMediaSource(Context context, Uri uri, StartupTrace trace) {
+        MediaSource videoSource = buildItemSource(context, uri, trace);
         //循环播放
         Log.e(TAG, "buildMediaSource");
         return new LoopingMediaSource(videoSource);
     }
 
-    private static class CacheDataSourceFactory implements DataSource.Factory {
-        private final Context context;
-        private final DataSource.Factory factory;
-        private final long maxFileSize, maxCacheSize;
-        private static SimpleCache sSimpleCache = null;
-        private static final byte[] lock = new byte[0];
-        private final File cacheDir;
-
-        CacheDataSourceFactory(Context context, DataSource.Factory factory, File cacheDir) {
-            this(context, factory, cacheDir, 80 * 1024 * 1024, 5 * 1024 * 1024);
+    /**
+     * 宽高都大于0时限制选轨的最大分辨率，否则去掉限制
+     */
+    static void applyVideoSizeLimit(DefaultTrackSelector.ParametersBuilder builder, int maxWidth, int maxHeight) {
+        if (maxWidth > 0 && maxHeight > 0) {
+            // 没有满足限制的轨道时仍然选最小的，不会因为限制而没有画面
+            builder.setMaxVideoSize(maxWidth, maxHeight);
+        } else {
+            builder.clearVideoSizeConstraints();
         }
+    }
 
-        CacheDataSourceFactory(Context context, DataSource.Factory factory, File cacheDir, long maxCacheSize, long maxFileSize) {
-            super();
-            this.context = context;
-            this.maxCacheSize = maxCacheSize;
-            this.maxFileSize = maxFileSize;
-            this.factory = factory;
-            this.cacheDir = cacheDir;
+    /**
+     * 会等待缓存初始化，在后台线程调用
+     */
+    private MediaSource buildItemSource(Context context, Uri uri, StartupTrace trace) {
+        UpstreamStack upstreamStack = UpstreamStack.get(context);
+        SimpleCache cache = VideoCache.awaitCache(context, CACHE_AWAIT_MS);
+        DataSource.Factory dataSourceFactory;
+        String key = VideoCache.buildCacheKey(uri);
+        if (cache != null && VideoCache.isPinned(key) && VideoCache.isFullyCached(cache, key)) {
+            // 离线下载完成的视频只读磁盘，不访问网络
+            dataSourceFactory = VideoCache.getOfflineFactory(cache);
+        } else if (cache != null) {
+            dataSourceFactory = upstreamStack.getCacheDataSourceFactory(cache);
+        } else {
+            dataSourceFactory = upstreamStack.getUpstreamFactory();
         }
+        if (trace != null) {
+            DataSource.Factory sharedFactory = dataSourceFactory;
+            dataSourceFactory = () -> new TracingDataSource(sharedFactory.createDataSource(), trace);
+        }
+        MediaSource videoSource = new ExtractorMediaSource.Factory(dataSourceFactory)
+                .setTag(uri.toString())
+                .createMediaSource(uri);
+        if (trace != null) {
+            trace.mark(StartupTrace.PHASE_BUILD_MEDIA_SOURCE);
+        }
+        return videoSource;
+    }
 
-        @Override
-        public DataSource createDataSource() {
-            if (sSimpleCache == null) {
-                synchronized (lock) {
-                    if (sSimpleCache == null) {
-                        LeastRecentlyUsedCacheEvictor evictor = new LeastRecentlyUsedCacheEvictor(maxCacheSize);
-                        sSimpleCache = new SimpleCache(cacheDir, evictor, new ExoDatabaseProvider(context.getApplicationContext()));
-                    }
-                }
-            }
-            return new CacheDataSource(sSimpleCache, factory.createDataSource(),
-                    new FileDataSource(), new CacheDataSink(sSimpleCache, maxFileSize),
-                    CacheDataSource.FLAG_BLOCK_ON_CACHE | CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR, null);
+    private static synchronized Handler getSetupHandler() {
+        if (sSetupHandler == null) {
+            HandlerThread thread = new HandlerThread("video-setup", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sSetupHandler = new Handler(thread.getLooper());
         }
+        return sSetupHandler;
     }
 }
@@ -0,0 +1,222 @@
+package com.example.exoplayer;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+
+/**
+ * 预创建的播放器池，BaseVideoView从这里租用播放器，归还时只reset不release。
+ * 只能在主线程使用。
+ */
+public final class MediaPlayerPool {
+    public static final int DEFAULT_MAX_IDLE = 2;
+
+    private static MediaPlayerPool sInstance;
+
+    private final Context context;
+    private final ArrayDeque<IMediaPlayer> idlePlayers = new ArrayDeque<>();
+    private int maxIdle = DEFAULT_MAX_IDLE;
+    private int warmTarget = 1;
+    /**
+     * evictAll()之后暂停预创建，下次租用或prewarm()时恢复，预创建的数量不变
+     */
+    private boolean prewarmSuspended;
+    /**
+     * 正在后台创建、还没放进池里的播放器数量
+     */
+    private int creatingCount;
+
+    private long hitCount;
+    private long missCount;
+    private long evictCount;
+    private long totalLeaseNanos;
+    private long maxLeaseNanos;
+
+    public static MediaPlayerPool get(Context context) {
+        checkMainThread();
+        if (sInstance == null) {
+            sInstance = new MediaPlayerPool(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private MediaPlayerPool(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * 租用一个已经init()过的播放器。池里没有时在主线程创建，不等起播提示加载，
+     * 那时带宽估计从默认值开始，尽量用acquireAsync()
+     */
+    public IMediaPlayer acquire() {
+        checkMainThread();
+        prewarmSuspended = false;
+        long start = SystemClock.elapsedRealtimeNanos();
+        IMediaPlayer player = idlePlayers.pollFirst();
+        if (player != null) {
+            hitCount++;
+        } else {
+            missCount++;
+            player = createPlayer();
+        }
+        recordLease(start);
+        schedulePrewarm();
+        return player;
+    }
+
+    /**
+     * 租用一个播放器，池里没有时在后台线程创建，建好后在主线程回调。
+     * 池里有空闲播放器时直接回调。租用耗时只统计占用主线程的部分
+     */
+    public void acquireAsync(OnAcquiredListener listener) {
+        checkMainThread();
+        prewarmSuspended = false;
+        long start = SystemClock.elapsedRealtimeNanos();
+        IMediaPlayer player = idlePlayers.pollFirst();
+        if (player != null) {
+            hitCount++;
+            recordLease(start);
+            schedulePrewarm();
+            listener.onAcquired(player);
+            return;
+        }
+        missCount++;
+        player = new MediaPlayerExo(context);
+        player.initAsync(listener::onAcquired);
+        recordLease(start);
+        schedulePrewarm();
+    }
+
+    /**
+     * 归还播放器，池满时直接release
+     */
+    public void recycle(IMediaPlayer player) {
+        checkMainThread();
+        if (player == null) {
+            return;
+        }
+        if (idlePlayers.size() >= maxIdle) {
+            player.release();
+            return;
+        }
+        player.reset();
+        idlePlayers.addFirst(player);
+    }
+
+    /**
+     * 在后台线程预创建播放器，直到池中有count个空闲播放器
+     */
+    public void prewarm(int count) {
+        checkMainThread();
+        warmTarget = count;
+        prewarmSuspended = false;
+        schedulePrewarm();
+    }
+
+    public void setMaxIdle(int maxIdle) {
+        checkMainThread();
+        this.maxIdle = maxIdle;
+        while (idlePlayers.size() > maxIdle) {
+            evict(idlePlayers.pollLast());
+        }
+    }
+
+    /**
+     * 释放所有空闲播放器，下次租用时再按原来的数量预创建。内存紧张时由MemoryGovernor调用
+     */
+    public int evictAll() {
+        checkMainThread();
+        int count = idlePlayers.size();
+        while (!idlePlayers.isEmpty()) {
+            evict(idlePlayers.pollLast());
+        }
+        prewarmSuspended = true;
+        return count;
+    }
+
+    public int getIdleCount() {
+        return idlePlayers.size();
+    }
+
+    public Stats getStats() {
+        long leases = hitCount + missCount;
+        return new Stats(hitCount, missCount, evictCount,
+                leases == 0 ? 0 : totalLeaseNanos / leases / 1000, maxLeaseNanos / 1000);
+    }
+
+    private IMediaPlayer createPlayer() {
+        IMediaPlayer player = new MediaPlayerExo(context);
+        player.init();
+        return player;
+    }
+
+    private void recordLease(long startNanos) {
+        long leaseNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        totalLeaseNanos += leaseNanos;
+        maxLeaseNanos = Math.max(maxLeaseNanos, leaseNanos);
+    }
+
+    private void evict(IMediaPlayer player) {
+        if (player != null) {
+            player.release();
+            evictCount++;
+        }
+    }
+
+    private void schedulePrewarm() {
+        if (prewarmSuspended) {
+            return;
+        }
+        while (idlePlayers.size() + creatingCount < Math.min(warmTarget, maxIdle)) {
+            creatingCount++;
+            new MediaPlayerExo(context).initAsync(player -> {
+                creatingCount--;
+                // 创建期间可能已经evictAll()或者调小了maxIdle
+                if (!prewarmSuspended && idlePlayers.size() < Math.min(warmTarget, maxIdle)) {
+                    idlePlayers.addLast(player);
+                } else {
+                    evict(player);
+                }
+            });
+        }
+    }
+
+    private static void checkMainThread() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new IllegalStateException("MediaPlayerPool must be used on the main thread");
+        }
+    }
+
+    public interface OnAcquiredListener {
+        void onAcquired(IMediaPlayer player);
+    }
+
+    public static final class Stats {
+        public final long hitCount;
+        public final long missCount;
+        public final long evictCount;
+        public final long avgLeaseUs;
+        public final long maxLeaseUs;
+
+        Stats(long hitCount, long missCount, long evictCount, long avgLeaseUs, long maxLeaseUs) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictCount = evictCount;
+            this.avgLeaseUs = avgLeaseUs;
+            this.maxLeaseUs = maxLeaseUs;
+        }
+
+        public float hitRatio() {
+            long total = hitCount + missCount;
+            return total == 0 ? 0f : hitCount / (float) total;
+        }
+
+        @Override
+        public String toString() {
+            return "hit=" + hitCount + ", miss=" + missCount + ", evict=" + evictCount
+                    + ", avgLeaseUs=" + avgLeaseUs + ", maxLeaseUs=" + maxLeaseUs;
+        }
+    }
+}
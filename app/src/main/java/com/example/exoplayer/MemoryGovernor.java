@@ -0,0 +1,204 @@
+package com.example.exoplayer;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Looper;
+import android.util.Log;
+import android.util.SparseLongArray;
+
+import java.util.ArrayList;
+
+/**
+ * 根据系统内存压力回收播放相关的内存：
+ * 平时按内存等级限制所有播放器缓冲的总和；
+ * 内存紧张时缩小暂停中播放器的缓冲，释放不可见的播放器(保留播放位置)，
+ * 清空播放器池和预取数据。只能在主线程使用。
+ */
+public final class MemoryGovernor implements ComponentCallbacks2 {
+    private static final String TAG = "MemoryGovernor";
+    /**
+     * 暂停的播放器在内存紧张时最多保留的缓冲
+     */
+    static final int PAUSED_BUFFER_BYTES = 2 * 1024 * 1024;
+    /**
+     * 所有播放器的缓冲总和最多占应用内存上限的比例
+     */
+    private static final int BUFFER_SHARE_OF_MEMORY_CLASS = 4;
+    private static final int LEVEL_LOW_MEMORY = 100;
+
+    private static MemoryGovernor sInstance;
+
+    private final Context context;
+    private final ArrayList<BaseVideoView> views = new ArrayList<>();
+    private final SparseLongArray reclaimedBytes = new SparseLongArray();
+    private final SparseLongArray trimCounts = new SparseLongArray();
+    private int maxTotalBufferBytes;
+
+    public static MemoryGovernor get(Context context) {
+        checkMainThread();
+        if (sInstance == null) {
+            sInstance = new MemoryGovernor(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private MemoryGovernor(Context context) {
+        this.context = context;
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClassMb = activityManager == null ? 0 : activityManager.getMemoryClass();
+        maxTotalBufferBytes = memoryClassMb * 1024 * 1024 / BUFFER_SHARE_OF_MEMORY_CLASS;
+        context.registerComponentCallbacks(this);
+    }
+
+    /**
+     * 所有播放器缓冲总和的上限，0表示不限制
+     */
+    public void setMaxTotalBufferBytes(int maxBytes) {
+        checkMainThread();
+        maxTotalBufferBytes = maxBytes;
+        rebalance();
+    }
+
+    void register(BaseVideoView view) {
+        if (!views.contains(view)) {
+            views.add(view);
+            rebalance();
+        }
+    }
+
+    void unregister(BaseVideoView view) {
+        if (views.remove(view)) {
+            rebalance();
+        }
+    }
+
+    /**
+     * 开始播放后恢复正常的缓冲上限
+     */
+    void onPlaybackResumed(BaseVideoView view) {
+        if (views.contains(view)) {
+            view.setMaxBufferBytes(getPerPlayerBufferBytes());
+        }
+    }
+
+    /**
+     * 总上限平均分给每个播放器
+     */
+    private void rebalance() {
+        int perPlayer = getPerPlayerBufferBytes();
+        for (int i = 0; i < views.size(); i++) {
+            views.get(i).setMaxBufferBytes(perPlayer);
+        }
+    }
+
+    private int getPerPlayerBufferBytes() {
+        if (maxTotalBufferBytes <= 0 || views.isEmpty()) {
+            return 0;
+        }
+        return maxTotalBufferBytes / views.size();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level < TRIM_MEMORY_RUNNING_MODERATE) {
+            return;
+        }
+        if (level == TRIM_MEMORY_UI_HIDDEN) {
+            // 只是界面退到后台，不代表内存紧张，每次切后台都会收到，只缩小暂停播放器的缓冲
+            long buffers = shrinkPausedBuffers();
+            record(level, buffers);
+            Log.i(TAG, "onTrimMemory UI_HIDDEN, pausedBuffers=" + buffers);
+            return;
+        }
+        boolean runningLow = level == TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_RUNNING_CRITICAL;
+        boolean background = level >= TRIM_MEMORY_BACKGROUND;
+        long players = 0;
+        int releasedCount = 0;
+        // 先释放，释放时view会从列表中移除并重新分配上限，再缩小剩下的暂停播放器
+        for (int i = views.size() - 1; i >= 0; i--) {
+            BaseVideoView view = views.get(i);
+            if (!view.isPlaying() && (background || (runningLow && !view.isVisibleOnScreen()))) {
+                players += view.releaseKeepingPosition();
+                releasedCount++;
+            }
+        }
+        long buffers = shrinkPausedBuffers();
+        int evicted = 0;
+        long stash = 0;
+        if (runningLow || background) {
+            evicted = MediaPlayerPool.get(context).evictAll();
+            stash = UpstreamStack.get(context).trimMemory();
+        }
+        record(level, buffers + players + stash);
+        Log.i(TAG, "onTrimMemory level=" + level + ", reclaimed=" + (buffers + players + stash)
+                + " (pausedBuffers=" + buffers + ", releasedPlayers=" + releasedCount + "/" + players
+                + ", stash=" + stash + "), evictedIdlePlayers=" + evicted);
+    }
+
+    /**
+     * @return 缩小后预计释放的字节数
+     */
+    private long shrinkPausedBuffers() {
+        long buffers = 0;
+        for (int i = 0; i < views.size(); i++) {
+            BaseVideoView view = views.get(i);
+            if (!view.isPlaying()) {
+                long buffered = view.getBufferedBytes();
+                view.setMaxBufferBytes(PAUSED_BUFFER_BYTES);
+                buffers += Math.max(0, buffered - PAUSED_BUFFER_BYTES);
+            }
+        }
+        return buffers;
+    }
+
+    @Override
+    public void onLowMemory() {
+        long players = 0;
+        for (int i = views.size() - 1; i >= 0; i--) {
+            BaseVideoView view = views.get(i);
+            if (!view.isPlaying()) {
+                players += view.releaseKeepingPosition();
+            }
+        }
+        int evicted = MediaPlayerPool.get(context).evictAll();
+        long stash = UpstreamStack.get(context).trimMemory();
+        record(LEVEL_LOW_MEMORY, players + stash);
+        Log.i(TAG, "onLowMemory, reclaimed=" + (players + stash) + ", evictedIdlePlayers=" + evicted);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+
+    }
+
+    private void record(int level, long bytes) {
+        reclaimedBytes.put(level, reclaimedBytes.get(level) + bytes);
+        trimCounts.put(level, trimCounts.get(level) + 1);
+    }
+
+    /**
+     * 某个trim level累计回收的字节数，onLowMemory记在level 100
+     */
+    public long getReclaimedBytes(int level) {
+        return reclaimedBytes.get(level);
+    }
+
+    public String getStats() {
+        StringBuilder builder = new StringBuilder("players=").append(views.size())
+                .append(", maxTotalBufferBytes=").append(maxTotalBufferBytes);
+        for (int i = 0; i < reclaimedBytes.size(); i++) {
+            int level = reclaimedBytes.keyAt(i);
+            builder.append(", level").append(level).append("=").append(reclaimedBytes.valueAt(i))
+                    .append("B/").append(trimCounts.get(level)).append("x");
+        }
+        return builder.toString();
+    }
+
+    private static void checkMainThread() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new IllegalStateException("MemoryGovernor must be used on the main thread");
+        }
+    }
+}
@@ -0,0 +1,519 @@
+package com.example.exoplayer;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 起播加速用的上游数据源，放在CacheDataSource下面。
+ * <p>
+ * 第一次从0开始读一个视频时，同时发起三个请求：开头HEAD_BYTES、紧接着的第一段媒体数据CHUNK_BYTES
+ * 和结尾TAIL_BYTES。moov在文件末尾的MP4，解析器读完ftyp/mdat头就会跳到末尾再跳回开头，
+ * 这两次跳转原本各要一次串行的网络往返，现在直接从内存里的预取数据返回；
+ * 开头读完后接着读第一段媒体数据，也不用再等一次新的请求。
+ * 预取的数据经过CacheDataSource时写入缓存，完成时也会尝试直接写入缓存。
+ * 预取数据用完后，剩下的部分照常从网络读取。
+ */
+final class ParallelRangeDataSource implements DataSource {
+    static final int HEAD_BYTES = 512 * 1024;
+    static final int CHUNK_BYTES = 512 * 1024;
+    static final int TAIL_BYTES = 256 * 1024;
+
+    private final DataSource.Factory upstreamFactory;
+    private final Stash stash;
+    private final ArrayList<TransferListener> transferListeners = new ArrayList<>();
+
+    @Nullable
+    private DataSpec dataSpec;
+    @Nullable
+    private Range range;
+    @Nullable
+    private DataSource upstream;
+    private String key;
+    private long readPosition;
+    private long endPosition;
+    private long contentLength;
+
+    ParallelRangeDataSource(DataSource.Factory upstreamFactory, Stash stash) {
+        this.upstreamFactory = upstreamFactory;
+        this.stash = stash;
+    }
+
+    @Override
+    public void addTransferListener(TransferListener transferListener) {
+        transferListeners.add(transferListener);
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        this.dataSpec = dataSpec;
+        readPosition = dataSpec.position;
+        endPosition = dataSpec.length == C.LENGTH_UNSET ? C.LENGTH_UNSET : dataSpec.position + dataSpec.length;
+        key = dataSpec.key != null ? dataSpec.key : VideoCache.buildCacheKey(dataSpec.uri);
+        Range range = stash.find(key, dataSpec.position);
+        if (range == null && dataSpec.position == 0 && isHttp(dataSpec.uri)) {
+            range = stash.startHead(dataSpec.uri, key, transferListeners);
+        }
+        if (range != null) {
+            contentLength = range.awaitContentLength();
+            if (contentLength != C.LENGTH_UNSET) {
+                this.range = range;
+                if (dataSpec.length != C.LENGTH_UNSET) {
+                    return dataSpec.length;
+                }
+                return contentLength - dataSpec.position;
+            }
+        }
+        return openUpstream(dataSpec);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+        if (readLength == 0) {
+            return 0;
+        }
+        if (endPosition != C.LENGTH_UNSET) {
+            if (readPosition >= endPosition) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            readLength = (int) Math.min(readLength, endPosition - readPosition);
+        }
+        while (range != null) {
+            int read = range.read(readPosition, buffer, offset, readLength);
+            if (read > 0) {
+                readPosition += read;
+                return read;
+            }
+            Range exhausted = range;
+            range = null;
+            if (readPosition >= contentLength) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            // 开头读完接着读预取的第一段媒体数据，没有或者请求失败时剩下的从网络读
+            Range next = stash.find(key, readPosition);
+            if (next != exhausted) {
+                range = next;
+            }
+        }
+        if (upstream == null) {
+            DataSpec spec = Util.castNonNull(dataSpec);
+            openUpstream(spec.subrange(readPosition - spec.position));
+        }
+        int read = Util.castNonNull(upstream).read(buffer, offset, readLength);
+        if (read > 0) {
+            readPosition += read;
+        }
+        return read;
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        if (upstream != null) {
+            return upstream.getUri();
+        }
+        return dataSpec == null ? null : dataSpec.uri;
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+        return upstream == null ? Collections.emptyMap() : upstream.getResponseHeaders();
+    }
+
+    @Override
+    public void close() throws IOException {
+        range = null;
+        dataSpec = null;
+        if (upstream != null) {
+            try {
+                upstream.close();
+            } finally {
+                upstream = null;
+            }
+        }
+    }
+
+    private long openUpstream(DataSpec dataSpec) throws IOException {
+        DataSource dataSource = upstreamFactory.createDataSource();
+        for (int i = 0; i < transferListeners.size(); i++) {
+            dataSource.addTransferListener(transferListeners.get(i));
+        }
+        upstream = dataSource;
+        return dataSource.open(dataSpec);
+    }
+
+    private static boolean isHttp(Uri uri) {
+        String scheme = uri.getScheme();
+        return "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme);
+    }
+
+    /**
+     * 进程内共享的预取数据，按key和位置查找，完成后保留STASH_TTL_MS
+     */
+    static final class Stash {
+        private static final String TAG = "ParallelRange";
+        private static final long MIN_CONTENT_LENGTH = 2L * (HEAD_BYTES + CHUNK_BYTES + TAIL_BYTES);
+        private static final long MAX_STASH_BYTES = 6 * 1024 * 1024;
+        private static final long STASH_TTL_MS = 30 * 1000;
+        /**
+         * 最多同时预取两个视频的三段。不排队，线程都在忙时不预取，直接从网络读，
+         * 排在别的视频后面等预取反而又变成了串行起播
+         */
+        private static final int MAX_FETCH_THREADS = 6;
+        private static final int FETCH_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+        private final DataSource.Factory upstreamFactory;
+        @Nullable
+        private final SimpleCache cache;
+        private final ExecutorService executor;
+        private final ArrayList<Range> ranges = new ArrayList<>();
+        private long stashBytes;
+
+        Stash(DataSource.Factory upstreamFactory, @Nullable SimpleCache cache) {
+            this.upstreamFactory = upstreamFactory;
+            this.cache = cache;
+            this.executor = new ThreadPoolExecutor(0, MAX_FETCH_THREADS,
+                    FETCH_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                Thread thread = new Thread(r, "video-range-fetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        @Nullable
+        synchronized Range find(String key, long position) {
+            evictExpired();
+            for (int i = 0; i < ranges.size(); i++) {
+                Range range = ranges.get(i);
+                if (range.key.equals(key) && range.covers(position)) {
+                    return range;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @param transferListeners 发起预取的数据源上的监听，预取的字节也要计入带宽估计
+         */
+        @Nullable
+        synchronized Range startHead(Uri uri, String key, List<TransferListener> transferListeners) {
+            evictExpired();
+            if (stashBytes + HEAD_BYTES + CHUNK_BYTES + TAIL_BYTES > MAX_STASH_BYTES) {
+                return null;
+            }
+            for (int i = 0; i < ranges.size(); i++) {
+                if (ranges.get(i).key.equals(key)) {
+                    return null;
+                }
+            }
+            if (cache != null && cache.getCachedLength(key, 0, HEAD_BYTES) >= HEAD_BYTES) {
+                return null;
+            }
+            List<TransferListener> listeners = new ArrayList<>(transferListeners);
+            return startRange(uri, key, 0, HEAD_BYTES, C.LENGTH_UNSET, listeners);
+        }
+
+        /**
+         * 知道文件长度后再预取第一段媒体数据和结尾
+         */
+        private synchronized void startChunkAndTail(Uri uri, String key, long contentLength,
+                                                    List<TransferListener> listeners) {
+            startRange(uri, key, HEAD_BYTES, CHUNK_BYTES, contentLength, listeners);
+            startRange(uri, key, contentLength - TAIL_BYTES, TAIL_BYTES, contentLength, listeners);
+        }
+
+        /**
+         * @return 没有空闲的预取线程时返回null，调用方直接从网络读
+         */
+        @Nullable
+        private Range startRange(Uri uri, String key, long start, int capacity, long contentLength,
+                                 List<TransferListener> listeners) {
+            Range range = new Range(key, start, capacity);
+            if (contentLength != C.LENGTH_UNSET) {
+                range.setContentLength(contentLength);
+            }
+            boolean isHead = start == 0;
+            try {
+                executor.execute(() -> fetch(uri, range, isHead, listeners));
+            } catch (RejectedExecutionException e) {
+                Log.d(TAG, "no idle fetch thread, skip range start=" + start);
+                return null;
+            }
+            // 和find()在同一把锁里，加入之前不会被别的读者找到
+            ranges.add(range);
+            stashBytes += capacity;
+            return range;
+        }
+
+        /**
+         * 内存紧张时丢掉已经下载完的数据，正在读取这些数据的播放器不受影响
+         *
+         * @return 释放的字节数
+         */
+        synchronized long trim() {
+            long before = stashBytes;
+            for (int i = ranges.size() - 1; i >= 0; i--) {
+                Range range = ranges.get(i);
+                if (range.isFinished()) {
+                    ranges.remove(i);
+                    stashBytes -= range.data.length;
+                }
+            }
+            return before - stashBytes;
+        }
+
+        private void evictExpired() {
+            long now = SystemClock.elapsedRealtime();
+            for (int i = ranges.size() - 1; i >= 0; i--) {
+                Range range = ranges.get(i);
+                if (range.isExpired(now)) {
+                    ranges.remove(i);
+                    stashBytes -= range.data.length;
+                }
+            }
+        }
+
+        private void fetch(Uri uri, Range range, boolean isHead, List<TransferListener> listeners) {
+            DataSource dataSource = upstreamFactory.createDataSource();
+            for (int i = 0; i < listeners.size(); i++) {
+                dataSource.addTransferListener(listeners.get(i));
+            }
+            try {
+                // 开头不指定长度，这样能拿到文件总长度，读够HEAD_BYTES后直接断开
+                long length = isHead ? C.LENGTH_UNSET : range.data.length;
+                long opened = dataSource.open(new DataSpec(uri, range.start, length, range.key));
+                if (isHead) {
+                    range.setContentLength(opened);
+                    if (opened != C.LENGTH_UNSET && opened >= MIN_CONTENT_LENGTH) {
+                        startChunkAndTail(uri, range.key, opened, listeners);
+                    }
+                }
+                while (!range.isFull()) {
+                    int read = range.append(dataSource);
+                    if (read == C.RESULT_END_OF_INPUT) {
+                        break;
+                    }
+                }
+                range.finish(null);
+                writeToCache(uri, range);
+            } catch (IOException e) {
+                Log.w(TAG, "range fetch failed, start=" + range.start, e);
+                range.finish(e);
+            } finally {
+                Util.closeQuietly(dataSource);
+            }
+        }
+
+        /**
+         * 没有被播放器读走的部分直接写入缓存。key正被播放器锁住时CacheDataSource会跳过写入，
+         * 这部分数据仍然会在播放器读取时经过CacheDataSource写入。
+         */
+        private void writeToCache(Uri uri, Range range) {
+            int filled = range.filled();
+            if (cache == null || filled == 0
+                    || cache.getCachedLength(range.key, range.start, filled) >= filled) {
+                return;
+            }
+            CacheDataSource dataSource = VideoCache.createDataSource(cache, new MemoryDataSource(range),
+                    CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR);
+            try {
+                dataSource.open(new DataSpec(uri, range.start, filled, range.key));
+                byte[] buffer = new byte[16 * 1024];
+                while (dataSource.read(buffer, 0, buffer.length) != C.RESULT_END_OF_INPUT) {
+                    // 读的过程中写入缓存
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "write range to cache failed", e);
+            } finally {
+                Util.closeQuietly(dataSource);
+            }
+        }
+    }
+
+    /**
+     * 一段预取的数据，边下载边可以读
+     */
+    static final class Range {
+        final String key;
+        final long start;
+        final byte[] data;
+        private int filled;
+        private long contentLength = C.LENGTH_UNSET;
+        private boolean contentLengthKnown;
+        private boolean finished;
+        private long finishedAtMs;
+        @Nullable
+        private IOException error;
+
+        Range(String key, long start, int capacity) {
+            this.key = key;
+            this.start = start;
+            this.data = new byte[capacity];
+        }
+
+        boolean covers(long position) {
+            return position >= start && position < start + data.length;
+        }
+
+        synchronized void setContentLength(long contentLength) {
+            this.contentLength = contentLength;
+            this.contentLengthKnown = true;
+            notifyAll();
+        }
+
+        /**
+         * @return 文件总长度，请求失败或未知时返回C.LENGTH_UNSET
+         */
+        synchronized long awaitContentLength() throws IOException {
+            while (!contentLengthKnown && !finished) {
+                waitUninterruptibly();
+            }
+            return contentLength;
+        }
+
+        synchronized boolean isFull() {
+            return filled == data.length;
+        }
+
+        synchronized int filled() {
+            return filled;
+        }
+
+        synchronized boolean isFinished() {
+            return finished;
+        }
+
+        synchronized boolean isExpired(long nowMs) {
+            return finished && nowMs - finishedAtMs > Stash.STASH_TTL_MS;
+        }
+
+        int append(DataSource dataSource) throws IOException {
+            int offset;
+            synchronized (this) {
+                offset = filled;
+            }
+            // 只有下载线程写入，读的时候不用持有锁
+            int read = dataSource.read(data, offset, data.length - offset);
+            if (read > 0) {
+                synchronized (this) {
+                    filled += read;
+                    notifyAll();
+                }
+            }
+            return read;
+        }
+
+        synchronized void finish(@Nullable IOException error) {
+            this.error = error;
+            this.finished = true;
+            this.finishedAtMs = SystemClock.elapsedRealtime();
+            notifyAll();
+        }
+
+        /**
+         * 等待position处的数据到达
+         *
+         * @return 读到的字节数，预取的部分已经读完或请求失败时返回C.RESULT_END_OF_INPUT
+         */
+        synchronized int read(long position, byte[] buffer, int offset, int readLength) throws IOException {
+            int rangeOffset = (int) (position - start);
+            while (rangeOffset >= filled && !finished) {
+                waitUninterruptibly();
+            }
+            if (rangeOffset >= filled) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            int length = Math.min(readLength, filled - rangeOffset);
+            System.arraycopy(data, rangeOffset, buffer, offset, length);
+            return length;
+        }
+
+        private void waitUninterruptibly() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * 把Range里已经下载的数据当作上游，用来写入缓存
+     */
+    private static final class MemoryDataSource implements DataSource {
+        private final Range range;
+        @Nullable
+        private Uri uri;
+        private long position;
+        private long end;
+
+        MemoryDataSource(Range range) {
+            this.range = range;
+        }
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            int filled = range.filled();
+            long rangeEnd = range.start + filled;
+            if (dataSpec.position < range.start || dataSpec.position > rangeEnd) {
+                throw new IOException("position out of range: " + dataSpec.position);
+            }
+            uri = dataSpec.uri;
+            position = dataSpec.position;
+            end = dataSpec.length == C.LENGTH_UNSET ? rangeEnd : Math.min(rangeEnd, position + dataSpec.length);
+            return end - position;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            if (position >= end) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            int length = (int) Math.min(readLength, end - position);
+            int read = range.read(position, buffer, offset, length);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+            return uri;
+        }
+
+        @Override
+        public void close() {
+            uri = null;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.example.exoplayer;
+
+import android.graphics.Rect;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.view.ViewTreeObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 列表里多个BaseVideoView的播放协调：根据每个view在屏幕上的可见比例，
+ * 自动播放最可见的那个、暂停其他的，超过同时解码数量的播放器按可见度从低到高释放(保留播放位置)，
+ * 并把接下来要播的地址交给预加载。
+ * 滚动事件合并到下一帧统一处理一次，每帧不分配对象。只能在主线程使用。
+ */
+public final class PlaybackCoordinator implements ViewTreeObserver.OnScrollChangedListener, Choreographer.FrameCallback {
+    public static final int DEFAULT_MAX_ACTIVE = 2;
+    public static final float DEFAULT_PLAY_FRACTION = 0.5f;
+    public static final int DEFAULT_PREFETCH_COUNT = 3;
+    /**
+     * 切换播放view的滞后量，避免两个view可见度接近时来回切换
+     */
+    private static final float HYSTERESIS = 0.1f;
+
+    private static PlaybackCoordinator sInstance;
+
+    private final ArrayList<BaseVideoView> views = new ArrayList<>();
+    private final Rect visibleRect = new Rect();
+    private float[] fractions = new float[8];
+    private int[] order = new int[8];
+    private int orderCount;
+    private BaseVideoView current;
+    private List<String> feed;
+    private int maxActive = DEFAULT_MAX_ACTIVE;
+    private float playFraction = DEFAULT_PLAY_FRACTION;
+    private int prefetchCount = DEFAULT_PREFETCH_COUNT;
+    private boolean autoPlay = true;
+    private boolean frameScheduled;
+    private int passCount;
+    private long passTotalNs;
+    private int switchCount;
+    private int releaseCount;
+
+    public static PlaybackCoordinator get() {
+        checkMainThread();
+        if (sInstance == null) {
+            sInstance = new PlaybackCoordinator();
+        }
+        return sInstance;
+    }
+
+    private PlaybackCoordinator() {
+    }
+
+    /**
+     * 加入协调，RecyclerView中在onBindViewHolder设置地址后调用，view detach时自动移除
+     */
+    public void register(BaseVideoView view) {
+        checkMainThread();
+        if (views.contains(view)) {
+            return;
+        }
+        views.add(view);
+        view.getViewTreeObserver().addOnScrollChangedListener(this);
+        onScroll();
+    }
+
+    public void unregister(BaseVideoView view) {
+        checkMainThread();
+        if (!views.remove(view)) {
+            return;
+        }
+        ViewTreeObserver observer = view.getViewTreeObserver();
+        if (observer.isAlive()) {
+            observer.removeOnScrollChangedListener(this);
+        }
+        if (view == current) {
+            current = null;
+        }
+        onScroll();
+    }
+
+    /**
+     * 整个列表的地址，按播放顺序。设置后预加载当前播放地址之后的几个，不设置时按可见度预加载其他view
+     */
+    public void setFeed(List<String> urls) {
+        checkMainThread();
+        feed = urls == null ? null : new ArrayList<>(urls);
+        updatePrefetch();
+    }
+
+    /**
+     * 同时持有播放器(解码器)的view数量上限，至少为1
+     */
+    public void setMaxActive(int maxActive) {
+        checkMainThread();
+        this.maxActive = Math.max(1, maxActive);
+        onScroll();
+    }
+
+    /**
+     * 可见比例达到这个值才自动播放
+     */
+    public void setPlayFraction(float fraction) {
+        checkMainThread();
+        playFraction = fraction;
+        onScroll();
+    }
+
+    public void setPrefetchCount(int count) {
+        checkMainThread();
+        prefetchCount = Math.max(0, count);
+        updatePrefetch();
+    }
+
+    /**
+     * 关闭后只限制解码器数量和预加载，不自动播放和暂停
+     */
+    public void setAutoPlay(boolean autoPlay) {
+        checkMainThread();
+        this.autoPlay = autoPlay;
+    }
+
+    /**
+     * @return 当前自动播放的view，没有时返回null
+     */
+    public BaseVideoView getCurrent() {
+        return current;
+    }
+
+    /**
+     * 滚动时调用，同一帧内多次调用只处理一次。
+     * ViewTreeObserver的滚动回调会自动调用，其他方式移动view(比如动画)时需要手动调用
+     */
+    public void onScroll() {
+        checkMainThread();
+        if (!frameScheduled && !views.isEmpty()) {
+            frameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void onScrollChanged() {
+        onScroll();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        frameScheduled = false;
+        long startNs = System.nanoTime();
+        update();
+        passCount++;
+        passTotalNs += System.nanoTime() - startNs;
+    }
+
+    private void update() {
+        int count = views.size();
+        if (fractions.length < count) {
+            fractions = new float[count * 2];
+            order = new int[count * 2];
+        }
+        float currentFraction = 0f;
+        for (int i = 0; i < count; i++) {
+            BaseVideoView view = views.get(i);
+            float fraction = view.getVisibleFraction(visibleRect);
+            fractions[i] = fraction;
+            if (view == current) {
+                currentFraction = fraction;
+            }
+            // 按可见度从高到低插入排序，view数量很少
+            int j = i;
+            while (j > 0 && fractions[order[j - 1]] < fraction) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+        orderCount = count;
+
+        BaseVideoView target = current;
+        if (count == 0) {
+            target = null;
+        } else {
+            BaseVideoView best = views.get(order[0]);
+            float bestFraction = fractions[order[0]];
+            if (current == null || currentFraction < playFraction - HYSTERESIS
+                    || (best != current && bestFraction > currentFraction + HYSTERESIS)) {
+                target = bestFraction >= playFraction ? best : null;
+            }
+        }
+        if (target != current) {
+            if (current != null && autoPlay) {
+                current.pause();
+            }
+            current = target;
+            switchCount++;
+            if (current != null && autoPlay) {
+                current.start();
+            }
+            updatePrefetch();
+        }
+
+        // 当前播放的view总是占一个名额，其余按可见度分配，超出的释放
+        int active = current != null && current.hasPlayer() ? 1 : 0;
+        for (int k = 0; k < count; k++) {
+            BaseVideoView view = views.get(order[k]);
+            if (view == current || !view.hasPlayer()) {
+                continue;
+            }
+            if (autoPlay && view.isPlaying()) {
+                view.pause();
+            }
+            if (active < maxActive) {
+                active++;
+            } else {
+                view.releaseKeepingPosition();
+                releaseCount++;
+            }
+        }
+    }
+
+    private void updatePrefetch() {
+        if (current == null || prefetchCount <= 0) {
+            return;
+        }
+        ArrayList<String> next = new ArrayList<>(prefetchCount);
+        if (feed != null) {
+            int index = feed.indexOf(current.getUrl());
+            for (int i = index + 1; i < feed.size() && next.size() < prefetchCount; i++) {
+                next.add(feed.get(i));
+            }
+        } else {
+            // 没有完整列表时预加载可见度最高、还没有播放器的view
+            // 上一帧之后可能有view移除了，只用还在范围内的
+            for (int k = 0; k < orderCount && next.size() < prefetchCount; k++) {
+                if (order[k] >= views.size()) {
+                    continue;
+                }
+                BaseVideoView view = views.get(order[k]);
+                String url = view.getUrl();
+                if (view != current && !view.hasPlayer() && url != null && !next.contains(url)) {
+                    next.add(url);
+                }
+            }
+        }
+        if (!next.isEmpty()) {
+            PrefetchManager.get(current.getContext()).setQueue(next);
+        }
+    }
+
+    public String getStats() {
+        return "views=" + views.size() + ", passes=" + passCount
+                + ", avgPassUs=" + (passCount == 0 ? 0 : passTotalNs / passCount / 1000)
+                + ", switches=" + switchCount + ", released=" + releaseCount;
+    }
+
+    private static void checkMainThread() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new IllegalStateException("PlaybackCoordinator must be used on the main thread");
+        }
+    }
+}
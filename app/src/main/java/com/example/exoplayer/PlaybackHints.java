@@ -0,0 +1,387 @@
+package com.example.exoplayer;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseLongArray;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.mediacodec.MediaCodecInfo;
+import com.google.android.exoplayer2.mediacodec.MediaCodecSelector;
+import com.google.android.exoplayer2.mediacodec.MediaCodecUtil;
+import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 跨进程保留的起播提示：每种网络最近的带宽估计，以及每种视频格式初始化成功和失败过的解码器。
+ * Application启动时在后台加载，之后的带宽估计从上次的值开始，第一次选轨就能选对码率；
+ * 解码器按上次成功的排在前面、多次失败的排到最后，并提前查询一遍解码器列表，播放时不用再探测。
+ * 解码器的记录过期或者应用、系统升级后作废，驱动更新后不会一直避开修好的解码器。
+ */
+final class PlaybackHints {
+    private static final String TAG = "PlaybackHints";
+    private static final String FILE_NAME = "playback-hints";
+    private static final int MAGIC = 0x50424849;
+    private static final int VERSION = 2;
+    /**
+     * 同一个解码器失败这么多次才排到最后，偶发的失败不影响下次
+     */
+    static final int DEMOTE_FAILURE_COUNT = 3;
+    /**
+     * 解码器的记录多久没有更新就作废
+     */
+    static final long CODEC_HINT_TTL_MS = 7 * 24 * 60 * 60 * 1000L;
+    /**
+     * 在后台线程创建带宽估计时最多等待加载的时间，超时就用默认的初始值
+     */
+    static final long LOAD_AWAIT_MS = 200;
+    /**
+     * 带宽采样很频繁，合并后再写文件
+     */
+    private static final long SAVE_DELAY_MS = 10 * 1000;
+
+    private static volatile PlaybackHints sInstance;
+    private static volatile DefaultBandwidthMeter sBandwidthMeter;
+
+    /**
+     * 包装默认的解码器选择，加载完成前不改变顺序
+     */
+    static final MediaCodecSelector CODEC_SELECTOR = (mimeType, requiresSecureDecoder, requiresTunnelingDecoder) -> {
+        List<MediaCodecInfo> infos = MediaCodecSelector.DEFAULT.getDecoderInfos(
+                mimeType, requiresSecureDecoder, requiresTunnelingDecoder);
+        PlaybackHints hints = sInstance;
+        return hints == null ? infos : hints.orderDecoders(mimeType, infos);
+    };
+
+    private final Context context;
+    private final AtomicFile file;
+    /**
+     * 应用版本和系统版本，变化后解码器的记录作废
+     */
+    private final String buildId;
+    private final Handler workerHandler;
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private final Runnable saveRunnable = this::save;
+    /**
+     * C.NETWORK_TYPE_*到bps
+     */
+    private final SparseLongArray bitrates = new SparseLongArray();
+    private final HashMap<String, CodecHint> codecs = new HashMap<>();
+    /**
+     * 解码器名字到最近一次查询它时的格式，解码器初始化的回调里只有名字
+     */
+    private final ConcurrentHashMap<String, String> mimeByDecoder = new ConcurrentHashMap<>();
+    private int reorderedCount;
+    private int demotedCount;
+
+    private static final class CodecHint {
+        String preferredDecoder;
+        long initMs;
+        /**
+         * 最近一次成功或失败的时间，System.currentTimeMillis()
+         */
+        long updatedMs;
+        /**
+         * 解码器名字到连续失败的次数，成功一次就清零
+         */
+        final HashMap<String, Integer> failureCounts = new HashMap<>();
+
+        boolean isDemoted(String decoderName) {
+            Integer count = failureCounts.get(decoderName);
+            return count != null && count >= DEMOTE_FAILURE_COUNT;
+        }
+    }
+
+    static PlaybackHints get(Context context) {
+        if (sInstance == null) {
+            synchronized (PlaybackHints.class) {
+                if (sInstance == null) {
+                    Context appContext = context.getApplicationContext();
+                    sInstance = new PlaybackHints(appContext, new File(appContext.getFilesDir(), FILE_NAME),
+                            BuildConfig.VERSION_CODE + "/" + Build.FINGERPRINT);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * file和buildId可以换成测试用的，模拟升级
+     */
+    PlaybackHints(Context context, File file, String buildId) {
+        this.context = context;
+        this.file = new AtomicFile(file);
+        this.buildId = buildId;
+        HandlerThread thread = new HandlerThread("playback-hints", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        this.workerHandler = new Handler(thread.getLooper());
+        workerHandler.post(this::load);
+    }
+
+    /**
+     * 应在Application.onCreate()里调用，在后台加载并预先查询上次用到的解码器
+     */
+    static void warmUp(Context context) {
+        get(context);
+    }
+
+    /**
+     * 所有播放器共用的带宽估计，初始值是每种网络上次的估计。
+     * 第一次调用时最多等待LOAD_AWAIT_MS，可以在任意线程调用。
+     * 主线程从不等待，还没加载完时返回ExoPlayer默认的带宽估计，共用的等后台线程第一次调用时再创建
+     */
+    static DefaultBandwidthMeter getBandwidthMeter(Context context) {
+        if (sBandwidthMeter == null) {
+            PlaybackHints hints = get(context);
+            if (!hints.isLoaded() && Looper.myLooper() == Looper.getMainLooper()) {
+                Log.d(TAG, "hints not loaded, default bandwidth meter on main thread");
+                return DefaultBandwidthMeter.getSingletonInstance(context);
+            }
+            hints.awaitLoaded(LOAD_AWAIT_MS);
+            synchronized (PlaybackHints.class) {
+                if (sBandwidthMeter == null) {
+                    sBandwidthMeter = hints.buildBandwidthMeter();
+                }
+            }
+        }
+        return sBandwidthMeter;
+    }
+
+    private DefaultBandwidthMeter buildBandwidthMeter() {
+        DefaultBandwidthMeter.Builder builder = new DefaultBandwidthMeter.Builder(context);
+        if (isLoaded()) {
+            synchronized (this) {
+                for (int i = 0; i < bitrates.size(); i++) {
+                    builder.setInitialBitrateEstimate(bitrates.keyAt(i), bitrates.valueAt(i));
+                }
+            }
+        }
+        DefaultBandwidthMeter bandwidthMeter = builder.build();
+        bandwidthMeter.addEventListener(workerHandler, this::onBandwidthSample);
+        return bandwidthMeter;
+    }
+
+    private void onBandwidthSample(int elapsedMs, long bytesTransferred, long bitrateEstimate) {
+        int networkType = Util.getNetworkType(context);
+        if (networkType == C.NETWORK_TYPE_UNKNOWN || networkType == C.NETWORK_TYPE_OFFLINE) {
+            return;
+        }
+        synchronized (this) {
+            bitrates.put(networkType, bitrateEstimate);
+        }
+        scheduleSave();
+    }
+
+    /**
+     * 记下成功初始化的解码器，下次同样格式先用它
+     */
+    void onDecoderInitialized(String decoderName, long initializationDurationMs) {
+        String mimeType = mimeByDecoder.get(decoderName);
+        if (mimeType == null) {
+            return;
+        }
+        synchronized (this) {
+            CodecHint hint = getCodecHint(mimeType);
+            hint.preferredDecoder = decoderName;
+            hint.initMs = initializationDurationMs;
+            hint.updatedMs = System.currentTimeMillis();
+            hint.failureCounts.remove(decoderName);
+        }
+        scheduleSave();
+    }
+
+    /**
+     * 初始化失败的解码器，连续失败DEMOTE_FAILURE_COUNT次后同样格式最后才试
+     */
+    void onDecoderInitFailed(String mimeType, String decoderName) {
+        int count;
+        synchronized (this) {
+            CodecHint hint = getCodecHint(mimeType);
+            Integer previous = hint.failureCounts.get(decoderName);
+            count = previous == null ? 1 : previous + 1;
+            hint.failureCounts.put(decoderName, count);
+            hint.updatedMs = System.currentTimeMillis();
+            if (decoderName.equals(hint.preferredDecoder)) {
+                hint.preferredDecoder = null;
+            }
+        }
+        Log.w(TAG, "decoder init failed: " + decoderName + " for " + mimeType + ", count=" + count);
+        scheduleSave();
+    }
+
+    synchronized String getStats() {
+        return "networks=" + bitrates.size() + ", codecs=" + codecs.size()
+                + ", reordered=" + reorderedCount + ", demoted=" + demotedCount;
+    }
+
+    private boolean isLoaded() {
+        return loaded.getCount() == 0;
+    }
+
+    void awaitLoaded(long timeoutMs) {
+        try {
+            if (!loaded.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "hints not loaded after " + timeoutMs + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 上次成功的排第一，多次失败的按原来的顺序排到最后，不会去掉，别的都不行时还能试
+     */
+    synchronized List<MediaCodecInfo> orderDecoders(String mimeType, List<MediaCodecInfo> infos) {
+        for (MediaCodecInfo info : infos) {
+            mimeByDecoder.put(info.name, mimeType);
+        }
+        CodecHint hint = codecs.get(mimeType);
+        if (hint == null || infos.size() < 2 || !isLoaded()) {
+            return infos;
+        }
+        ArrayList<MediaCodecInfo> ordered = new ArrayList<>(infos.size());
+        ArrayList<MediaCodecInfo> demoted = new ArrayList<>();
+        for (MediaCodecInfo info : infos) {
+            if (info.name.equals(hint.preferredDecoder)) {
+                ordered.add(0, info);
+            } else if (hint.isDemoted(info.name)) {
+                demoted.add(info);
+            } else {
+                ordered.add(info);
+            }
+        }
+        if (!demoted.isEmpty() && !ordered.isEmpty()) {
+            demotedCount += demoted.size();
+        }
+        ordered.addAll(demoted);
+        if (ordered.get(0) != infos.get(0)) {
+            reorderedCount++;
+        }
+        return ordered;
+    }
+
+    private CodecHint getCodecHint(String mimeType) {
+        CodecHint hint = codecs.get(mimeType);
+        if (hint == null) {
+            hint = new CodecHint();
+            codecs.put(mimeType, hint);
+        }
+        return hint;
+    }
+
+    private void load() {
+        ArrayList<String> mimeTypes = new ArrayList<>();
+        if (file.getBaseFile().exists()) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(file.openRead()))) {
+                if (input.readInt() == MAGIC && input.readInt() == VERSION) {
+                    // 带宽估计和版本无关，解码器的记录换了版本就不用了
+                    boolean sameBuild = buildId.equals(input.readUTF());
+                    long now = System.currentTimeMillis();
+                    synchronized (this) {
+                        int networkCount = input.readInt();
+                        for (int i = 0; i < networkCount; i++) {
+                            bitrates.put(input.readInt(), input.readLong());
+                        }
+                        int codecCount = input.readInt();
+                        for (int i = 0; i < codecCount; i++) {
+                            String mimeType = input.readUTF();
+                            CodecHint hint = new CodecHint();
+                            String preferred = input.readUTF();
+                            hint.preferredDecoder = preferred.isEmpty() ? null : preferred;
+                            hint.initMs = input.readLong();
+                            hint.updatedMs = input.readLong();
+                            int failedCount = input.readInt();
+                            for (int j = 0; j < failedCount; j++) {
+                                hint.failureCounts.put(input.readUTF(), input.readInt());
+                            }
+                            if (sameBuild && now - hint.updatedMs < CODEC_HINT_TTL_MS) {
+                                codecs.put(mimeType, hint);
+                                mimeTypes.add(mimeType);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "failed to load hints", e);
+            }
+        }
+        loaded.countDown();
+        Log.i(TAG, "loaded, " + getStats());
+        // 解码器列表查询一次后ExoPlayer会缓存，第一个播放器创建解码器时不用再等
+        for (String mimeType : mimeTypes) {
+            try {
+                for (MediaCodecInfo info : MediaCodecUtil.getDecoderInfos(mimeType, false, false)) {
+                    mimeByDecoder.put(info.name, mimeType);
+                }
+            } catch (MediaCodecUtil.DecoderQueryException e) {
+                Log.w(TAG, "failed to query decoders for " + mimeType, e);
+            }
+        }
+    }
+
+    private void scheduleSave() {
+        if (!isLoaded()) {
+            return;
+        }
+        workerHandler.removeCallbacks(saveRunnable);
+        workerHandler.postDelayed(saveRunnable, SAVE_DELAY_MS);
+    }
+
+    void save() {
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = file.startWrite();
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(outputStream));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(buildId);
+            synchronized (this) {
+                output.writeInt(bitrates.size());
+                for (int i = 0; i < bitrates.size(); i++) {
+                    output.writeInt(bitrates.keyAt(i));
+                    output.writeLong(bitrates.valueAt(i));
+                }
+                output.writeInt(codecs.size());
+                for (Map.Entry<String, CodecHint> entry : codecs.entrySet()) {
+                    CodecHint hint = entry.getValue();
+                    output.writeUTF(entry.getKey());
+                    output.writeUTF(hint.preferredDecoder == null ? "" : hint.preferredDecoder);
+                    output.writeLong(hint.initMs);
+                    output.writeLong(hint.updatedMs);
+                    output.writeInt(hint.failureCounts.size());
+                    for (Map.Entry<String, Integer> failure : hint.failureCounts.entrySet()) {
+                        output.writeUTF(failure.getKey());
+                        output.writeInt(failure.getValue());
+                    }
+                }
+            }
+            output.flush();
+            file.finishWrite(outputStream);
+        } catch (IOException e) {
+            Log.w(TAG, "failed to save hints", e);
+            if (outputStream != null) {
+                file.failWrite(outputStream);
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.example.exoplayer;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * 汇总所有播放会话的质量指标：卡顿、丢帧、解码器初始化耗时、带宽估计和码率。
+ * 每个会话结束时交给Exporter导出，默认只打日志。
+ */
+public final class PlaybackMetrics {
+    private static final String TAG = "PlaybackMetrics";
+
+    private static final PlaybackMetrics sInstance = new PlaybackMetrics();
+
+    public interface Exporter {
+        /**
+         * 在主线程回调，session之后不会再被修改
+         */
+        void export(Session session);
+    }
+
+    private final Histogram stallDurationMs = new Histogram(100, 300);
+    private final Histogram rebufferCount = new Histogram(1, 50);
+    private final Histogram droppedFrames = new Histogram(1, 500);
+    private final Histogram decoderInitMs = new Histogram(5, 400);
+    private final Histogram bandwidthKbps = new Histogram(250, 400);
+    private final Histogram bitrateKbps = new Histogram(100, 200);
+    private final Histogram seekLatencyMs = new Histogram(10, 300);
+    private final Histogram scrubLatencyMs = new Histogram(10, 300);
+    private final Histogram trickLatencyMs = new Histogram(10, 300);
+    private long offscreenMs;
+    private long offscreenCpuMs;
+    private long offscreenBytes;
+    /**
+     * 按倍速(乘100)统计：时长、CPU时间、解码帧数、显示帧数
+     */
+    private final SparseArray<long[]> speedLoads = new SparseArray<>();
+    /**
+     * 按是否限制了选轨分辨率统计：会话数、时长、加载字节数、解码分辨率(宽×高)乘时长
+     */
+    private final long[][] sizeLimitLoads = new long[2][4];
+    private volatile Exporter exporter = session -> Log.i(TAG, session.toString());
+
+    public static PlaybackMetrics get() {
+        return sInstance;
+    }
+
+    /**
+     * 测试用单独的实例，不影响全局的统计
+     */
+    PlaybackMetrics() {
+    }
+
+    public void setExporter(Exporter exporter) {
+        this.exporter = exporter;
+    }
+
+    public String dump() {
+        StringBuilder speeds = new StringBuilder();
+        for (int i = 0; i < speedLoads.size(); i++) {
+            long[] load = speedLoads.valueAt(i);
+            speeds.append("\n  speed ").append(speedLoads.keyAt(i) / 100f).append("x: totalMs=").append(load[0])
+                    .append(" cpuMsPerSec=").append(perSecond(load[1], load[0]))
+                    .append(" decodedFps=").append(perSecond(load[2], load[0]))
+                    .append(" renderedFps=").append(perSecond(load[3], load[0]));
+        }
+        StringBuilder sizeLimits = new StringBuilder();
+        for (int i = 0; i < sizeLimitLoads.length; i++) {
+            long[] load = sizeLimitLoads[i];
+            sizeLimits.append("\n  videoSizeLimit ").append(i == 1 ? "on" : "off").append(": sessions=").append(load[0])
+                    .append(" bytesPerMin=").append(perMinute(load[2], load[1]))
+                    .append(" avgDecodedPixels=").append(load[1] <= 0 ? 0 : load[3] / load[1]);
+        }
+        return "sessions=" + rebufferCount.getCount()
+                + "\n  rebufferCount: p50=" + rebufferCount.percentile(50) + " p95=" + rebufferCount.percentile(95)
+                + "\n  stallMs: p50=" + stallDurationMs.percentile(50) + " p95=" + stallDurationMs.percentile(95)
+                + "\n  droppedFrames: p50=" + droppedFrames.percentile(50) + " p95=" + droppedFrames.percentile(95)
+                + "\n  decoderInitMs: p50=" + decoderInitMs.percentile(50) + " p95=" + decoderInitMs.percentile(95)
+                + "\n  bandwidthKbps: p5=" + bandwidthKbps.percentile(5) + " p50=" + bandwidthKbps.percentile(50)
+                + "\n  bitrateKbps: p50=" + bitrateKbps.percentile(50) + " p95=" + bitrateKbps.percentile(95)
+                + "\n  seekToRenderMs: p50=" + seekLatencyMs.percentile(50) + " p95=" + seekLatencyMs.percentile(95)
+                + "\n  scrubToRenderMs: p50=" + scrubLatencyMs.percentile(50) + " p95=" + scrubLatencyMs.percentile(95)
+                + "\n  trickToRenderMs: p50=" + trickLatencyMs.percentile(50) + " p95=" + trickLatencyMs.percentile(95)
+                + "\n  offscreen: totalMs=" + offscreenMs + " cpuMsPerMin=" + perMinute(offscreenCpuMs, offscreenMs)
+                + " bytesPerMin=" + perMinute(offscreenBytes, offscreenMs)
+                + speeds
+                + sizeLimits;
+    }
+
+    private static long perSecond(long value, long durationMs) {
+        return durationMs <= 0 ? 0 : value * 1000 / durationMs;
+    }
+
+    private static long perMinute(long value, long durationMs) {
+        return durationMs <= 0 ? 0 : value * 60000 / durationMs;
+    }
+
+    void recordBandwidthEstimate(long bitrateEstimate) {
+        bandwidthKbps.record(bitrateEstimate / 1000);
+    }
+
+    void recordBitrate(int bitrate) {
+        bitrateKbps.record(bitrate / 1000);
+    }
+
+    /**
+     * 从seekTo()到新位置的第一帧渲染出来的耗时
+     *
+     * @param scrub 是否是拖动过程中的关键帧seek
+     */
+    void recordSeekLatency(long latencyMs, boolean scrub) {
+        (scrub ? scrubLatencyMs : seekLatencyMs).record(latencyMs);
+    }
+
+    /**
+     * 快进快退时定时seek到关键帧到画面渲染出来的耗时，不算在拖动里
+     */
+    void recordTrickSeekLatency(long latencyMs) {
+        trickLatencyMs.record(latencyMs);
+    }
+
+    /**
+     * 没有surface、视频渲染器关闭的一段时间，cpu是整个进程的CPU时间，bytes是整个进程的网络流量
+     */
+    void recordOffscreen(long durationMs, long cpuMs, long bytes) {
+        offscreenMs += durationMs;
+        offscreenCpuMs += cpuMs;
+        offscreenBytes += bytes;
+    }
+
+    /**
+     * 某个倍速下播放的一段时间，cpu是整个进程的CPU时间，frames是视频解码器的输入和输出帧数。
+     * 比较不同倍速的解码负载用，快进快退时decoded应该远小于正常速度
+     */
+    void recordSpeed(float speed, long durationMs, long cpuMs, int decodedFrames, int renderedFrames) {
+        if (durationMs <= 0) {
+            return;
+        }
+        int key = Math.round(speed * 100);
+        long[] load = speedLoads.get(key);
+        if (load == null) {
+            load = new long[4];
+            speedLoads.put(key, load);
+        }
+        load[0] += durationMs;
+        load[1] += cpuMs;
+        load[2] += decodedFrames;
+        load[3] += renderedFrames;
+    }
+
+    void recordDecoderInit(long initializationDurationMs) {
+        decoderInitMs.record(initializationDurationMs);
+    }
+
+    void onSessionEnd(Session session) {
+        rebufferCount.record(session.rebufferCount);
+        stallDurationMs.record(session.stallDurationMs);
+        droppedFrames.record(session.droppedFrames);
+        recordSizeLimitLoad(session);
+        Exporter exporter = this.exporter;
+        if (exporter != null) {
+            exporter.export(session);
+        }
+    }
+
+    /**
+     * 对比限制和不限制选轨分辨率时的流量和解码负载，只统计解码过视频的会话
+     */
+    private void recordSizeLimitLoad(Session session) {
+        long durationMs = session.endRealtimeMs - session.startRealtimeMs;
+        if (durationMs <= 0 || session.videoWidth <= 0 || session.videoHeight <= 0) {
+            return;
+        }
+        long[] load = sizeLimitLoads[session.videoSizeLimited ? 1 : 0];
+        load[0]++;
+        load[1] += durationMs;
+        load[2] += session.bytesLoaded;
+        load[3] += (long) session.videoWidth * session.videoHeight * durationMs;
+    }
+
+    /**
+     * 一次播放会话的计数，从prepare()到reset()
+     */
+    public static final class Session {
+        public final String url;
+        public final long startRealtimeMs;
+        public long endRealtimeMs;
+        public int rebufferCount;
+        public long stallDurationMs;
+        public long droppedFrames;
+        public long videoDecoderInitMs = -1;
+        public long audioDecoderInitMs = -1;
+        public int bitrateSwitchCount;
+        public int lastBitrate = -1;
+        public long lastBandwidthEstimate = -1;
+        /**
+         * 这次会话播放器加载的字节数，包括从缓存读的
+         */
+        public long bytesLoaded;
+        public int videoWidth = -1;
+        public int videoHeight = -1;
+        /**
+         * 会话期间是否按view大小限制过选轨分辨率
+         */
+        public boolean videoSizeLimited;
+
+        Session(String url, long startRealtimeMs) {
+            this.url = url;
+            this.startRealtimeMs = startRealtimeMs;
+        }
+
+        @Override
+        public String toString() {
+            return "Session{durationMs=" + (endRealtimeMs - startRealtimeMs)
+                    + ", rebuffers=" + rebufferCount + ", stallMs=" + stallDurationMs
+                    + ", droppedFrames=" + droppedFrames
+                    + ", videoDecoderInitMs=" + videoDecoderInitMs + ", audioDecoderInitMs=" + audioDecoderInitMs
+                    + ", bitrateSwitches=" + bitrateSwitchCount + ", lastBitrate=" + lastBitrate
+                    + ", lastBandwidth=" + lastBandwidthEstimate + ", bytesLoaded=" + bytesLoaded
+                + ", videoSize=" + videoWidth + "x" + videoHeight + ", videoSizeLimited=" + videoSizeLimited
+                + ", url=" + url + "}";
+        }
+    }
+}
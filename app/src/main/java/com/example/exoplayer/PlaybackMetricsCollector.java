@@ -0,0 +1,161 @@
+package com.example.exoplayer;
+
+import android.os.SystemClock;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.analytics.AnalyticsListener;
+import com.google.android.exoplayer2.source.LoadEventInfo;
+import com.google.android.exoplayer2.source.MediaLoadData;
+
+import java.io.IOException;
+
+/**
+ * 挂在一个播放器上，按会话收集播放质量指标，结束时交给PlaybackMetrics
+ */
+final class PlaybackMetricsCollector implements AnalyticsListener {
+    private PlaybackMetrics.Session session;
+    private boolean hasBeenReady;
+    private boolean seeking;
+    private long stallStartMs = C.TIME_UNSET;
+    private boolean videoSizeLimited;
+
+    void beginSession(String url) {
+        endSession();
+        session = new PlaybackMetrics.Session(url, SystemClock.elapsedRealtime());
+        session.videoSizeLimited = videoSizeLimited;
+        hasBeenReady = false;
+        seeking = false;
+        stallStartMs = C.TIME_UNSET;
+    }
+
+    void endSession() {
+        PlaybackMetrics.Session session = this.session;
+        if (session == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        endStall(now);
+        session.endRealtimeMs = now;
+        this.session = null;
+        PlaybackMetrics.get().onSessionEnd(session);
+    }
+
+    /**
+     * 选轨的分辨率限制变化，会话期间限制过就算作限制了分辨率的会话
+     */
+    void setVideoSizeLimited(boolean limited) {
+        videoSizeLimited = limited;
+        if (limited && session != null) {
+            session.videoSizeLimited = true;
+        }
+    }
+
+    @Override
+    public void onSeekStarted(EventTime eventTime) {
+        seeking = true;
+    }
+
+    @Override
+    public void onPlayerStateChanged(EventTime eventTime, boolean playWhenReady, int playbackState) {
+        if (session == null) {
+            return;
+        }
+        switch (playbackState) {
+            case Player.STATE_READY:
+                hasBeenReady = true;
+                seeking = false;
+                endStall(eventTime.realtimeMs);
+                break;
+            case Player.STATE_BUFFERING:
+                // 起播和seek引起的缓冲不算卡顿
+                if (hasBeenReady && !seeking && playWhenReady && stallStartMs == C.TIME_UNSET) {
+                    stallStartMs = eventTime.realtimeMs;
+                    session.rebufferCount++;
+                }
+                break;
+            default:
+                endStall(eventTime.realtimeMs);
+                break;
+        }
+    }
+
+    @Override
+    public void onDroppedVideoFrames(EventTime eventTime, int droppedFrames, long elapsedMs) {
+        if (session != null) {
+            session.droppedFrames += droppedFrames;
+        }
+    }
+
+    @Override
+    public void onDecoderInitialized(EventTime eventTime, int trackType, String decoderName, long initializationDurationMs) {
+        if (session == null) {
+            return;
+        }
+        if (trackType == C.TRACK_TYPE_VIDEO) {
+            session.videoDecoderInitMs = initializationDurationMs;
+            PlaybackMetrics.get().recordDecoderInit(initializationDurationMs);
+        } else if (trackType == C.TRACK_TYPE_AUDIO) {
+            session.audioDecoderInitMs = initializationDurationMs;
+        }
+    }
+
+    @Override
+    public void onDecoderInputFormatChanged(EventTime eventTime, int trackType, Format format) {
+        if (session == null || trackType != C.TRACK_TYPE_VIDEO) {
+            return;
+        }
+        // 解码的分辨率，和选轨限制一起看解码负载
+        session.videoWidth = format.width;
+        session.videoHeight = format.height;
+        if (format.bitrate == Format.NO_VALUE) {
+            return;
+        }
+        if (session.lastBitrate != -1 && session.lastBitrate != format.bitrate) {
+            session.bitrateSwitchCount++;
+        }
+        session.lastBitrate = format.bitrate;
+        PlaybackMetrics.get().recordBitrate(format.bitrate);
+    }
+
+    @Override
+    public void onLoadCompleted(EventTime eventTime, LoadEventInfo loadEventInfo, MediaLoadData mediaLoadData) {
+        if (session != null) {
+            session.bytesLoaded += loadEventInfo.bytesLoaded;
+        }
+    }
+
+    /**
+     * 被取消的加载（跳转、切换码率）已经下载的字节也算进来
+     */
+    @Override
+    public void onLoadCanceled(EventTime eventTime, LoadEventInfo loadEventInfo, MediaLoadData mediaLoadData) {
+        if (session != null) {
+            session.bytesLoaded += loadEventInfo.bytesLoaded;
+        }
+    }
+
+    @Override
+    public void onLoadError(EventTime eventTime, LoadEventInfo loadEventInfo, MediaLoadData mediaLoadData,
+                            IOException error, boolean wasCanceled) {
+        if (session != null) {
+            session.bytesLoaded += loadEventInfo.bytesLoaded;
+        }
+    }
+
+    @Override
+    public void onBandwidthEstimate(EventTime eventTime, int totalLoadTimeMs, long totalBytesLoaded, long bitrateEstimate) {
+        if (session != null) {
+            session.lastBandwidthEstimate = bitrateEstimate;
+            PlaybackMetrics.get().recordBandwidthEstimate(bitrateEstimate);
+        }
+    }
+
+    private void endStall(long nowMs) {
+        if (stallStartMs != C.TIME_UNSET) {
+            session.stallDurationMs += nowMs - stallStartMs;
+            stallStartMs = C.TIME_UNSET;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.exoplayer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * BaseVideoView的控制命令队列：start/pause/seek先入队，在下一次执行时合并后再交给播放器。
+ * 连续的start/pause只保留最后一个，和当前意图相同时不调用播放器；连续的seek只保留最后一个位置。
+ * 状态切换的合法性也在这里统一检查，并保留最近的切换和命令记录。
+ * 不依赖Android，单线程使用，executor决定在哪个线程执行。
+ */
+final class PlayerCommandQueue {
+    static final int TRACE_CAPACITY = 32;
+    private static final int INTENT_NONE = -1;
+    private static final int INTENT_PAUSE = 0;
+    private static final int INTENT_START = 1;
+
+    interface Target {
+        /**
+         * @return 当前是否要求播放，和新的start/pause比较，相同时不再调用播放器
+         */
+        boolean isPlayRequested();
+
+        void performStart();
+
+        void performPause();
+
+        void performSeek(int positionMs);
+    }
+
+    private final Target target;
+    private final Executor executor;
+    private final ArrayDeque<String> trace = new ArrayDeque<>(TRACE_CAPACITY);
+    private final long createTimeNs = System.nanoTime();
+    private final Runnable drainRunnable = this::drain;
+    private boolean drainScheduled;
+    private int pendingIntent = INTENT_NONE;
+    private int pendingSeekMs = -1;
+
+    private int requestedCount;
+    private int coalescedCount;
+    private int issuedCount;
+    private int rejectedTransitionCount;
+
+    PlayerCommandQueue(Target target, Executor executor) {
+        this.target = target;
+        this.executor = executor;
+    }
+
+    void start() {
+        enqueueIntent(INTENT_START);
+    }
+
+    void pause() {
+        enqueueIntent(INTENT_PAUSE);
+    }
+
+    void seek(int positionMs) {
+        requestedCount++;
+        if (pendingSeekMs >= 0) {
+            coalescedCount++;
+        }
+        pendingSeekMs = positionMs;
+        scheduleDrain();
+    }
+
+    /**
+     * 丢掉还没执行的命令，释放播放器时调用
+     */
+    void clear() {
+        if (pendingIntent != INTENT_NONE) {
+            coalescedCount++;
+        }
+        if (pendingSeekMs >= 0) {
+            coalescedCount++;
+        }
+        pendingIntent = INTENT_NONE;
+        pendingSeekMs = -1;
+    }
+
+    /**
+     * 立即执行队列中的命令
+     */
+    void drain() {
+        drainScheduled = false;
+        int seekMs = pendingSeekMs;
+        int intent = pendingIntent;
+        pendingSeekMs = -1;
+        pendingIntent = INTENT_NONE;
+        // 先seek再恢复播放，避免先从旧位置播一下
+        if (seekMs >= 0) {
+            issuedCount++;
+            record("seek " + seekMs);
+            target.performSeek(seekMs);
+        }
+        if (intent == INTENT_NONE) {
+            return;
+        }
+        boolean play = intent == INTENT_START;
+        if (play == target.isPlayRequested()) {
+            coalescedCount++;
+            record((play ? "start" : "pause") + " skipped");
+            return;
+        }
+        issuedCount++;
+        record(play ? "start" : "pause");
+        if (play) {
+            target.performStart();
+        } else {
+            target.performPause();
+        }
+    }
+
+    /**
+     * 检查并记录状态切换
+     *
+     * @return 不合法时返回false，调用方不应切换
+     */
+    boolean onTransition(int from, int to, String reason) {
+        boolean valid = isValidTransition(from, to);
+        if (!valid) {
+            rejectedTransitionCount++;
+        }
+        if (from != to || !valid) {
+            record(stateName(from) + "->" + stateName(to) + " (" + reason + ")" + (valid ? "" : " rejected"));
+        }
+        return valid;
+    }
+
+    static boolean isValidTransition(int from, int to) {
+        if (from == to) {
+            return true;
+        }
+        switch (to) {
+            case BaseVideoView.STATE_IDLE:
+            case BaseVideoView.STATE_ERROR:
+            case BaseVideoView.STATE_PREPARING:
+                return true;
+            case BaseVideoView.STATE_PREPARED:
+                // 准备中暂停过；或者接手别的view已经prepare好的播放器
+                return from == BaseVideoView.STATE_PREPARING || from == BaseVideoView.STATE_PAUSED
+                        || from == BaseVideoView.STATE_IDLE;
+            case BaseVideoView.STATE_TEXTURE_AVAILABLE:
+                return from == BaseVideoView.STATE_PREPARED || from == BaseVideoView.STATE_PLAYING
+                        || from == BaseVideoView.STATE_PAUSED;
+            case BaseVideoView.STATE_PLAYING:
+                return from == BaseVideoView.STATE_TEXTURE_AVAILABLE || from == BaseVideoView.STATE_PAUSED;
+            case BaseVideoView.STATE_PAUSED:
+                return from == BaseVideoView.STATE_PREPARING || from == BaseVideoView.STATE_PREPARED
+                        || from == BaseVideoView.STATE_TEXTURE_AVAILABLE || from == BaseVideoView.STATE_PLAYING;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return 最近的状态切换和发给播放器的命令，从旧到新
+     */
+    List<String> getTrace() {
+        return new ArrayList<>(trace);
+    }
+
+    int getIssuedCount() {
+        return issuedCount;
+    }
+
+    String getStats() {
+        return "requested=" + requestedCount + ", issued=" + issuedCount + ", coalesced=" + coalescedCount
+                + ", rejectedTransitions=" + rejectedTransitionCount;
+    }
+
+    private void enqueueIntent(int intent) {
+        requestedCount++;
+        if (pendingIntent != INTENT_NONE) {
+            coalescedCount++;
+        }
+        pendingIntent = intent;
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (!drainScheduled) {
+            drainScheduled = true;
+            executor.execute(drainRunnable);
+        }
+    }
+
+    private void record(String event) {
+        if (trace.size() == TRACE_CAPACITY) {
+            trace.pollFirst();
+        }
+        trace.addLast("+" + (System.nanoTime() - createTimeNs) / 1000000 + "ms " + event);
+    }
+
+    private static String stateName(int state) {
+        switch (state) {
+            case BaseVideoView.STATE_ERROR:
+                return "ERROR";
+            case BaseVideoView.STATE_IDLE:
+                return "IDLE";
+            case BaseVideoView.STATE_PREPARING:
+                return "PREPARING";
+            case BaseVideoView.STATE_PREPARED:
+                return "PREPARED";
+            case BaseVideoView.STATE_TEXTURE_AVAILABLE:
+                return "TEXTURE_AVAILABLE";
+            case BaseVideoView.STATE_PLAYING:
+                return "PLAYING";
+            case BaseVideoView.STATE_PAUSED:
+                return "PAUSED";
+            default:
+                return String.valueOf(state);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.exoplayer;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.ArrayList;
+
+/**
+ * 从一个BaseVideoView上摘下来、正在交给另一个BaseVideoView的播放器。
+ * 播放器保持prepare后的状态、已缓冲的数据和播放位置，新的view只需要换surface，不用重新prepare。
+ * 跨Activity时可以先park()，新页面再用take()取出。只能在主线程使用。
+ */
+public final class PlayerHandoff {
+    private static final String TAG = "PlayerHandoff";
+    /**
+     * park之后这么久没人取走就归还给播放器池
+     */
+    static final long PARK_TIMEOUT_MS = 10 * 1000;
+
+    private static final ArrayList<PlayerHandoff> sParked = new ArrayList<>();
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static int sHandoffCount;
+    private static long sLastBlackFrameMs = -1;
+    private static long sLastExtraNetworkBytes = -1;
+
+    final IMediaPlayer player;
+    final String url;
+    /**
+     * 交出时原view的状态，见BaseVideoView.STATE_*
+     */
+    final int state;
+    final boolean playing;
+    final int videoWidth;
+    final int videoHeight;
+    final int rotationDegrees;
+    final StartupTrace startupTrace;
+    private final Context context;
+    private final long detachTimeMs;
+    private final long networkBytesAtDetach;
+    private long surfaceAttachedMs = -1;
+    private Surface sourceSurface;
+    private boolean attached;
+    private boolean finished;
+    private final Runnable expireRunnable = this::expire;
+
+    PlayerHandoff(Context context, IMediaPlayer player, String url, int state, boolean playing,
+                  int videoWidth, int videoHeight, int rotationDegrees, StartupTrace startupTrace,
+                  Surface sourceSurface) {
+        this.context = context.getApplicationContext();
+        this.player = player;
+        this.url = url;
+        this.state = state;
+        this.playing = playing;
+        this.videoWidth = videoWidth;
+        this.videoHeight = videoHeight;
+        this.rotationDegrees = rotationDegrees;
+        this.startupTrace = startupTrace;
+        this.sourceSurface = sourceSurface;
+        this.detachTimeMs = SystemClock.elapsedRealtime();
+        this.networkBytesAtDetach = UpstreamStack.get(context).getResponseBytes();
+    }
+
+    /**
+     * 暂存起来等新页面取走，超时没人取就归还给播放器池
+     */
+    public static void park(PlayerHandoff handoff) {
+        if (handoff == null) {
+            return;
+        }
+        sParked.add(handoff);
+        sHandler.postDelayed(handoff.expireRunnable, PARK_TIMEOUT_MS);
+    }
+
+    /**
+     * @return 之前park的同一个地址的播放器，没有时返回null
+     */
+    public static PlayerHandoff take(String url) {
+        for (int i = sParked.size() - 1; i >= 0; i--) {
+            PlayerHandoff handoff = sParked.get(i);
+            if (handoff.url.equals(url)) {
+                sParked.remove(i);
+                sHandler.removeCallbacks(handoff.expireRunnable);
+                return handoff;
+            }
+        }
+        return null;
+    }
+
+    public static String getStats() {
+        return "handoffs=" + sHandoffCount + ", lastBlackFrameMs=" + sLastBlackFrameMs
+                + ", lastExtraNetworkBytes=" + sLastExtraNetworkBytes;
+    }
+
+    /**
+     * 原来的surface要销毁了，新view还没接手时先让播放器放开它
+     */
+    void onSourceSurfaceDestroyed(Surface surface) {
+        if (!attached && !finished && surface != null && surface == sourceSurface) {
+            player.setSurface(null);
+        }
+        if (surface == sourceSurface) {
+            sourceSurface = null;
+        }
+    }
+
+    void onAttached() {
+        attached = true;
+        sourceSurface = null;
+    }
+
+    /**
+     * 新view的surface交给了播放器，从这里到第一帧出来之间是黑屏
+     */
+    void onSurfaceAttached() {
+        if (surfaceAttachedMs < 0) {
+            surfaceAttachedMs = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * 新的surface上渲染出第一帧，记录黑屏时间和交接期间的网络流量。
+     * 其他播放器和预加载同时在下载时流量会偏大
+     */
+    void onFirstFrameRendered() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        sHandoffCount++;
+        sLastBlackFrameMs = SystemClock.elapsedRealtime() - (surfaceAttachedMs < 0 ? detachTimeMs : surfaceAttachedMs);
+        sLastExtraNetworkBytes = UpstreamStack.get(context).getResponseBytes() - networkBytesAtDetach;
+        Log.i(TAG, "handoff done, url=" + url + ", blackFrameMs=" + sLastBlackFrameMs
+                + ", extraNetworkBytes=" + sLastExtraNetworkBytes);
+    }
+
+    private void expire() {
+        if (sParked.remove(this)) {
+            Log.i(TAG, "handoff expired, url=" + url);
+            finished = true;
+            MediaPlayerPool.get(context).recycle(player);
+        }
+    }
+}
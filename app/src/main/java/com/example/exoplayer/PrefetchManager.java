@@ -0,0 +1,273 @@
+package com.example.exoplayer;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 把即将播放的视频开头部分预先下载到共享的SimpleCache，
+ * 之后prepare()时直接从磁盘读取。
+ * priority越小越先下载。
+ */
+public final class PrefetchManager {
+    private static final String TAG = "PrefetchManager";
+    public static final int DEFAULT_MAX_CONCURRENT = 2;
+    public static final long DEFAULT_PREFETCH_BYTES = 1024 * 1024;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int RESULT_COMPLETED = 0;
+    private static final int RESULT_ALREADY_CACHED = 1;
+    private static final int RESULT_FAILED = 2;
+
+    private static volatile PrefetchManager sInstance;
+
+    private final Context context;
+    private final DataSource.Factory upstreamFactory;
+    private final ExecutorService executor;
+    private final BandwidthThrottle throttle = new BandwidthThrottle(0);
+    private final Object lock = new Object();
+    private final HashMap<String, Task> tasks = new HashMap<>();
+    private final ArrayList<Task> pending = new ArrayList<>();
+    private int running;
+    private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private long prefetchBytes = DEFAULT_PREFETCH_BYTES;
+
+    private long completedCount;
+    private long alreadyCachedCount;
+    private long canceledCount;
+    private long failedCount;
+    private long fetchedBytes;
+
+    public static PrefetchManager get(Context context) {
+        if (sInstance == null) {
+            synchronized (PrefetchManager.class) {
+                if (sInstance == null) {
+                    sInstance = new PrefetchManager(context.getApplicationContext());
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private PrefetchManager(Context context) {
+        this.context = context;
+        this.upstreamFactory = UpstreamStack.get(context).getUpstreamFactory();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "video-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 用新的待播列表替换当前队列，列表顺序即优先级，不在列表中的任务会被取消
+     */
+    public void setQueue(List<String> urls) {
+        synchronized (lock) {
+            HashSet<String> keep = new HashSet<>(urls);
+            for (Task task : new ArrayList<>(tasks.values())) {
+                if (!keep.contains(task.url)) {
+                    cancelLocked(task);
+                }
+            }
+            for (int i = 0; i < urls.size(); i++) {
+                enqueueLocked(urls.get(i), i);
+            }
+            scheduleLocked();
+        }
+    }
+
+    public void prefetch(String url, int priority) {
+        synchronized (lock) {
+            enqueueLocked(url, priority);
+            scheduleLocked();
+        }
+    }
+
+    /**
+     * 只影响还没开始的任务
+     */
+    public void setPriority(String url, int priority) {
+        synchronized (lock) {
+            Task task = tasks.get(url);
+            if (task != null) {
+                task.priority = priority;
+            }
+        }
+    }
+
+    public void cancel(String url) {
+        synchronized (lock) {
+            Task task = tasks.get(url);
+            if (task != null) {
+                cancelLocked(task);
+            }
+        }
+    }
+
+    public void cancelAll() {
+        synchronized (lock) {
+            for (Task task : new ArrayList<>(tasks.values())) {
+                cancelLocked(task);
+            }
+        }
+    }
+
+    public void setMaxConcurrent(int maxConcurrent) {
+        synchronized (lock) {
+            this.maxConcurrent = Math.max(1, maxConcurrent);
+            scheduleLocked();
+        }
+    }
+
+    /**
+     * 所有预加载任务共享的带宽预算，小于等于0表示不限速
+     */
+    public void setBandwidthBudget(long bytesPerSecond) {
+        throttle.setBytesPerSecond(bytesPerSecond);
+    }
+
+    /**
+     * 每个视频预加载的字节数，只影响之后加入的任务
+     */
+    public void setPrefetchBytes(long bytes) {
+        synchronized (lock) {
+            this.prefetchBytes = bytes;
+        }
+    }
+
+    /**
+     * 按估计码率把时长换算成字节数
+     */
+    public void setPrefetchDuration(int durationMs, int estimatedBitrate) {
+        setPrefetchBytes((long) durationMs * estimatedBitrate / 8000);
+    }
+
+    public String getStats() {
+        synchronized (lock) {
+            return "completed=" + completedCount + ", alreadyCached=" + alreadyCachedCount
+                    + ", canceled=" + canceledCount + ", failed=" + failedCount + ", fetchedBytes=" + fetchedBytes
+                    + ", running=" + running + ", pending=" + pending.size();
+        }
+    }
+
+    private void enqueueLocked(String url, int priority) {
+        Task task = tasks.get(url);
+        if (task != null) {
+            task.priority = priority;
+            return;
+        }
+        task = new Task(url, priority, prefetchBytes);
+        tasks.put(url, task);
+        pending.add(task);
+    }
+
+    private void cancelLocked(Task task) {
+        task.canceled = true;
+        pending.remove(task);
+        tasks.remove(task.url);
+        canceledCount++;
+    }
+
+    private void scheduleLocked() {
+        while (running < maxConcurrent && !pending.isEmpty()) {
+            Task next = pending.get(0);
+            for (int i = 1; i < pending.size(); i++) {
+                Task task = pending.get(i);
+                if (task.priority < next.priority) {
+                    next = task;
+                }
+            }
+            pending.remove(next);
+            running++;
+            executor.execute(next);
+        }
+    }
+
+    private void onTaskFinished(Task task, int result, long bytes) {
+        synchronized (lock) {
+            running--;
+            fetchedBytes += bytes;
+            if (!task.canceled) {
+                tasks.remove(task.url);
+                if (result == RESULT_ALREADY_CACHED) {
+                    alreadyCachedCount++;
+                } else if (result == RESULT_FAILED) {
+                    failedCount++;
+                } else {
+                    completedCount++;
+                }
+            }
+            scheduleLocked();
+        }
+    }
+
+    private final class Task implements Runnable {
+        final String url;
+        final long length;
+        volatile int priority;
+        volatile boolean canceled;
+
+        Task(String url, int priority, long length) {
+            this.url = url;
+            this.priority = priority;
+            this.length = length;
+        }
+
+        @Override
+        public void run() {
+            long bytes = 0;
+            int result = RESULT_COMPLETED;
+            CacheDataSource dataSource = null;
+            try {
+                SimpleCache cache = VideoCache.getCache(context);
+                if (cache == null || canceled) {
+                    return;
+                }
+                Uri uri = Uri.parse(url);
+                String key = VideoCache.buildCacheKey(uri);
+                if (cache.getCachedLength(key, 0, length) >= length) {
+                    result = RESULT_ALREADY_CACHED;
+                    return;
+                }
+                // 不阻塞在缓存锁上，正在播放的视频优先
+                dataSource = VideoCache.createDataSource(cache, upstreamFactory.createDataSource(),
+                        CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR);
+                dataSource.open(new DataSpec(uri, 0, length, key));
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (!canceled) {
+                    int read = dataSource.read(buffer, 0, buffer.length);
+                    if (read == C.RESULT_END_OF_INPUT) {
+                        break;
+                    }
+                    bytes += read;
+                    throttle.acquire(read);
+                }
+            } catch (IOException e) {
+                result = RESULT_FAILED;
+                Log.w(TAG, "prefetch failed:" + url, e);
+            } finally {
+                Util.closeQuietly(dataSource);
+                onTaskFinished(this, result, bytes);
+            }
+        }
+    }
+}
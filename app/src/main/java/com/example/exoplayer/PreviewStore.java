@@ -0,0 +1,521 @@
+package com.example.exoplayer;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaDataSource;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.ContentMetadata;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 拖动进度条时的预览图。
+ * 后台线程通过缓存读取MP4的moov建立关键帧索引(持久化，每个key只解析一次)，
+ * 按需把稀疏的关键帧解码成小图，放在内存和磁盘两级有大小上限的缓存里。
+ * 不经过播放器的解码器，也不会让播放器seek。
+ * 默认只读已经缓存的数据，不会为了预览图和播放抢带宽，见{@link #setNetworkAllowed(boolean)}。
+ */
+public final class PreviewStore {
+    private static final String TAG = "PreviewStore";
+    /**
+     * 相邻两张预览图至少间隔的时间
+     */
+    static final long THUMBNAIL_INTERVAL_US = 2 * C.MICROS_PER_SECOND;
+    static final int THUMBNAIL_WIDTH = 160;
+    private static final int MAX_MEMORY_BYTES = 4 * 1024 * 1024;
+    private static final long MAX_DISK_BYTES = 16 * 1024 * 1024;
+    private static final int JPEG_QUALITY = 80;
+    /**
+     * 拖动时只处理最近的几个请求，更早的直接丢掉
+     */
+    private static final int MAX_PENDING = 4;
+    private static final String INDEX_DIR_NAME = "keyframe-index";
+    private static final String THUMBNAIL_DIR_NAME = "preview-thumbs";
+
+    private static PreviewStore sInstance;
+
+    public interface OnPreviewReadyListener {
+        /**
+         * 主线程回调，之后用同样的参数调用getPreviewFrame()可以拿到图
+         */
+        void onPreviewReady(String url, int positionMs);
+    }
+
+    private final Context context;
+    private final Handler workerHandler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<String, Bitmap> memoryCache = new LruCache<String, Bitmap>(MAX_MEMORY_BYTES) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+    private final ConcurrentHashMap<String, KeyframeIndex> indexes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, KeyframeIndex> thumbnailIndexes = new ConcurrentHashMap<>();
+    private final ArrayDeque<Request> pending = new ArrayDeque<>();
+    private final HashSet<String> failedKeys = new HashSet<>();
+    private final Runnable drainRunnable = this::drain;
+    private boolean drainScheduled;
+    private long diskBytes = -1;
+    private volatile boolean networkAllowed;
+    @Nullable
+    private OnPreviewReadyListener listener;
+    // 以下只在工作线程访问
+    @Nullable
+    private MediaMetadataRetriever retriever;
+    @Nullable
+    private String retrieverKey;
+    /**
+     * getFilesDir()/getCacheDir()可能要创建目录，放到工作线程第一次用到时再取
+     */
+    private File indexDir;
+    private File thumbnailDir;
+
+    public static PreviewStore get(Context context) {
+        if (sInstance == null) {
+            synchronized (PreviewStore.class) {
+                if (sInstance == null) {
+                    sInstance = new PreviewStore(context.getApplicationContext());
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private PreviewStore(Context context) {
+        this.context = context;
+        HandlerThread thread = new HandlerThread("video-preview", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        this.workerHandler = new Handler(thread.getLooper());
+    }
+
+    public void setOnPreviewReadyListener(@Nullable OnPreviewReadyListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 是否允许为了建立索引和生成预览图从网络下载缺的数据，默认不允许，
+     * 还没缓存的部分不生成预览图，缓存到了之后再请求会重新尝试
+     */
+    public void setNetworkAllowed(boolean allowed) {
+        networkAllowed = allowed;
+    }
+
+    /**
+     * 提前在后台建立关键帧索引，已经建过的直接从磁盘加载
+     */
+    public void prepare(String url) {
+        if (!TextUtils.isEmpty(url)) {
+            enqueue(new Request(url, VideoCache.buildCacheKey(Uri.parse(url)), C.TIME_UNSET, C.INDEX_UNSET));
+        }
+    }
+
+    /**
+     * @return positionMs之前最近的一张预览图，还没生成时返回null并在后台生成，
+     * 生成好后回调OnPreviewReadyListener
+     */
+    @Nullable
+    public Bitmap getPreviewFrame(String url, int positionMs) {
+        if (TextUtils.isEmpty(url)) {
+            return null;
+        }
+        String key = VideoCache.buildCacheKey(Uri.parse(url));
+        KeyframeIndex thumbnails = thumbnailIndexes.get(key);
+        if (thumbnails == null) {
+            enqueue(new Request(url, key, C.TIME_UNSET, positionMs));
+            return null;
+        }
+        int index = thumbnails.floorIndex(C.msToUs(positionMs));
+        if (index < 0) {
+            return null;
+        }
+        long timeUs = thumbnails.getTimeUs(index);
+        Bitmap bitmap = memoryCache.get(memoryKey(key, timeUs));
+        if (bitmap == null) {
+            enqueue(new Request(url, key, timeUs, positionMs));
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return 已经加载的关键帧索引，没有时返回null
+     */
+    @Nullable
+    KeyframeIndex getKeyframeIndex(String url) {
+        return indexes.get(VideoCache.buildCacheKey(Uri.parse(url)));
+    }
+
+    private void enqueue(Request request) {
+        synchronized (pending) {
+            pending.remove(request);
+            pending.addFirst(request);
+            while (pending.size() > MAX_PENDING) {
+                pending.pollLast();
+            }
+            if (!drainScheduled) {
+                drainScheduled = true;
+                workerHandler.post(drainRunnable);
+            }
+        }
+    }
+
+    private void drain() {
+        if (indexDir == null) {
+            indexDir = new File(context.getFilesDir(), INDEX_DIR_NAME);
+            thumbnailDir = new File(context.getCacheDir(), THUMBNAIL_DIR_NAME);
+        }
+        while (true) {
+            Request request;
+            synchronized (pending) {
+                request = pending.pollFirst();
+                if (request == null) {
+                    drainScheduled = false;
+                    break;
+                }
+            }
+            try {
+                process(request);
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "preview failed, url=" + request.url, e);
+            }
+        }
+        // 解码器比较占资源，队列空了就释放
+        releaseRetriever();
+    }
+
+    private void process(Request request) throws IOException {
+        KeyframeIndex thumbnails = loadIndex(request);
+        if (thumbnails == null) {
+            return;
+        }
+        long timeUs = request.timeUs;
+        if (timeUs == C.TIME_UNSET) {
+            // 请求时索引还没建好，现在才能确定对应哪张图
+            if (request.positionMs == C.INDEX_UNSET || thumbnails.size() == 0) {
+                return;
+            }
+            timeUs = thumbnails.getTimeUs(thumbnails.floorIndex(C.msToUs(request.positionMs)));
+        }
+        String memoryKey = memoryKey(request.key, timeUs);
+        if (memoryCache.get(memoryKey) != null) {
+            return;
+        }
+        File file = new File(thumbnailDir, hashKey(request.key) + "_" + C.usToMs(timeUs) + ".jpg");
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+        if (bitmap == null) {
+            bitmap = decodeFrame(request, timeUs);
+            if (bitmap == null) {
+                return;
+            }
+            writeThumbnail(file, bitmap);
+        } else {
+            file.setLastModified(System.currentTimeMillis());
+        }
+        memoryCache.put(memoryKey, bitmap);
+        int positionMs = (int) C.usToMs(timeUs);
+        mainHandler.post(() -> {
+            OnPreviewReadyListener listener = this.listener;
+            if (listener != null) {
+                listener.onPreviewReady(request.url, positionMs);
+            }
+        });
+    }
+
+    @Nullable
+    private KeyframeIndex loadIndex(Request request) throws IOException {
+        KeyframeIndex thumbnails = thumbnailIndexes.get(request.key);
+        if (thumbnails != null) {
+            return thumbnails;
+        }
+        if (failedKeys.contains(request.key)) {
+            return null;
+        }
+        File file = new File(indexDir, hashKey(request.key) + ".idx");
+        KeyframeIndex index = KeyframeIndex.read(file, request.key);
+        if (index == null) {
+            SimpleCache cache = VideoCache.getCache(context);
+            if (cache == null) {
+                return null;
+            }
+            long start = SystemClock.elapsedRealtime();
+            try {
+                index = KeyframeIndex.build(createDataSource(cache), Uri.parse(request.url), request.key);
+            } catch (IOException e) {
+                if (networkAllowed) {
+                    throw e;
+                }
+                // moov还没缓存，不算失败，下次请求再试
+                Log.d(TAG, "keyframe index not cached yet, key=" + request.key);
+                return null;
+            }
+            if (index == null || index.size() == 0) {
+                // 不是MP4或者没有视频轨道，不再重试
+                failedKeys.add(request.key);
+                return null;
+            }
+            indexDir.mkdirs();
+            index.write(file);
+            Log.i(TAG, "keyframe index built, keyframes=" + index.size()
+                    + ", costMs=" + (SystemClock.elapsedRealtime() - start));
+        }
+        thumbnails = index.sparse(THUMBNAIL_INTERVAL_US);
+        indexes.put(request.key, index);
+        thumbnailIndexes.put(request.key, thumbnails);
+        return thumbnails;
+    }
+
+    @Nullable
+    private Bitmap decodeFrame(Request request, long timeUs) {
+        MediaMetadataRetriever retriever = obtainRetriever(request);
+        if (retriever == null) {
+            return null;
+        }
+        Bitmap frame = retriever.getFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+        if (frame == null || frame.getWidth() <= THUMBNAIL_WIDTH) {
+            return frame;
+        }
+        int height = Math.max(1, Math.round(frame.getHeight() * THUMBNAIL_WIDTH / (float) frame.getWidth()));
+        Bitmap scaled = Bitmap.createScaledBitmap(frame, THUMBNAIL_WIDTH, height, true);
+        if (scaled != frame) {
+            frame.recycle();
+        }
+        return scaled;
+    }
+
+    @Nullable
+    private MediaMetadataRetriever obtainRetriever(Request request) {
+        if (retriever != null && request.key.equals(retrieverKey)) {
+            return retriever;
+        }
+        releaseRetriever();
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                SimpleCache cache = VideoCache.getCache(context);
+                if (cache == null) {
+                    retriever.release();
+                    return null;
+                }
+                retriever.setDataSource(new CacheMediaDataSource(createDataSource(cache), cache,
+                        Uri.parse(request.url), request.key));
+            } else {
+                Uri uri = Uri.parse(request.url);
+                if ("http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme())) {
+                    if (!networkAllowed) {
+                        // 低版本只能让MediaMetadataRetriever自己下载
+                        retriever.release();
+                        return null;
+                    }
+                    retriever.setDataSource(request.url, Collections.emptyMap());
+                } else {
+                    retriever.setDataSource(context, uri);
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "setDataSource failed, url=" + request.url, e);
+            retriever.release();
+            return null;
+        }
+        this.retriever = retriever;
+        this.retrieverKey = request.key;
+        return retriever;
+    }
+
+    private void releaseRetriever() {
+        if (retriever != null) {
+            retriever.release();
+            retriever = null;
+            retrieverKey = null;
+        }
+    }
+
+    private DataSource createDataSource(SimpleCache cache) {
+        if (!networkAllowed) {
+            return VideoCache.getOfflineFactory(cache).createDataSource();
+        }
+        return VideoCache.createDataSource(cache,
+                UpstreamStack.get(context).getUpstreamFactory().createDataSource(),
+                CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR);
+    }
+
+    private void writeThumbnail(File file, Bitmap bitmap) {
+        if (diskBytes < 0) {
+            diskBytes = 0;
+            File[] files = thumbnailDir.listFiles();
+            if (files != null) {
+                for (File existing : files) {
+                    diskBytes += existing.length();
+                }
+            }
+        }
+        thumbnailDir.mkdirs();
+        try (OutputStream output = new FileOutputStream(file)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, output);
+        } catch (IOException e) {
+            Log.w(TAG, "write thumbnail failed", e);
+            file.delete();
+            return;
+        }
+        diskBytes += file.length();
+        if (diskBytes > MAX_DISK_BYTES) {
+            trimDisk();
+        }
+    }
+
+    /**
+     * 按最近使用时间删掉最旧的图，直到总大小降到上限的3/4
+     */
+    private void trimDisk() {
+        File[] files = thumbnailDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(lastModified[a], lastModified[b]));
+        for (int i = 0; i < order.length && diskBytes > MAX_DISK_BYTES * 3 / 4; i++) {
+            File file = files[order[i]];
+            long length = file.length();
+            if (file.delete()) {
+                diskBytes -= length;
+            }
+        }
+    }
+
+    private static String memoryKey(String key, long timeUs) {
+        return key + "@" + timeUs;
+    }
+
+    private static String hashKey(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(Util.getUtf8Bytes(key));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    private static final class Request {
+        final String url;
+        final String key;
+        /**
+         * 要生成的预览图对应的关键帧时间，C.TIME_UNSET表示等索引建好后根据positionMs确定
+         */
+        final long timeUs;
+        /**
+         * 调用方请求的位置，C.INDEX_UNSET表示只建索引
+         */
+        final int positionMs;
+
+        Request(String url, String key, long timeUs, int positionMs) {
+            this.url = url;
+            this.key = key;
+            this.timeUs = timeUs;
+            this.positionMs = positionMs;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Request)) {
+                return false;
+            }
+            Request other = (Request) obj;
+            return key.equals(other.key) && timeUs == other.timeUs;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + (int) (timeUs ^ (timeUs >>> 32));
+        }
+    }
+
+    /**
+     * 让MediaMetadataRetriever通过缓存读数据，缺的部分在允许时从网络下载并写入缓存，否则读取失败
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static final class CacheMediaDataSource extends MediaDataSource {
+        private final DataSource dataSource;
+        private final SimpleCache cache;
+        private final Uri uri;
+        private final String key;
+        private long position = C.POSITION_UNSET;
+
+        CacheMediaDataSource(DataSource dataSource, SimpleCache cache, Uri uri, String key) {
+            this.dataSource = dataSource;
+            this.cache = cache;
+            this.uri = uri;
+            this.key = key;
+        }
+
+        @Override
+        public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+            if (size == 0) {
+                return 0;
+            }
+            if (position != this.position) {
+                // 不连续的读取重新打开
+                dataSource.close();
+                this.position = C.POSITION_UNSET;
+                dataSource.open(new DataSpec(uri, position, C.LENGTH_UNSET, key));
+                this.position = position;
+            }
+            int read = dataSource.read(buffer, offset, size);
+            if (read == C.RESULT_END_OF_INPUT) {
+                return -1;
+            }
+            this.position += read;
+            return read;
+        }
+
+        @Override
+        public long getSize() {
+            long length = ContentMetadata.getContentLength(cache.getContentMetadata(key));
+            return length == C.LENGTH_UNSET ? -1 : length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            dataSource.close();
+            position = C.POSITION_UNSET;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.exoplayer;
+
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * 所有播放器共用的进度回调时钟，跟随屏幕刷新(vsync)触发。
+ * 每个回调可以设置自己的最小间隔，0表示每帧都回调。
+ * 注册之后的每一帧都不分配内存。只能在主线程使用。
+ */
+public final class ProgressTicker implements Choreographer.FrameCallback {
+    /**
+     * 间隔按帧对齐，允许提前半帧触发，避免50ms变成66ms
+     */
+    private static final long FRAME_TOLERANCE_NANOS = 8_000_000L;
+
+    private static ProgressTicker sInstance;
+
+    public interface Callback {
+        void onProgressTick(long frameTimeNanos);
+    }
+
+    private final Choreographer choreographer;
+    private Callback[] callbacks = new Callback[4];
+    private long[] intervalNanos = new long[4];
+    private long[] lastTickNanos = new long[4];
+    private int count;
+    private boolean dispatching;
+    private boolean hasRemovals;
+    private boolean scheduled;
+
+    public static ProgressTicker get() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new IllegalStateException("ProgressTicker must be used on the main thread");
+        }
+        if (sInstance == null) {
+            sInstance = new ProgressTicker();
+        }
+        return sInstance;
+    }
+
+    private ProgressTicker() {
+        choreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * 注册或更新回调的间隔
+     */
+    public void register(Callback callback, int intervalMs) {
+        int index = indexOf(callback);
+        if (index < 0) {
+            if (count == callbacks.length) {
+                grow();
+            }
+            index = count++;
+            callbacks[index] = callback;
+            lastTickNanos[index] = 0;
+        }
+        intervalNanos[index] = Math.max(0, intervalMs * 1_000_000L - FRAME_TOLERANCE_NANOS);
+        if (!scheduled) {
+            scheduled = true;
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    public void unregister(Callback callback) {
+        int index = indexOf(callback);
+        if (index < 0) {
+            return;
+        }
+        callbacks[index] = null;
+        if (dispatching) {
+            hasRemovals = true;
+        } else {
+            compact();
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        scheduled = false;
+        dispatching = true;
+        int size = count;
+        for (int i = 0; i < size; i++) {
+            Callback callback = callbacks[i];
+            if (callback != null && frameTimeNanos - lastTickNanos[i] >= intervalNanos[i]) {
+                lastTickNanos[i] = frameTimeNanos;
+                callback.onProgressTick(frameTimeNanos);
+            }
+        }
+        dispatching = false;
+        if (hasRemovals) {
+            hasRemovals = false;
+            compact();
+        }
+        if (count > 0) {
+            scheduled = true;
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    private int indexOf(Callback callback) {
+        for (int i = 0; i < count; i++) {
+            if (callbacks[i] == callback) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void compact() {
+        int target = 0;
+        for (int i = 0; i < count; i++) {
+            if (callbacks[i] != null) {
+                callbacks[target] = callbacks[i];
+                intervalNanos[target] = intervalNanos[i];
+                lastTickNanos[target] = lastTickNanos[i];
+                target++;
+            }
+        }
+        for (int i = target; i < count; i++) {
+            callbacks[i] = null;
+        }
+        count = target;
+        if (count == 0 && scheduled) {
+            scheduled = false;
+            choreographer.removeFrameCallback(this);
+        }
+    }
+
+    private void grow() {
+        int size = callbacks.length * 2;
+        Callback[] newCallbacks = new Callback[size];
+        long[] newIntervals = new long[size];
+        long[] newLastTicks = new long[size];
+        System.arraycopy(callbacks, 0, newCallbacks, 0, count);
+        System.arraycopy(intervalNanos, 0, newIntervals, 0, count);
+        System.arraycopy(lastTickNanos, 0, newLastTicks, 0, count);
+        callbacks = newCallbacks;
+        intervalNanos = newIntervals;
+        lastTickNanos = newLastTicks;
+    }
+}
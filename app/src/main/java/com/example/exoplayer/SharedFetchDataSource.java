@@ -0,0 +1,469 @@
+package com.example.exoplayer;
+
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 同一个key的多个读者共享一个网络下载。
+ * <p>
+ * CacheDataSource不带FLAG_BLOCK_ON_CACHE时，拿不到缓存锁的读者会直接读上游。
+ * 这里把同一个key、位置相近的上游请求合并成一个下载，数据放在环形缓冲区里，
+ * 每个读者按自己的位置读取，谁也不用等别人释放缓存锁。
+ * 下载最多领先最快的读者READ_AHEAD字节；落后超过RING_SIZE的读者自动改为自己单独下载。
+ * 同时进行的共享下载最多MAX_FETCHES个，环形缓冲区复用；没有空闲的下载线程时读者自己单独下载。
+ */
+final class SharedFetchDataSource implements DataSource {
+    static final int RING_SIZE = 1024 * 1024;
+    static final int READ_AHEAD = 256 * 1024;
+    private static final int CHUNK_SIZE = 32 * 1024;
+    private static final int JOIN_DISTANCE = 64 * 1024;
+    private static final int RESULT_FELL_BEHIND = -2;
+    static final int MAX_FETCHES = 4;
+    private static final int FETCH_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private final DataSource.Factory upstreamFactory;
+    private final Registry registry;
+    private final ArrayList<TransferListener> transferListeners = new ArrayList<>();
+
+    @Nullable
+    private DataSpec dataSpec;
+    @Nullable
+    private DataSource direct;
+    @Nullable
+    private Fetch fetch;
+    @Nullable
+    private Reader reader;
+    private String key;
+    private long readPosition;
+    private long endPosition;
+
+    SharedFetchDataSource(DataSource.Factory upstreamFactory, Registry registry) {
+        this.upstreamFactory = upstreamFactory;
+        this.registry = registry;
+    }
+
+    @Override
+    public void addTransferListener(TransferListener transferListener) {
+        transferListeners.add(transferListener);
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        this.dataSpec = dataSpec;
+        readPosition = dataSpec.position;
+        endPosition = dataSpec.length == C.LENGTH_UNSET ? C.LENGTH_UNSET : dataSpec.position + dataSpec.length;
+        String scheme = dataSpec.uri.getScheme();
+        if (!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme)) {
+            direct = createUpstream();
+            return direct.open(dataSpec);
+        }
+        key = dataSpec.key != null ? dataSpec.key : VideoCache.buildCacheKey(dataSpec.uri);
+        long contentLength = attach();
+        if (dataSpec.length != C.LENGTH_UNSET) {
+            return dataSpec.length;
+        }
+        return contentLength == C.LENGTH_UNSET ? C.LENGTH_UNSET : contentLength - readPosition;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+        if (direct != null) {
+            return direct.read(buffer, offset, readLength);
+        }
+        if (readLength == 0) {
+            return 0;
+        }
+        if (endPosition != C.LENGTH_UNSET) {
+            if (readPosition >= endPosition) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            readLength = (int) Math.min(readLength, endPosition - readPosition);
+        }
+        while (true) {
+            Fetch fetch = Util.castNonNull(this.fetch);
+            int read = fetch.read(Util.castNonNull(reader), buffer, offset, readLength);
+            if (read > 0) {
+                readPosition += read;
+                return read;
+            }
+            if (read == C.RESULT_END_OF_INPUT && fetch.isEndOfInput()) {
+                long contentLength = fetch.getContentLength();
+                if (fetch.requestedLength == C.LENGTH_UNSET
+                        || (contentLength != C.LENGTH_UNSET && readPosition >= contentLength)) {
+                    return C.RESULT_END_OF_INPUT;
+                }
+            }
+            // 落后太多、共享的下载比自己需要的短、或者下载没读到结尾就停了，
+            // 从当前位置重新挂到一个下载上，停掉的下载不会再被加入，会重新打开上游
+            detach();
+            attach();
+            if (direct != null) {
+                return direct.read(buffer, offset, readLength);
+            }
+        }
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        if (direct != null) {
+            return direct.getUri();
+        }
+        return dataSpec == null ? null : dataSpec.uri;
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+        return direct == null ? Collections.emptyMap() : direct.getResponseHeaders();
+    }
+
+    @Override
+    public void close() throws IOException {
+        dataSpec = null;
+        detach();
+        if (direct != null) {
+            try {
+                direct.close();
+            } finally {
+                direct = null;
+            }
+        }
+    }
+
+    /**
+     * @return 文件总长度，未知时返回C.LENGTH_UNSET
+     */
+    private long attach() throws IOException {
+        long length = endPosition == C.LENGTH_UNSET ? C.LENGTH_UNSET : endPosition - readPosition;
+        DataSpec dataSpec = Util.castNonNull(this.dataSpec);
+        reader = new Reader(readPosition);
+        fetch = registry.acquire(dataSpec.uri, key, readPosition, length, reader, this);
+        if (fetch == null) {
+            // 共享下载都在忙，剩下的部分自己单独下载
+            reader = null;
+            direct = createUpstream();
+            long opened = direct.open(dataSpec.subrange(readPosition - dataSpec.position));
+            return opened == C.LENGTH_UNSET || length != C.LENGTH_UNSET ? C.LENGTH_UNSET : readPosition + opened;
+        }
+        try {
+            fetch.awaitOpened();
+            return fetch.getContentLength();
+        } catch (IOException e) {
+            detach();
+            throw e;
+        }
+    }
+
+    private void detach() {
+        if (fetch != null) {
+            fetch.detach(Util.castNonNull(reader));
+            fetch = null;
+            reader = null;
+        }
+    }
+
+    private DataSource createUpstream() {
+        DataSource dataSource = upstreamFactory.createDataSource();
+        for (int i = 0; i < transferListeners.size(); i++) {
+            dataSource.addTransferListener(transferListeners.get(i));
+        }
+        return dataSource;
+    }
+
+    private static final class Reader {
+        long position;
+
+        Reader(long position) {
+            this.position = position;
+        }
+    }
+
+    /**
+     * 当前正在进行的共享下载
+     */
+    static final class Registry {
+        private final ArrayList<Fetch> fetches = new ArrayList<>();
+        private final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, MAX_FETCHES,
+                FETCH_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "video-shared-fetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        /**
+         * 用完的环形缓冲区，单独加锁，Fetch持有自己的锁时也会归还
+         */
+        private final ArrayDeque<byte[]> freeRings = new ArrayDeque<>();
+        private long startedCount;
+        private long joinedCount;
+        private long rejectedCount;
+
+        /**
+         * @return 没有可以加入的下载、也没有空闲的下载线程时返回null
+         */
+        @Nullable
+        synchronized Fetch acquire(Uri uri, String key, long position, long length, Reader reader,
+                                   SharedFetchDataSource owner) {
+            for (int i = 0; i < fetches.size(); i++) {
+                Fetch fetch = fetches.get(i);
+                if (fetch.key.equals(key) && fetch.tryJoin(position, reader)) {
+                    joinedCount++;
+                    return fetch;
+                }
+            }
+            if (fetches.size() >= MAX_FETCHES) {
+                rejectedCount++;
+                return null;
+            }
+            Fetch fetch = new Fetch(this, owner.createUpstream(), obtainRing(), uri, key, position, length, reader);
+            try {
+                executor.execute(fetch);
+            } catch (RejectedExecutionException e) {
+                // 刚结束的下载线程还没回到线程池
+                recycleRing(fetch.ring);
+                rejectedCount++;
+                return null;
+            }
+            fetches.add(fetch);
+            startedCount++;
+            return fetch;
+        }
+
+        synchronized void remove(Fetch fetch) {
+            fetches.remove(fetch);
+        }
+
+        private byte[] obtainRing() {
+            synchronized (freeRings) {
+                byte[] ring = freeRings.poll();
+                return ring != null ? ring : new byte[RING_SIZE];
+            }
+        }
+
+        void recycleRing(byte[] ring) {
+            synchronized (freeRings) {
+                if (freeRings.size() < MAX_FETCHES) {
+                    freeRings.add(ring);
+                }
+            }
+        }
+
+        synchronized String getStats() {
+            return "started=" + startedCount + ", joined=" + joinedCount + ", rejected=" + rejectedCount
+                    + ", active=" + fetches.size();
+        }
+    }
+
+    private static final class Fetch implements Runnable {
+        final String key;
+        final long start;
+        final long requestedLength;
+        private final Registry registry;
+        private final DataSource upstream;
+        private final Uri uri;
+        final byte[] ring;
+        private final ArrayList<Reader> readers = new ArrayList<>();
+        private boolean ringRecycled;
+        private long validStart;
+        private long producedEnd;
+        private long contentLength = C.LENGTH_UNSET;
+        private boolean opened;
+        private boolean finished;
+        /**
+         * 上游读到了结尾，finished但不是endOfInput时说明下载因为没有读者或出错提前停了
+         */
+        private boolean endOfInput;
+        @Nullable
+        private IOException error;
+
+        Fetch(Registry registry, DataSource upstream, byte[] ring, Uri uri, String key, long start,
+              long requestedLength, Reader reader) {
+            this.registry = registry;
+            this.upstream = upstream;
+            this.ring = ring;
+            this.uri = uri;
+            this.key = key;
+            this.start = start;
+            this.requestedLength = requestedLength;
+            this.validStart = start;
+            this.producedEnd = start;
+            readers.add(reader);
+        }
+
+        synchronized boolean tryJoin(long position, Reader reader) {
+            if (finished || position < validStart || position > producedEnd + JOIN_DISTANCE) {
+                return false;
+            }
+            if (requestedLength != C.LENGTH_UNSET && position >= start + requestedLength) {
+                return false;
+            }
+            readers.add(reader);
+            return true;
+        }
+
+        synchronized void detach(Reader reader) {
+            readers.remove(reader);
+            recycleRingIfIdle();
+            notifyAll();
+        }
+
+        /**
+         * 下载结束并且没有读者了才归还缓冲区，结束后还可能有读者在读剩下的数据
+         */
+        private void recycleRingIfIdle() {
+            if (finished && readers.isEmpty() && !ringRecycled) {
+                ringRecycled = true;
+                registry.recycleRing(ring);
+            }
+        }
+
+        synchronized void awaitOpened() throws IOException {
+            while (!opened && !finished) {
+                waitUninterruptibly();
+            }
+            if (!opened && error != null) {
+                throw error;
+            }
+        }
+
+        synchronized long getContentLength() {
+            return contentLength;
+        }
+
+        synchronized boolean isEndOfInput() {
+            return endOfInput;
+        }
+
+        synchronized int read(Reader reader, byte[] buffer, int offset, int readLength) throws IOException {
+            while (reader.position >= producedEnd && !finished) {
+                waitUninterruptibly();
+            }
+            if (reader.position < validStart) {
+                return RESULT_FELL_BEHIND;
+            }
+            if (reader.position >= producedEnd) {
+                if (error != null) {
+                    throw error;
+                }
+                return C.RESULT_END_OF_INPUT;
+            }
+            int ringOffset = (int) (reader.position % RING_SIZE);
+            int length = (int) Math.min(Math.min(readLength, producedEnd - reader.position), RING_SIZE - ringOffset);
+            System.arraycopy(ring, ringOffset, buffer, offset, length);
+            reader.position += length;
+            notifyAll();
+            return length;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long length = upstream.open(new DataSpec(uri, start, requestedLength, key));
+                long total = requestedLength == C.LENGTH_UNSET && length != C.LENGTH_UNSET
+                        ? start + length : parseContentRangeTotal(upstream.getResponseHeaders());
+                synchronized (this) {
+                    contentLength = total;
+                    opened = true;
+                    notifyAll();
+                }
+                while (true) {
+                    int writeOffset;
+                    int writeLength;
+                    synchronized (this) {
+                        while (!readers.isEmpty() && producedEnd - maxReaderPosition() >= READ_AHEAD) {
+                            waitUninterruptibly();
+                        }
+                        if (readers.isEmpty()) {
+                            // 和tryJoin在同一把锁里标记结束，之后不会再有读者加入正在停止的下载
+                            finished = true;
+                            break;
+                        }
+                        writeOffset = (int) (producedEnd % RING_SIZE);
+                        writeLength = Math.min(CHUNK_SIZE, RING_SIZE - writeOffset);
+                        // 先让即将被覆盖的数据失效，写入时就不用持有锁
+                        validStart = Math.max(validStart, producedEnd + writeLength - RING_SIZE);
+                    }
+                    int read = upstream.read(ring, writeOffset, writeLength);
+                    if (read == C.RESULT_END_OF_INPUT) {
+                        synchronized (this) {
+                            endOfInput = true;
+                        }
+                        break;
+                    }
+                    synchronized (this) {
+                        producedEnd += read;
+                        notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    error = e;
+                }
+            } finally {
+                synchronized (this) {
+                    finished = true;
+                    recycleRingIfIdle();
+                    notifyAll();
+                }
+                registry.remove(this);
+                Util.closeQuietly(upstream);
+            }
+        }
+
+        /**
+         * 从"Content-Range: bytes 0-99/1000"中取出文件总长度
+         */
+        private static long parseContentRangeTotal(Map<String, List<String>> headers) {
+            for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+                if (!"Content-Range".equalsIgnoreCase(entry.getKey()) || entry.getValue().isEmpty()) {
+                    continue;
+                }
+                String value = entry.getValue().get(0);
+                int slash = value.lastIndexOf('/');
+                if (slash >= 0) {
+                    try {
+                        return Long.parseLong(value.substring(slash + 1).trim());
+                    } catch (NumberFormatException e) {
+                        return C.LENGTH_UNSET;
+                    }
+                }
+            }
+            return C.LENGTH_UNSET;
+        }
+
+        private long maxReaderPosition() {
+            long max = start;
+            for (int i = 0; i < readers.size(); i++) {
+                max = Math.max(max, readers.get(i).position);
+            }
+            return max;
+        }
+
+        private void waitUninterruptibly() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.exoplayer;
+
+import android.os.SystemClock;
+
+/**
+ * 一次起播的各阶段时间点，从setPath到第一帧画面。
+ * 时间点都是SystemClock.elapsedRealtime()，没有经过的阶段为-1。
+ */
+public final class StartupTrace {
+    public static final int PHASE_SET_PATH = 0;
+    public static final int PHASE_PLAYER_INIT = 1;
+    public static final int PHASE_BUILD_MEDIA_SOURCE = 2;
+    public static final int PHASE_FIRST_BYTE = 3;
+    public static final int PHASE_READY = 4;
+    public static final int PHASE_PREPARED = 5;
+    public static final int PHASE_SURFACE_ATTACHED = 6;
+    public static final int PHASE_FIRST_FRAME = 7;
+    static final int PHASE_COUNT = 8;
+
+    private static final String[] PHASE_NAMES = {
+            "setPath", "playerInit", "buildMediaSource", "firstByte",
+            "ready", "prepared", "surfaceAttached", "firstFrame"
+    };
+
+    private final String url;
+    private final long[] timestamps = new long[PHASE_COUNT];
+    private boolean completed;
+
+    StartupTrace(String url) {
+        this.url = url;
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            timestamps[i] = -1;
+        }
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * 记录阶段的时间点，同一个阶段只记录第一次
+     */
+    void mark(int phase) {
+        mark(phase, SystemClock.elapsedRealtime());
+    }
+
+    void mark(int phase, long timeMs) {
+        boolean complete;
+        synchronized (this) {
+            if (completed || timestamps[phase] >= 0) {
+                return;
+            }
+            timestamps[phase] = timeMs;
+            complete = phase == PHASE_FIRST_FRAME;
+            completed = complete;
+        }
+        if (complete) {
+            StartupTracer.get().onSessionComplete(this);
+        }
+    }
+
+    public synchronized long getTimestamp(int phase) {
+        return timestamps[phase];
+    }
+
+    /**
+     * @return 从setPath到该阶段的耗时，没有经过该阶段时返回-1
+     */
+    public synchronized long getElapsed(int phase) {
+        if (timestamps[phase] < 0 || timestamps[PHASE_SET_PATH] < 0) {
+            return -1;
+        }
+        return timestamps[phase] - timestamps[PHASE_SET_PATH];
+    }
+
+    static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("StartupTrace{");
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(PHASE_NAMES[i]).append('=').append(getElapsed(i));
+        }
+        return builder.append(", url=").append(url).append('}').toString();
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.exoplayer;
+
+import android.util.Log;
+
+/**
+ * 汇总所有完成的起播记录，按阶段统计从setPath开始的耗时分布(p50/p95等)
+ */
+public final class StartupTracer {
+    private static final String TAG = "StartupTracer";
+    private static final long BUCKET_WIDTH_MS = 10;
+    private static final int BUCKET_COUNT = 1000;
+
+    private static final StartupTracer sInstance = new StartupTracer();
+
+    public interface Listener {
+        /**
+         * 在渲染第一帧的线程上回调
+         */
+        void onSessionComplete(StartupTrace trace);
+    }
+
+    private final Histogram[] histograms = new Histogram[StartupTrace.PHASE_COUNT];
+    private volatile Listener listener;
+
+    public static StartupTracer get() {
+        return sInstance;
+    }
+
+    private StartupTracer() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram(BUCKET_WIDTH_MS, BUCKET_COUNT);
+        }
+    }
+
+    public StartupTrace newSession(String url) {
+        return new StartupTrace(url);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param phase      StartupTrace.PHASE_*
+     * @param percentile 0到100
+     * @return 从setPath到该阶段耗时的分位数，单位ms
+     */
+    public long getPercentile(int phase, float percentile) {
+        return histograms[phase].percentile(percentile);
+    }
+
+    public long getSessionCount() {
+        return histograms[StartupTrace.PHASE_FIRST_FRAME].getCount();
+    }
+
+    public String dump() {
+        StringBuilder builder = new StringBuilder("sessions=").append(getSessionCount());
+        for (int i = 1; i < histograms.length; i++) {
+            Histogram histogram = histograms[i];
+            builder.append("\n  ").append(StartupTrace.getPhaseName(i))
+                    .append(": p50=").append(histogram.percentile(50))
+                    .append(" p95=").append(histogram.percentile(95))
+                    .append(" max=").append(histogram.getMax());
+        }
+        return builder.toString();
+    }
+
+    void onSessionComplete(StartupTrace trace) {
+        for (int i = 0; i < histograms.length; i++) {
+            long elapsed = trace.getElapsed(i);
+            if (elapsed >= 0) {
+                histograms[i].record(elapsed);
+            }
+        }
+        Log.i(TAG, trace.toString());
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.onSessionComplete(trace);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.exoplayer;
+
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 记录播放器读到第一个字节的时间，不管数据来自缓存还是网络
+ */
+final class TracingDataSource implements DataSource {
+    private final DataSource dataSource;
+    private final StartupTrace trace;
+    private boolean firstByteMarked;
+
+    TracingDataSource(DataSource dataSource, StartupTrace trace) {
+        this.dataSource = dataSource;
+        this.trace = trace;
+    }
+
+    @Override
+    public void addTransferListener(TransferListener transferListener) {
+        dataSource.addTransferListener(transferListener);
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        return dataSource.open(dataSpec);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+        int read = dataSource.read(buffer, offset, readLength);
+        if (read > 0 && !firstByteMarked) {
+            firstByteMarked = true;
+            trace.mark(StartupTrace.PHASE_FIRST_BYTE);
+        }
+        return read;
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        return dataSource.getUri();
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+        return dataSource.getResponseHeaders();
+    }
+
+    @Override
+    public void close() throws IOException {
+        dataSource.close();
+    }
+}
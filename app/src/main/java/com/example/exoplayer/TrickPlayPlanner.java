@@ -0,0 +1,100 @@
+package com.example.exoplayer;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.SeekParameters;
+
+/**
+ * 快进快退时决定每一帧seek到哪里。倒退取目标之前的关键帧，快进取目标之后的关键帧，不会往反方向跳。
+ * 有关键帧表时直接查表；没有时让播放器按PREVIOUS_SYNC/NEXT_SYNC找，seek完再记下实际落到的关键帧。
+ * 目标还没越过上一次显示的关键帧时跳过这一帧，不重复解码同一个关键帧。
+ * 只在主线程使用
+ */
+final class TrickPlayPlanner {
+    private float speed;
+    /**
+     * 上一次显示的关键帧，C.TIME_UNSET表示还没有
+     */
+    private long shownUs = C.TIME_UNSET;
+    /**
+     * 没有关键帧表时seek了还不知道落到哪个关键帧，等onKeyframeShown()
+     */
+    private boolean awaitingShown;
+    private int seekCount;
+    private int sameKeyframeCount;
+
+    /**
+     * 开始新的一段trick play，清掉统计
+     */
+    void start(float speed) {
+        seekCount = 0;
+        sameKeyframeCount = 0;
+        setSpeed(speed);
+    }
+
+    /**
+     * 改变倍速或者seek到别的位置后调用，忘掉上一次显示的关键帧
+     */
+    void setSpeed(float speed) {
+        this.speed = speed;
+        shownUs = C.TIME_UNSET;
+        awaitingShown = false;
+    }
+
+    /**
+     * 没有关键帧表时播放器用的seek参数
+     */
+    SeekParameters getSeekParameters() {
+        return speed < 0 ? SeekParameters.PREVIOUS_SYNC : SeekParameters.NEXT_SYNC;
+    }
+
+    /**
+     * @param index 关键帧表，没有时传null
+     * @return 要seek到的位置，和上一次显示的是同一个关键帧时返回C.TIME_UNSET
+     */
+    long nextSeekPositionMs(long targetMs, @Nullable KeyframeIndex index) {
+        long targetUs = C.msToUs(targetMs);
+        if (index != null && index.size() > 0) {
+            int keyframe = index.floorIndex(targetUs);
+            if (speed > 0 && index.getTimeUs(keyframe) < targetUs && keyframe + 1 < index.size()) {
+                keyframe++;
+            }
+            long keyframeUs = index.getTimeUs(keyframe);
+            if (keyframeUs == shownUs) {
+                sameKeyframeCount++;
+                return C.TIME_UNSET;
+            }
+            shownUs = keyframeUs;
+            awaitingShown = false;
+            seekCount++;
+            return C.usToMs(keyframeUs);
+        }
+        // 上一个目标解析到了shownUs，中间没有别的关键帧，新的目标没越过它时结果还是它
+        if (shownUs != C.TIME_UNSET && (speed < 0 ? targetUs >= shownUs : targetUs <= shownUs)) {
+            sameKeyframeCount++;
+            return C.TIME_UNSET;
+        }
+        awaitingShown = true;
+        seekCount++;
+        return targetMs;
+    }
+
+    /**
+     * 没有关键帧表时seek完成后传入播放器实际的位置，即解析到的关键帧
+     */
+    void onKeyframeShown(long positionMs) {
+        if (awaitingShown) {
+            awaitingShown = false;
+            shownUs = C.msToUs(positionMs);
+        }
+    }
+
+    int getSeekCount() {
+        return seekCount;
+    }
+
+    int getSameKeyframeCount() {
+        return sameKeyframeCount;
+    }
+}
@@ -0,0 +1,248 @@
+package com.example.exoplayer;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import com.google.android.exoplayer2.ext.okhttp.OkHttpDataSourceFactory;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.google.android.exoplayer2.util.Util;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+/**
+ * 进程内共享的网络数据源：所有播放器和预加载共用一个OkHttpClient，
+ * 同一个CDN上的请求可以复用keep-alive连接，不用每次重新握手。
+ */
+final class UpstreamStack {
+    static final int DEFAULT_CONNECT_TIMEOUT_MS = 8000;
+    static final int DEFAULT_READ_TIMEOUT_MS = 8000;
+    /**
+     * 每个host同时在建立中的请求数，已经在传输数据的连接不算
+     */
+    static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final int KEEP_ALIVE_MINUTES = 5;
+
+    private static volatile UpstreamStack sInstance;
+
+    private final DataSource.Factory upstreamFactory;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong newConnectionCount = new AtomicLong();
+    private final AtomicLong reusedConnectionCount = new AtomicLong();
+    private final AtomicLong totalTtfbMs = new AtomicLong();
+    private final AtomicLong maxTtfbMs = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private volatile CacheDataSourceFactory cacheDataSourceFactory;
+    private volatile boolean parallelRangeEnabled = true;
+    private volatile boolean sharedFetchEnabled = true;
+    private final SharedFetchDataSource.Registry sharedFetchRegistry = new SharedFetchDataSource.Registry();
+
+    static UpstreamStack get(Context context) {
+        if (sInstance == null) {
+            synchronized (UpstreamStack.class) {
+                if (sInstance == null) {
+                    sInstance = new UpstreamStack(context.getApplicationContext(), DEFAULT_CONNECT_TIMEOUT_MS,
+                            DEFAULT_READ_TIMEOUT_MS, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * 测试时可以直接构造，指向本地的HTTP服务
+     */
+    UpstreamStack(Context context, int connectTimeoutMs, int readTimeoutMs, int maxConnectionsPerHost) {
+        OkHttpClient client = new OkHttpClient.Builder()
+                .connectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeoutMs, TimeUnit.MILLISECONDS)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .eventListenerFactory(call -> new MetricsListener())
+                .build();
+        String userAgent = Util.getUserAgent(context, "demo");
+        OkHttpDataSourceFactory httpFactory = new OkHttpDataSourceFactory(client, userAgent, byteCounter);
+        HostLimitedDataSource.Limiter limiter = new HostLimitedDataSource.Limiter(maxConnectionsPerHost);
+        DataSource.Factory limitedFactory = () -> new HostLimitedDataSource(httpFactory.createDataSource(), limiter);
+        this.upstreamFactory = new DefaultDataSourceFactory(context, null, limitedFactory);
+    }
+
+    /**
+     * 不经过缓存的数据源，支持http和本地文件
+     */
+    DataSource.Factory getUpstreamFactory() {
+        return upstreamFactory;
+    }
+
+    /**
+     * 播放用的数据源，先读缓存，缺的部分从网络下载并写入缓存
+     */
+    DataSource.Factory getCacheDataSourceFactory(SimpleCache cache) {
+        CacheDataSourceFactory factory = cacheDataSourceFactory;
+        if (factory == null || factory.cache != cache) {
+            DataSource.Factory sharedFactory = () -> sharedFetchEnabled
+                    ? new SharedFetchDataSource(upstreamFactory, sharedFetchRegistry)
+                    : upstreamFactory.createDataSource();
+            ParallelRangeDataSource.Stash stash = new ParallelRangeDataSource.Stash(upstreamFactory, cache);
+            factory = new CacheDataSourceFactory(cache, stash, () -> parallelRangeEnabled
+                    ? new ParallelRangeDataSource(sharedFactory, stash)
+                    : sharedFactory.createDataSource());
+            cacheDataSourceFactory = factory;
+        }
+        return factory;
+    }
+
+    /**
+     * 同一个视频被多个播放器同时读取时共享一个下载，读者之间不再互相等待缓存锁，
+     * 见{@link SharedFetchDataSource}。关闭后恢复FLAG_BLOCK_ON_CACHE
+     */
+    void setSharedFetchEnabled(boolean enabled) {
+        sharedFetchEnabled = enabled;
+    }
+
+    String getSharedFetchStats() {
+        return sharedFetchRegistry.getStats();
+    }
+
+    /**
+     * 是否在起播时并行请求文件开头和结尾，见{@link ParallelRangeDataSource}
+     */
+    void setParallelRangeEnabled(boolean enabled) {
+        parallelRangeEnabled = enabled;
+    }
+
+    /**
+     * 释放内存中预取好但还没被读走的数据
+     *
+     * @return 释放的字节数
+     */
+    long trimMemory() {
+        CacheDataSourceFactory factory = cacheDataSourceFactory;
+        return factory == null ? 0 : factory.stash.trim();
+    }
+
+    /**
+     * @return 进程启动以来从网络读取的响应体字节数，读取过程中实时累加，包括还没结束的连接
+     */
+    long getResponseBytes() {
+        return responseBytes.get();
+    }
+
+    String getMetrics() {
+        long requests = requestCount.get();
+        long reused = reusedConnectionCount.get();
+        long opened = newConnectionCount.get();
+        long connections = reused + opened;
+        return "requests=" + requests + ", newConnections=" + opened + ", reusedConnections=" + reused
+                + ", reuseRatio=" + (connections == 0 ? 0 : reused * 100 / connections) + "%"
+                + ", avgTtfbMs=" + (requests == 0 ? 0 : totalTtfbMs.get() / requests)
+                + ", maxTtfbMs=" + maxTtfbMs.get()
+                + ", responseBytes=" + responseBytes.get()
+                + ", cacheHitRatio=" + getCacheHitPercent() + "%"
+                + ", cacheKeys={" + VideoCache.getKeyStats() + "}";
+    }
+
+    /**
+     * 从缓存读到的字节占读到的总字节的比例，网络字节里包括预加载
+     */
+    int getCacheHitPercent() {
+        long cached = VideoCache.getCachedBytesRead();
+        long total = cached + responseBytes.get();
+        return total == 0 ? 0 : (int) (cached * 100 / total);
+    }
+
+    private final class MetricsListener extends EventListener {
+        private long callStartMs;
+        private boolean connected;
+
+        @Override
+        public void callStart(Call call) {
+            callStartMs = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connected = true;
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            if (connected) {
+                newConnectionCount.incrementAndGet();
+            } else {
+                reusedConnectionCount.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void responseHeadersEnd(Call call, Response response) {
+            long ttfb = SystemClock.elapsedRealtime() - callStartMs;
+            requestCount.incrementAndGet();
+            totalTtfbMs.addAndGet(ttfb);
+            long max;
+            do {
+                max = maxTtfbMs.get();
+            } while (ttfb > max && !maxTtfbMs.compareAndSet(max, ttfb));
+        }
+    }
+
+    /**
+     * 每次read都累加，边下边播的连接可能一直不结束，不能等到响应体读完才统计
+     */
+    private final TransferListener byteCounter = new TransferListener() {
+        @Override
+        public void onTransferInitializing(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+
+        }
+
+        @Override
+        public void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+
+        }
+
+        @Override
+        public void onBytesTransferred(DataSource source, DataSpec dataSpec, boolean isNetwork, int bytesTransferred) {
+            responseBytes.addAndGet(bytesTransferred);
+        }
+
+        @Override
+        public void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+
+        }
+    };
+
+    private final class CacheDataSourceFactory implements DataSource.Factory {
+        private final SimpleCache cache;
+        private final ParallelRangeDataSource.Stash stash;
+        private final DataSource.Factory factory;
+
+        CacheDataSourceFactory(SimpleCache cache, ParallelRangeDataSource.Stash stash, DataSource.Factory factory) {
+            this.cache = cache;
+            this.stash = stash;
+            this.factory = factory;
+        }
+
+        @Override
+        public DataSource createDataSource() {
+            int flags = CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR;
+            if (!sharedFetchEnabled) {
+                flags |= CacheDataSource.FLAG_BLOCK_ON_CACHE;
+            }
+            return VideoCache.createDataSource(cache, factory.createDataSource(), flags);
+        }
+    }
+}
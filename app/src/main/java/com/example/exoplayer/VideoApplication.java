@@ -0,0 +1,23 @@
+package com.example.exoplayer;
+
+import android.app.Application;
+import android.os.StrictMode;
+
+public class VideoApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if (BuildConfig.DEBUG) {
+            // 播放器创建、MediaSource和缓存初始化都应该在后台线程，主线程读写磁盘时打日志
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .penaltyLog()
+                    .build());
+        }
+        VideoCache.warmUp(this);
+        PlaybackHints.warmUp(this);
+        MemoryGovernor.get(this);
+    }
+}
@@ -0,0 +1,367 @@
+package com.example.exoplayer;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.google.android.exoplayer2.database.ExoDatabaseProvider;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DummyDataSource;
+import com.google.android.exoplayer2.upstream.FileDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSink;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheKeyFactory;
+import com.google.android.exoplayer2.upstream.cache.ContentMetadata;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内共享的视频缓存，播放和预加载都读写同一个SimpleCache
+ */
+final class VideoCache {
+    static final long MAX_CACHE_SIZE = 80 * 1024 * 1024;
+    /**
+     * 每个视频开头受保护的字节数
+     */
+    static final long HEAD_BYTES = 1024 * 1024;
+    static final long PER_KEY_QUOTA = 20 * 1024 * 1024;
+    /**
+     * 与HEAD_BYTES一致，保证开头部分是独立的span
+     */
+    static final long MAX_FILE_SIZE = HEAD_BYTES;
+    private static final String TAG = "VideoCache";
+    private static final String CACHE_DIR_NAME = "exo-video-cache";
+    /**
+     * 放在SimpleCache目录外面，SimpleCache不认识的文件会被删掉
+     */
+    private static final String ALIASES_FILE_NAME = "exo-video-cache-aliases";
+    /**
+     * 固定的key，创建淘汰器之前读出来，避免下载管理器恢复队列之前离线视频就被淘汰
+     */
+    private static final String PINNED_FILE_NAME = "exo-video-cache-pinned";
+    private static final int PINNED_MAGIC = 0x5650494e;
+    private static final int PINNED_VERSION = 1;
+
+    private static volatile HeadAwareCacheEvictor sEvictor = null;
+    private static FutureTask<SimpleCache> sInitTask = null;
+    private static volatile long sInitDurationMs = -1;
+    private static final byte[] lock = new byte[0];
+    private static volatile KeyStrategy sKeyStrategy = new CacheKeyNormalizer();
+    private static volatile boolean sContentDedupEnabled;
+    private static volatile CacheKeyAliases sAliases;
+    private static final AtomicLong sCachedBytesRead = new AtomicLong();
+    private static final Set<String> sPinnedKeys = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private static volatile AtomicFile sPinnedFile;
+    /**
+     * 按顺序写固定key的文件，不阻塞调用setPinned()的线程
+     */
+    private static final ExecutorService sPinnedSaver = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "video-cache-pinned");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final CacheKeyFactory CACHE_KEY_FACTORY =
+            dataSpec -> dataSpec.key != null ? dataSpec.key : buildCacheKey(dataSpec.uri);
+    private static final CacheDataSource.EventListener HIT_LISTENER = new CacheDataSource.EventListener() {
+        @Override
+        public void onCachedBytesRead(long cacheSizeBytes, long cachedBytesRead) {
+            sCachedBytesRead.addAndGet(cachedBytesRead);
+        }
+
+        @Override
+        public void onCacheIgnored(int reason) {
+        }
+    };
+
+    /**
+     * 从视频地址得到缓存key，地址不同但内容相同的视频应该得到同一个key
+     */
+    interface KeyStrategy {
+        /**
+         * 会在多个线程调用
+         */
+        String buildCacheKey(Uri uri);
+    }
+
+    private VideoCache() {
+    }
+
+    /**
+     * 要在warmUp()之前设置，缓存创建时会把已有的数据迁移到新规则的key下
+     */
+    static void setKeyStrategy(KeyStrategy strategy) {
+        sKeyStrategy = strategy;
+    }
+
+    /**
+     * 缓存创建后在后台按内容指纹合并地址不同的重复视频，默认关闭。要在warmUp()之前设置
+     */
+    static void setContentDedupEnabled(boolean enabled) {
+        sContentDedupEnabled = enabled;
+    }
+
+    /**
+     * 在后台线程创建SimpleCache并加载索引，可以重复调用。
+     * 应在Application.onCreate()里调用，避免首个视频承担索引扫描的耗时。
+     */
+    static Future<SimpleCache> warmUp(Context context) {
+        synchronized (lock) {
+            if (sInitTask == null) {
+                Context appContext = context.getApplicationContext();
+                sInitTask = new FutureTask<>(() -> createCache(appContext));
+                Thread thread = new Thread(sInitTask, "video-cache-init");
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                thread.start();
+            }
+            return sInitTask;
+        }
+    }
+
+    /**
+     * 阻塞等待缓存初始化完成，只能在后台线程调用
+     *
+     * @return 共享缓存，没有外部缓存目录或初始化失败时返回null
+     */
+    @Nullable
+    static SimpleCache getCache(Context context) {
+        return await(warmUp(context), -1);
+    }
+
+    /**
+     * 最多等待timeoutMs，超时返回null，调用方可以选择不走缓存
+     */
+    @Nullable
+    static SimpleCache awaitCache(Context context, long timeoutMs) {
+        return await(warmUp(context), timeoutMs);
+    }
+
+    /**
+     * @return 索引加载耗时，还没完成时返回-1
+     */
+    static long getInitDurationMs() {
+        return sInitDurationMs;
+    }
+
+    @Nullable
+    private static SimpleCache createCache(Context context) {
+        long start = SystemClock.elapsedRealtime();
+        File cacheDir = context.getExternalCacheDir();
+        if (cacheDir == null) {
+            return null;
+        }
+        cacheDir = new File(cacheDir, CACHE_DIR_NAME);
+        cacheDir.mkdirs();
+        loadPinnedKeys(new AtomicFile(new File(cacheDir.getParentFile(), PINNED_FILE_NAME)));
+        HeadAwareCacheEvictor evictor = new HeadAwareCacheEvictor(MAX_CACHE_SIZE, HEAD_BYTES, PER_KEY_QUOTA, sPinnedKeys);
+        SimpleCache cache = new SimpleCache(cacheDir, evictor, new ExoDatabaseProvider(context));
+        // SimpleCache在自己的线程里加载索引，这里等它完成才算初始化结束
+        long cacheSpace = cache.getCacheSpace();
+        CacheKeyAliases aliases = new CacheKeyAliases(new File(cacheDir.getParentFile(), ALIASES_FILE_NAME));
+        aliases.load();
+        aliases.migrate(cache, sKeyStrategy);
+        sAliases = aliases;
+        if (sContentDedupEnabled) {
+            Thread thread = new Thread(() -> aliases.deduplicate(cache), "video-cache-dedup");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+        sEvictor = evictor;
+        sInitDurationMs = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, "cache initialized in " + sInitDurationMs + "ms, size=" + cacheSpace);
+        return cache;
+    }
+
+    /**
+     * 同步读取上次固定的key，和初始化之前已经固定的合并
+     */
+    private static void loadPinnedKeys(AtomicFile file) {
+        HashSet<String> stored = new HashSet<>();
+        if (file.getBaseFile().exists()) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(file.openRead()))) {
+                if (input.readInt() == PINNED_MAGIC && input.readInt() == PINNED_VERSION) {
+                    int count = input.readInt();
+                    for (int i = 0; i < count; i++) {
+                        stored.add(input.readUTF());
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "failed to load pinned keys", e);
+            }
+        }
+        boolean changed = !stored.containsAll(sPinnedKeys);
+        sPinnedKeys.addAll(stored);
+        sPinnedFile = file;
+        if (changed) {
+            savePinnedKeys();
+        }
+        Log.i(TAG, "loaded " + stored.size() + " pinned keys");
+    }
+
+    private static void savePinnedKeys() {
+        AtomicFile file = sPinnedFile;
+        if (file == null) {
+            // 缓存初始化时会合并后再保存
+            return;
+        }
+        sPinnedSaver.execute(() -> {
+            ArrayList<String> snapshot = new ArrayList<>(sPinnedKeys);
+            FileOutputStream outputStream = null;
+            try {
+                outputStream = file.startWrite();
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(outputStream));
+                output.writeInt(PINNED_MAGIC);
+                output.writeInt(PINNED_VERSION);
+                output.writeInt(snapshot.size());
+                for (String key : snapshot) {
+                    output.writeUTF(key);
+                }
+                output.flush();
+                file.finishWrite(outputStream);
+            } catch (IOException e) {
+                Log.w(TAG, "failed to save pinned keys", e);
+                if (outputStream != null) {
+                    file.failWrite(outputStream);
+                }
+            }
+        });
+    }
+
+    @Nullable
+    private static SimpleCache await(Future<SimpleCache> future, long timeoutMs) {
+        try {
+            return timeoutMs < 0 ? future.get() : future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Log.w(TAG, "cache not ready after " + timeoutMs + "ms");
+        } catch (ExecutionException e) {
+            Log.e(TAG, "cache init failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     * @return head/tail两个区域的命中统计，缓存还没创建时返回null
+     */
+    @Nullable
+    static String getEvictionStats() {
+        HeadAwareCacheEvictor evictor = sEvictor;
+        return evictor == null ? null : evictor.getStats();
+    }
+
+    /**
+     * 所有读写缓存的地方都用这个key，CacheDataSource也是。缓存还没初始化完时不会用到迁移和去重的别名
+     */
+    static String buildCacheKey(Uri uri) {
+        String key = sKeyStrategy.buildCacheKey(uri);
+        CacheKeyAliases aliases = sAliases;
+        return aliases == null ? key : aliases.resolve(key);
+    }
+
+    static CacheDataSource createDataSource(SimpleCache cache, DataSource upstream, int flags) {
+        return new CacheDataSource(cache, upstream, new FileDataSource(),
+                new CacheDataSink(cache, MAX_FILE_SIZE), flags, HIT_LISTENER, CACHE_KEY_FACTORY);
+    }
+
+    /**
+     * 固定的key不会被淘汰，离线下载用，会持久化，下次启动创建缓存时就生效。key要用buildCacheKey()得到的
+     */
+    static void setPinned(String key, boolean pinned) {
+        boolean changed = pinned ? sPinnedKeys.add(key) : sPinnedKeys.remove(key);
+        if (changed) {
+            savePinnedKeys();
+        }
+    }
+
+    /**
+     * 只保留keys中的固定，去掉已经没有对应下载的
+     */
+    static void retainPinned(Set<String> keys) {
+        if (sPinnedKeys.retainAll(keys)) {
+            savePinnedKeys();
+        }
+    }
+
+    static boolean isPinned(String key) {
+        return sPinnedKeys.contains(key);
+    }
+
+    /**
+     * @return 长度已知并且从头到尾都在缓存里
+     */
+    static boolean isFullyCached(SimpleCache cache, String key) {
+        long length = ContentMetadata.getContentLength(cache.getContentMetadata(key));
+        return length > 0 && cache.isCached(key, 0, length);
+    }
+
+    /**
+     * 只读缓存的数据源，缺数据时直接失败，不会访问网络
+     */
+    static DataSource.Factory getOfflineFactory(SimpleCache cache) {
+        return () -> createDataSource(cache, DummyDataSource.INSTANCE, 0);
+    }
+
+    /**
+     * @return 进程启动以来播放和预加载从缓存读到的字节数
+     */
+    static long getCachedBytesRead() {
+        return sCachedBytesRead.get();
+    }
+
+    /**
+     * 模拟进程重启：等固定key写完，释放缓存并清掉进程内的状态
+     */
+    @VisibleForTesting
+    static void resetForTest() throws Exception {
+        sPinnedSaver.submit(() -> {
+        }).get();
+        synchronized (lock) {
+            if (sInitTask != null) {
+                SimpleCache cache = sInitTask.get();
+                if (cache != null) {
+                    cache.release();
+                }
+                sInitTask = null;
+            }
+        }
+        sEvictor = null;
+        sAliases = null;
+        sPinnedFile = null;
+        sPinnedKeys.clear();
+        sInitDurationMs = -1;
+    }
+
+    /**
+     * @return key迁移和去重的统计，缓存还没创建时返回null
+     */
+    @Nullable
+    static String getKeyStats() {
+        CacheKeyAliases aliases = sAliases;
+        return aliases == null ? null : aliases.getStats();
+    }
+}
@@ -0,0 +1,628 @@
+package com.example.exoplayer;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+import com.google.android.exoplayer2.upstream.cache.ContentMetadata;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 离线下载：把完整的视频下载到共享的SimpleCache并固定，不会被淘汰，播放时只读磁盘。
+ * 队列持久化，进程重启后继续；已经缓存的区间不会重复下载，只补缺的部分。
+ * 可以限制并发数、带宽，以及只在不计流量的网络/充电时下载，条件不满足时暂停，满足后自动继续。
+ * 进度和状态回调在主线程。
+ */
+public final class VideoDownloadManager {
+    private static final String TAG = "VideoDownloadManager";
+    public static final int STATE_NONE = -1;
+    public static final int STATE_QUEUED = 0;
+    public static final int STATE_DOWNLOADING = 1;
+    public static final int STATE_COMPLETED = 2;
+    public static final int STATE_FAILED = 3;
+    public static final int DEFAULT_MAX_CONCURRENT = 1;
+    private static final String STATE_FILE_NAME = "video-downloads";
+    private static final int MAGIC = 0x56444c51;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final long PROGRESS_INTERVAL_MS = 500;
+    private static final int RESULT_COMPLETED = 0;
+    private static final int RESULT_STOPPED = 1;
+    private static final int RESULT_FAILED = 2;
+
+    private static volatile VideoDownloadManager sInstance;
+
+    public interface Listener {
+        /**
+         * @param contentLength 总长度，还不知道时为C.LENGTH_UNSET
+         */
+        void onProgress(String url, long downloadedBytes, long contentLength);
+
+        /**
+         * @param state 移除后为STATE_NONE
+         */
+        void onStateChanged(String url, int state);
+    }
+
+    private final Context context;
+    private final DataSource.Factory upstreamFactory;
+    private final AtomicFile stateFile;
+    private final ExecutorService executor;
+    /**
+     * 读写队列文件，保证顺序
+     */
+    private final ExecutorService ioExecutor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final BandwidthThrottle throttle = new BandwidthThrottle(0);
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Object lock = new Object();
+    /**
+     * 按加入顺序下载
+     */
+    private final LinkedHashMap<String, Item> items = new LinkedHashMap<>();
+    private int running;
+    private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private boolean requireUnmetered = true;
+    private boolean requireCharging;
+    private boolean requireNetwork = true;
+    private boolean restored;
+
+    private long downloadedBytes;
+    private int completedCount;
+    private int failedCount;
+    private int stoppedCount;
+
+    private final BroadcastReceiver constraintsReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onConstraintsChanged();
+        }
+    };
+
+    public static VideoDownloadManager get(Context context) {
+        if (sInstance == null) {
+            synchronized (VideoDownloadManager.class) {
+                if (sInstance == null) {
+                    Context appContext = context.getApplicationContext();
+                    sInstance = new VideoDownloadManager(appContext,
+                            UpstreamStack.get(appContext).getUpstreamFactory(),
+                            new File(appContext.getFilesDir(), STATE_FILE_NAME));
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * upstreamFactory可以换成访问本地HTTP服务的，用来测试完整的下载流程
+     */
+    VideoDownloadManager(Context context, DataSource.Factory upstreamFactory, File stateFile) {
+        this.context = context;
+        this.upstreamFactory = upstreamFactory;
+        this.stateFile = new AtomicFile(stateFile);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "video-download");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ioExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "video-download-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+        IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        context.registerReceiver(constraintsReceiver, filter);
+        ioExecutor.execute(this::restore);
+    }
+
+    /**
+     * 加入下载队列，已经在队列中的不会重复加入，失败的会重新开始
+     */
+    public void add(String url) {
+        synchronized (lock) {
+            Item item = items.get(url);
+            if (item == null) {
+                item = new Item(url);
+                items.put(url, item);
+            } else if (item.state != STATE_FAILED) {
+                return;
+            }
+            // 缓存初始化前得到的key可能还没有别名，开始下载时会再固定一次
+            item.key = VideoCache.buildCacheKey(Uri.parse(url));
+            VideoCache.setPinned(item.key, true);
+            setStateLocked(item, STATE_QUEUED);
+            saveLocked();
+            scheduleLocked();
+        }
+    }
+
+    /**
+     * 移除下载并取消固定，之后数据按普通缓存淘汰
+     *
+     * @param deleteData 同时删除已经缓存的数据
+     */
+    public void remove(String url, boolean deleteData) {
+        synchronized (lock) {
+            Item item = items.remove(url);
+            if (item == null) {
+                return;
+            }
+            item.removed = true;
+            if (item.key != null) {
+                VideoCache.setPinned(item.key, false);
+            }
+            if (item.task != null) {
+                // 正在写缓存，等任务结束再删
+                item.task.stopped = true;
+                item.task.deleteData = deleteData;
+            } else if (deleteData) {
+                ioExecutor.execute(() -> deleteData(item.key));
+            }
+            setStateLocked(item, STATE_NONE);
+            saveLocked();
+        }
+    }
+
+    public int getState(String url) {
+        synchronized (lock) {
+            Item item = items.get(url);
+            return item == null ? STATE_NONE : item.state;
+        }
+    }
+
+    /**
+     * @return 所有下载的地址，按加入顺序
+     */
+    public List<String> getUrls() {
+        synchronized (lock) {
+            return new ArrayList<>(items.keySet());
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public void setMaxConcurrent(int maxConcurrent) {
+        synchronized (lock) {
+            this.maxConcurrent = Math.max(1, maxConcurrent);
+            scheduleLocked();
+        }
+    }
+
+    /**
+     * 所有下载任务共享的带宽预算，小于等于0表示不限速
+     */
+    public void setBandwidthBudget(long bytesPerSecond) {
+        throttle.setBytesPerSecond(bytesPerSecond);
+    }
+
+    /**
+     * 只在不计流量的网络(一般是Wi-Fi)下载，默认打开
+     */
+    public void setRequireUnmetered(boolean require) {
+        synchronized (lock) {
+            requireUnmetered = require;
+        }
+        onConstraintsChanged();
+    }
+
+    /**
+     * 只在充电时下载，默认关闭
+     */
+    public void setRequireCharging(boolean require) {
+        synchronized (lock) {
+            requireCharging = require;
+        }
+        onConstraintsChanged();
+    }
+
+    /**
+     * 连本地HTTP服务测试时关闭，不检查网络连接
+     */
+    void setRequireNetwork(boolean require) {
+        synchronized (lock) {
+            requireNetwork = require;
+        }
+        onConstraintsChanged();
+    }
+
+    public String getStats() {
+        synchronized (lock) {
+            int queued = 0;
+            for (Item item : items.values()) {
+                if (item.state == STATE_QUEUED) {
+                    queued++;
+                }
+            }
+            return "items=" + items.size() + ", queued=" + queued + ", running=" + running
+                    + ", completed=" + completedCount + ", failed=" + failedCount + ", stopped=" + stoppedCount
+                    + ", downloadedBytes=" + downloadedBytes;
+        }
+    }
+
+    private void onConstraintsChanged() {
+        synchronized (lock) {
+            if (constraintsMet()) {
+                scheduleLocked();
+                return;
+            }
+            // 条件不满足时停止，任务结束后回到排队状态
+            for (Item item : items.values()) {
+                if (item.task != null) {
+                    item.task.stopped = true;
+                }
+            }
+        }
+    }
+
+    private boolean constraintsMet() {
+        if (!requireNetwork) {
+            return true;
+        }
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = connectivityManager == null ? null : connectivityManager.getActiveNetworkInfo();
+        if (info == null || !info.isConnected()) {
+            return false;
+        }
+        if (requireUnmetered && connectivityManager.isActiveNetworkMetered()) {
+            return false;
+        }
+        if (requireCharging) {
+            // ACTION_BATTERY_CHANGED是粘性广播，不需要真正注册
+            Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        }
+        return true;
+    }
+
+    private void scheduleLocked() {
+        if (!restored || running >= maxConcurrent || !constraintsMet()) {
+            return;
+        }
+        for (Item item : items.values()) {
+            if (running >= maxConcurrent) {
+                break;
+            }
+            if (item.state == STATE_QUEUED && item.task == null) {
+                item.task = new Task(item);
+                running++;
+                setStateLocked(item, STATE_DOWNLOADING);
+                executor.execute(item.task);
+            }
+        }
+    }
+
+    private void onTaskFinished(Task task, int result, long bytes) {
+        Item item = task.item;
+        synchronized (lock) {
+            running--;
+            item.task = null;
+            downloadedBytes += bytes;
+            if (!item.removed) {
+                if (result == RESULT_COMPLETED) {
+                    completedCount++;
+                    setStateLocked(item, STATE_COMPLETED);
+                } else if (result == RESULT_FAILED) {
+                    failedCount++;
+                    setStateLocked(item, STATE_FAILED);
+                } else {
+                    stoppedCount++;
+                    setStateLocked(item, STATE_QUEUED);
+                }
+                saveLocked();
+            }
+            scheduleLocked();
+        }
+        if (item.removed && task.deleteData) {
+            deleteData(item.key);
+        }
+    }
+
+    private void setStateLocked(Item item, int state) {
+        if (item.state == state) {
+            return;
+        }
+        item.state = state;
+        String url = item.url;
+        mainHandler.post(() -> {
+            for (Listener listener : listeners) {
+                listener.onStateChanged(url, state);
+            }
+        });
+    }
+
+    private void notifyProgress(Item item) {
+        String url = item.url;
+        long bytes = item.downloadedBytes;
+        long length = item.contentLength;
+        mainHandler.post(() -> {
+            for (Listener listener : listeners) {
+                listener.onProgress(url, bytes, length);
+            }
+        });
+    }
+
+    private void deleteData(String key) {
+        SimpleCache cache = VideoCache.getCache(context);
+        if (cache == null || key == null || VideoCache.isPinned(key)) {
+            return;
+        }
+        try {
+            cache.removeResource(key);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "failed to delete " + key, e);
+        }
+    }
+
+    /**
+     * 在io线程读取队列，等缓存初始化完成后重新固定所有key，之后才开始下载
+     */
+    private void restore() {
+        ArrayList<Item> loaded = new ArrayList<>();
+        if (stateFile.getBaseFile().exists()) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(stateFile.openRead()))) {
+                if (input.readInt() == MAGIC && input.readInt() == VERSION) {
+                    int count = input.readInt();
+                    for (int i = 0; i < count; i++) {
+                        Item item = new Item(input.readUTF());
+                        item.state = input.readInt();
+                        item.contentLength = input.readLong();
+                        item.downloadedBytes = input.readLong();
+                        loaded.add(item);
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "failed to load downloads", e);
+            }
+        }
+        VideoCache.getCache(context);
+        synchronized (lock) {
+            LinkedHashMap<String, Item> added = new LinkedHashMap<>(items);
+            items.clear();
+            for (Item item : loaded) {
+                if (added.containsKey(item.url)) {
+                    continue;
+                }
+                // 上次被杀时正在下载的重新排队
+                if (item.state == STATE_DOWNLOADING) {
+                    item.state = STATE_QUEUED;
+                }
+                item.key = VideoCache.buildCacheKey(Uri.parse(item.url));
+                VideoCache.setPinned(item.key, true);
+                items.put(item.url, item);
+            }
+            items.putAll(added);
+            // 上次启动时的固定已经在创建缓存时生效，这里去掉已经不在队列里的
+            HashSet<String> keys = new HashSet<>();
+            for (Item item : items.values()) {
+                keys.add(item.key);
+            }
+            VideoCache.retainPinned(keys);
+            restored = true;
+            Log.i(TAG, "restored " + loaded.size() + " downloads");
+            saveLocked();
+            scheduleLocked();
+        }
+    }
+
+    private void saveLocked() {
+        if (!restored) {
+            // 还没读完旧队列，读完后合并时不会丢掉这次的修改，下次保存时一起写入
+            return;
+        }
+        ArrayList<Item> snapshot = new ArrayList<>(items.size());
+        for (Item item : items.values()) {
+            Item copy = new Item(item.url);
+            copy.state = item.state;
+            copy.contentLength = item.contentLength;
+            copy.downloadedBytes = item.downloadedBytes;
+            snapshot.add(copy);
+        }
+        ioExecutor.execute(() -> save(snapshot));
+    }
+
+    private void save(List<Item> snapshot) {
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = stateFile.startWrite();
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(outputStream));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(snapshot.size());
+            for (Item item : snapshot) {
+                output.writeUTF(item.url);
+                output.writeInt(item.state);
+                output.writeLong(item.contentLength);
+                output.writeLong(item.downloadedBytes);
+            }
+            output.flush();
+            stateFile.finishWrite(outputStream);
+        } catch (IOException e) {
+            Log.w(TAG, "failed to save downloads", e);
+            if (outputStream != null) {
+                stateFile.failWrite(outputStream);
+            }
+        }
+    }
+
+    private static final class Item {
+        final String url;
+        /**
+         * 以下字段除了进度都在lock内修改
+         */
+        String key;
+        int state = STATE_NONE;
+        Task task;
+        boolean removed;
+        volatile long contentLength = C.LENGTH_UNSET;
+        volatile long downloadedBytes;
+
+        Item(String url) {
+            this.url = url;
+        }
+    }
+
+    private final class Task implements Runnable {
+        final Item item;
+        volatile boolean stopped;
+        volatile boolean deleteData;
+        private long lastProgressMs;
+
+        Task(Item item) {
+            this.item = item;
+        }
+
+        @Override
+        public void run() {
+            long bytes = 0;
+            int result = RESULT_STOPPED;
+            try {
+                SimpleCache cache = VideoCache.getCache(context);
+                if (cache == null) {
+                    result = RESULT_FAILED;
+                    return;
+                }
+                Uri uri = Uri.parse(item.url);
+                String key = VideoCache.buildCacheKey(uri);
+                synchronized (lock) {
+                    if (item.removed) {
+                        return;
+                    }
+                    if (!key.equals(item.key)) {
+                        if (item.key != null) {
+                            VideoCache.setPinned(item.key, false);
+                        }
+                        item.key = key;
+                    }
+                    VideoCache.setPinned(key, true);
+                }
+                item.contentLength = ContentMetadata.getContentLength(cache.getContentMetadata(key));
+                item.downloadedBytes = getCachedBytes(cache, key);
+                notifyProgress(item);
+                bytes = download(cache, uri, key);
+                if (!stopped) {
+                    result = RESULT_COMPLETED;
+                }
+            } catch (IOException e) {
+                result = stopped ? RESULT_STOPPED : RESULT_FAILED;
+                Log.w(TAG, "download failed:" + item.url, e);
+            } finally {
+                notifyProgress(item);
+                onTaskFinished(this, result, bytes);
+            }
+        }
+
+        /**
+         * 从头扫描缓存的空洞，只下载缺的区间，已有的跳过
+         *
+         * @return 这次从网络下载的字节数
+         */
+        private long download(SimpleCache cache, Uri uri, String key) throws IOException {
+            long bytes = 0;
+            long position = 0;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!stopped) {
+                long length = item.contentLength;
+                if (length != C.LENGTH_UNSET && position >= length) {
+                    break;
+                }
+                long cached = cache.getCachedLength(key, position,
+                        length == C.LENGTH_UNSET ? C.LENGTH_UNSET : length - position);
+                if (cached > 0) {
+                    position += cached;
+                    continue;
+                }
+                // 长度未知时空洞一直到结尾
+                long gap = length == C.LENGTH_UNSET ? C.LENGTH_UNSET : -cached;
+                long gapStart = position;
+                CacheDataSource dataSource = VideoCache.createDataSource(cache,
+                        upstreamFactory.createDataSource(), CacheDataSource.FLAG_BLOCK_ON_CACHE);
+                try {
+                    dataSource.open(new DataSpec(uri, position, gap, key));
+                    while (!stopped) {
+                        int read = dataSource.read(buffer, 0, buffer.length);
+                        if (read == C.RESULT_END_OF_INPUT) {
+                            break;
+                        }
+                        position += read;
+                        bytes += read;
+                        item.downloadedBytes += read;
+                        onProgress();
+                        throttle.acquire(read);
+                    }
+                } finally {
+                    Util.closeQuietly(dataSource);
+                }
+                // 读到结尾后CacheDataSource会把总长度写进缓存
+                item.contentLength = ContentMetadata.getContentLength(cache.getContentMetadata(key));
+                if (!stopped && position == gapStart) {
+                    if (item.contentLength == C.LENGTH_UNSET) {
+                        throw new IOException("content length unknown after reaching end:" + item.url);
+                    }
+                    // 服务器的内容比记录的短
+                    break;
+                }
+            }
+            return bytes;
+        }
+
+        private void onProgress() {
+            long now = SystemClock.elapsedRealtime();
+            if (now - lastProgressMs >= PROGRESS_INTERVAL_MS) {
+                lastProgressMs = now;
+                notifyProgress(item);
+            }
+        }
+    }
+
+    private static long getCachedBytes(SimpleCache cache, String key) {
+        long bytes = 0;
+        for (CacheSpan span : cache.getCachedSpans(key)) {
+            bytes += span.length;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.exoplayer;
+
+import android.os.Handler;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.Allocation;
+import com.google.android.exoplayer2.upstream.BandwidthMeter;
+import com.google.android.exoplayer2.upstream.TransferListener;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class AdaptiveLoadControlTest {
+    private static final int NORMAL_MEMORY_CLASS_MB = 256;
+    private static final int LOW_MEMORY_CLASS_MB = 96;
+    private static final long MEDIUM_BITRATE = 4_000_000;
+    /**
+     * 超过阈值的重新计算间隔
+     */
+    private static final long UPDATE_MS = 1100;
+
+    private FakeClock clock;
+    private FakeBandwidthMeter bandwidthMeter;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock(10_000);
+        bandwidthMeter = new FakeBandwidthMeter();
+    }
+
+    @Test
+    public void fastNetworkStartsEarly() {
+        bandwidthMeter.bitrate = AdaptiveLoadControl.DefaultPolicy.FAST_BITRATE;
+        AdaptiveLoadControl loadControl = create(NORMAL_MEMORY_CLASS_MB);
+
+        assertEquals(1000, loadControl.getThresholds().bufferForPlaybackMs);
+        assertEquals(MediaPlayerExo.MAX_BUFFER_MS, loadControl.getThresholds().maxBufferMs);
+    }
+
+    @Test
+    public void bandwidthDropSwitchesToDeepBuffer() {
+        bandwidthMeter.bitrate = AdaptiveLoadControl.DefaultPolicy.FAST_BITRATE;
+        AdaptiveLoadControl loadControl = create(NORMAL_MEMORY_CLASS_MB);
+        bandwidthMeter.bitrate = 1_000_000;
+
+        // 间隔内不重新计算
+        loadControl.shouldContinueLoading(0, 0, 1f);
+        assertEquals(1000, loadControl.getThresholds().bufferForPlaybackMs);
+
+        clock.advance(UPDATE_MS);
+        loadControl.shouldContinueLoading(0, 0, 1f);
+        assertEquals(15000, loadControl.getThresholds().minBufferMs);
+        assertEquals(30000, loadControl.getThresholds().maxBufferMs);
+        assertEquals(2500, loadControl.getThresholds().bufferForPlaybackMs);
+    }
+
+    @Test
+    public void rebuffersDeepenBufferUntilWindowPasses() {
+        bandwidthMeter.bitrate = MEDIUM_BITRATE;
+        AdaptiveLoadControl loadControl = create(NORMAL_MEMORY_CLASS_MB);
+        assertEquals(MediaPlayerExo.BUFFER_FOR_PLAYBACK_MS, loadControl.getThresholds().bufferForPlaybackMs);
+
+        rebuffer(loadControl);
+        assertEquals(MediaPlayerExo.MIN_BUFFER_MS, loadControl.getThresholds().minBufferMs);
+        clock.advance(UPDATE_MS);
+        rebuffer(loadControl);
+        assertEquals(15000, loadControl.getThresholds().minBufferMs);
+        assertEquals(5000, loadControl.getThresholds().bufferForPlaybackAfterRebufferMs);
+
+        clock.advance(AdaptiveLoadControl.REBUFFER_WINDOW_MS + UPDATE_MS);
+        loadControl.shouldContinueLoading(0, 0, 1f);
+        assertEquals(MediaPlayerExo.MIN_BUFFER_MS, loadControl.getThresholds().minBufferMs);
+        assertEquals(MediaPlayerExo.BUFFER_FOR_PLAYBACK_MS, loadControl.getThresholds().bufferForPlaybackMs);
+    }
+
+    @Test
+    public void lowMemoryClassCapsBuffer() {
+        bandwidthMeter.bitrate = 1_000_000;
+        AdaptiveLoadControl loadControl = create(LOW_MEMORY_CLASS_MB);
+
+        assertEquals(15000, loadControl.getThresholds().maxBufferMs);
+        assertEquals(15000, loadControl.getThresholds().minBufferMs);
+        assertEquals(0.5f, loadControl.getThresholds().targetBufferScale, 0f);
+    }
+
+    @Test
+    public void maxBufferBytesLimitIsRestored() {
+        bandwidthMeter.bitrate = MEDIUM_BITRATE;
+        AdaptiveLoadControl loadControl = create(NORMAL_MEMORY_CLASS_MB);
+        int defaultTarget = loadControl.getTargetBufferBytes();
+        int limit = 16 * C.DEFAULT_BUFFER_SEGMENT_SIZE;
+
+        // 中间没有加载判断时也要恢复
+        loadControl.setMaxBufferBytes(limit);
+        assertEquals(limit, loadControl.getTargetBufferBytes());
+        loadControl.setMaxBufferBytes(0);
+        assertEquals(defaultTarget, loadControl.getTargetBufferBytes());
+
+        loadControl.setMaxBufferBytes(limit);
+        Allocation[] allocations = new Allocation[limit / C.DEFAULT_BUFFER_SEGMENT_SIZE];
+        for (int i = 0; i < allocations.length; i++) {
+            allocations[i] = loadControl.getAllocator().allocate();
+        }
+        assertFalse(loadControl.shouldContinueLoading(0, 0, 1f));
+
+        loadControl.setMaxBufferBytes(0);
+        assertTrue(loadControl.shouldContinueLoading(0, 0, 1f));
+        loadControl.getAllocator().release(allocations);
+    }
+
+    @Test
+    public void trickPlayKeepsOnlyShortBuffer() {
+        bandwidthMeter.bitrate = MEDIUM_BITRATE;
+        AdaptiveLoadControl loadControl = create(NORMAL_MEMORY_CLASS_MB);
+        long bufferedUs = C.msToUs(1500);
+        assertTrue(loadControl.shouldContinueLoading(0, bufferedUs, 1f));
+
+        loadControl.setTrickPlay(true);
+        assertFalse(loadControl.shouldContinueLoading(0, bufferedUs, 1f));
+        // 暂停状态下只要有关键帧就显示
+        assertTrue(loadControl.shouldStartPlayback(0, 1f, false));
+
+        loadControl.setTrickPlay(false);
+        assertTrue(loadControl.shouldContinueLoading(0, bufferedUs, 1f));
+    }
+
+    @Test
+    public void fastPlaybackScalesBufferBySpeed() {
+        bandwidthMeter.bitrate = MEDIUM_BITRATE;
+        AdaptiveLoadControl loadControl = create(NORMAL_MEMORY_CLASS_MB);
+        int defaultTarget = loadControl.getTargetBufferBytes();
+        // 媒体时长8秒，1倍速在min和max之间不再加载，2倍速只够播4秒
+        long bufferedUs = C.msToUs(8000);
+        assertFalse(loadControl.shouldContinueLoading(0, bufferedUs, 1f));
+        assertEquals(defaultTarget, loadControl.getTargetBufferBytes());
+
+        assertTrue(loadControl.shouldContinueLoading(0, bufferedUs, 2f));
+        assertEquals(defaultTarget * 2, loadControl.getTargetBufferBytes());
+
+        // 字节数放大仍然受限制
+        int limit = defaultTarget / 2;
+        loadControl.setMaxBufferBytes(limit);
+        loadControl.shouldContinueLoading(0, bufferedUs, 2f);
+        assertEquals(limit, loadControl.getTargetBufferBytes());
+    }
+
+    private AdaptiveLoadControl create(int memoryClassMb) {
+        return new AdaptiveLoadControl(bandwidthMeter, memoryClassMb, new AdaptiveLoadControl.DefaultPolicy(), clock);
+    }
+
+    /**
+     * 模拟一次卡顿：播放器进入缓冲，然后缓冲足够后恢复
+     */
+    private static void rebuffer(AdaptiveLoadControl loadControl) {
+        loadControl.shouldStartPlayback(0, 1f, true);
+        assertTrue(loadControl.shouldStartPlayback(C.msToUs(60_000), 1f, true));
+    }
+
+    private static final class FakeBandwidthMeter implements BandwidthMeter {
+        long bitrate;
+
+        @Override
+        public long getBitrateEstimate() {
+            return bitrate;
+        }
+
+        @Nullable
+        @Override
+        public TransferListener getTransferListener() {
+            return null;
+        }
+
+        @Override
+        public void addEventListener(Handler eventHandler, EventListener eventListener) {
+
+        }
+
+        @Override
+        public void removeEventListener(EventListener eventListener) {
+
+        }
+    }
+}
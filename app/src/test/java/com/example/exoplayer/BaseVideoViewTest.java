@@ -0,0 +1,338 @@
+package com.example.exoplayer;
+
+import android.content.Context;
+import android.graphics.SurfaceTexture;
+import android.os.Looper;
+import android.view.Surface;
+import android.view.TextureView;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * 用计数的播放器驱动BaseVideoView，模拟页面onResume/onPause、重复setPath和连续seek，
+ * 检查合并后真正发给播放器的命令，以及正常流程里没有被拒绝的状态切换
+ */
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class BaseVideoViewTest {
+    private static final String URL = "http://test/video.mp4";
+
+    private CountingPlayer player;
+    private BaseVideoView view;
+
+    @Before
+    public void setUp() {
+        Context context = ApplicationProvider.getApplicationContext();
+        player = new CountingPlayer();
+        // 不在后台预创建真的播放器，池里只放计数的播放器
+        MediaPlayerPool pool = MediaPlayerPool.get(context);
+        pool.prewarm(0);
+        pool.evictAll();
+        pool.recycle(player);
+        view = new BaseVideoView(context);
+        view.addView(new FakeTextureView(context));
+        view.layout(0, 0, 640, 360);
+    }
+
+    @After
+    public void tearDown() {
+        view.releasePlayer();
+        MediaPlayerPool.get(ApplicationProvider.getApplicationContext()).evictAll();
+    }
+
+    @Test
+    public void resumePauseBurstWhilePreparingStartsOnceAfterSurfaceAndPrepare() {
+        view.setPath(URL, false);
+        // onResume、onPause、onResume
+        view.start();
+        view.pause();
+        view.start();
+        idleMainLooper();
+        assertEquals(1, player.prepareCount);
+        assertEquals(0, player.startCount);
+
+        // surface比prepare先到，只设置surface
+        view.onSurfaceTextureAvailable(new SurfaceTexture(0), 640, 360);
+        assertTrue(player.surface != null);
+        assertEquals(0, player.startCount);
+        player.firePrepared();
+
+        assertEquals(1, player.startCount);
+        assertEquals(0, player.stopCount);
+        assertTrue(view.isPlaying());
+        assertNoRejectedTransitions();
+    }
+
+    @Test
+    public void burstsWhilePlayingAreCoalesced() {
+        startPlaying();
+
+        view.pause();
+        view.start();
+        view.pause();
+        idleMainLooper();
+        assertEquals(1, player.stopCount);
+        assertFalse(view.isPlaying());
+
+        view.seek(1000);
+        view.seek(2000);
+        view.seek(3000);
+        idleMainLooper();
+        assertEquals(1, player.seekCount);
+        assertEquals(3000, player.lastSeekMs);
+
+        // 意图和当前相同，什么都不发
+        view.start();
+        view.pause();
+        idleMainLooper();
+        assertEquals(1, player.startCount);
+        assertEquals(1, player.stopCount);
+
+        view.seek(4000);
+        view.start();
+        idleMainLooper();
+        assertEquals(2, player.seekCount);
+        assertEquals(4000, player.lastSeekMs);
+        assertEquals(2, player.startCount);
+        assertTrue(view.isPlaying());
+        assertNoRejectedTransitions();
+    }
+
+    @Test
+    public void repeatedSetPathPreparesOnceAndResumesWhenPaused() {
+        view.setPath(URL, false);
+        view.setPath(URL, false);
+        view.setPath(URL, true);
+        assertEquals(1, player.prepareCount);
+        player.firePrepared();
+        view.onSurfaceTextureAvailable(new SurfaceTexture(0), 640, 360);
+        assertEquals(1, player.startCount);
+
+        view.pause();
+        idleMainLooper();
+        assertEquals(1, player.stopCount);
+        view.setPath(URL, true);
+        view.setPath(URL, true);
+
+        assertEquals(1, player.prepareCount);
+        assertEquals(2, player.startCount);
+        assertTrue(view.isPlaying());
+        assertNoRejectedTransitions();
+    }
+
+    private void startPlaying() {
+        view.setPath(URL, true);
+        player.firePrepared();
+        view.onSurfaceTextureAvailable(new SurfaceTexture(0), 640, 360);
+        assertEquals(1, player.startCount);
+        assertTrue(view.isPlaying());
+    }
+
+    private void assertNoRejectedTransitions() {
+        List<String> trace = view.getTransitionTrace();
+        assertTrue(trace.toString(), view.getCommandStats().endsWith("rejectedTransitions=0"));
+    }
+
+    private static void idleMainLooper() {
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+    /**
+     * onPrepared()里检查TextureView是否可用，Robolectric里的TextureView永远不可用
+     */
+    private static final class FakeTextureView extends TextureView {
+        FakeTextureView(Context context) {
+            super(context);
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+    }
+
+    private static final class CountingPlayer implements IMediaPlayer {
+        int prepareCount;
+        int startCount;
+        int stopCount;
+        int seekCount;
+        int lastSeekMs = -1;
+        Surface surface;
+        private OnPreparedListener preparedListener;
+
+        void firePrepared() {
+            preparedListener.onPrepared(this);
+        }
+
+        @Override
+        public void init() {
+        }
+
+        @Override
+        public void initAsync(OnInitializedListener listener) {
+            listener.onInitialized(this);
+        }
+
+        @Override
+        public void prepare(String url) {
+            prepareCount++;
+        }
+
+        @Override
+        public void setPlaylist(List<String> urls, int startIndex) {
+            prepareCount++;
+        }
+
+        @Override
+        public void next() {
+        }
+
+        @Override
+        public void previous() {
+        }
+
+        @Override
+        public void insert(int index, String url) {
+        }
+
+        @Override
+        public int getCurrentIndex() {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+            startCount++;
+        }
+
+        @Override
+        public void stop() {
+            stopCount++;
+        }
+
+        @Override
+        public void seek(int position) {
+            seekCount++;
+            lastSeekMs = position;
+        }
+
+        @Override
+        public void beginScrub() {
+        }
+
+        @Override
+        public void scrubTo(int position) {
+        }
+
+        @Override
+        public void endScrub(int position) {
+        }
+
+        @Override
+        public void setSpeed(float speed) {
+        }
+
+        @Override
+        public void setLoop(boolean isLoop) {
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public boolean isPlaying() {
+            return startCount > stopCount;
+        }
+
+        @Override
+        public int getCurrentPosition() {
+            return Math.max(lastSeekMs, 0);
+        }
+
+        @Override
+        public int getDuration() {
+            return 60_000;
+        }
+
+        @Override
+        public int getWidth() {
+            return 640;
+        }
+
+        @Override
+        public int getHeight() {
+            return 360;
+        }
+
+        @Override
+        public int getRotationDegrees() {
+            return 0;
+        }
+
+        @Override
+        public void setSurface(Surface surface) {
+            this.surface = surface;
+        }
+
+        @Override
+        public void setOnPreparedListener(OnPreparedListener listener) {
+            preparedListener = listener;
+        }
+
+        @Override
+        public void setOnErrorListener(OnErrorListener listener) {
+        }
+
+        @Override
+        public void setOnStartListener(OnStartListener listener) {
+        }
+
+        @Override
+        public void setOnRenderedFirstFrameListener(OnRenderedFirstFrameListener listener) {
+        }
+
+        @Override
+        public void setOnVideoSizeChangedListener(OnVideoSizeChangedListener listener) {
+        }
+
+        @Override
+        public void setOnPlaylistItemChangedListener(OnPlaylistItemChangedListener listener) {
+        }
+
+        @Override
+        public void setStartupTrace(StartupTrace trace) {
+        }
+
+        @Override
+        public long getBufferedBytes() {
+            return 0;
+        }
+
+        @Override
+        public void setMaxBufferBytes(int maxBytes) {
+        }
+
+        @Override
+        public void setVideoSizeLimit(int maxWidth, int maxHeight) {
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.exoplayer;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.database.ExoDatabaseProvider;
+import com.google.android.exoplayer2.upstream.ByteArrayDataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+import com.google.android.exoplayer2.upstream.cache.NoOpCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class CacheKeyAliasesTest {
+    private static final int CONTENT_LENGTH = 3 * CacheKeyAliases.FINGERPRINT_BYTES;
+    private static final String KEY_A = "http://a.example.com/video.mp4";
+    private static final String KEY_B = "http://b.example.com/video.mp4";
+
+    @Rule
+    public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private SimpleCache cache;
+    private CacheKeyAliases aliases;
+
+    @Before
+    public void setUp() throws IOException {
+        Context context = ApplicationProvider.getApplicationContext();
+        cache = new SimpleCache(tempFolder.newFolder("cache"), new NoOpCacheEvictor(),
+                new ExoDatabaseProvider(context));
+        aliases = new CacheKeyAliases(new File(tempFolder.getRoot(), "aliases"));
+    }
+
+    @After
+    public void tearDown() {
+        cache.release();
+    }
+
+    @Test
+    public void identicalContentIsMerged() throws IOException {
+        byte[] content = TestHttpContent.bytes(CONTENT_LENGTH);
+        write(KEY_A, content);
+        write(KEY_B, content);
+
+        aliases.deduplicate(cache);
+
+        Set<String> keys = cache.getKeys();
+        assertEquals(1, keys.size());
+        String keep = keys.iterator().next();
+        assertEquals(keep, aliases.resolve(KEY_A));
+        assertEquals(keep, aliases.resolve(KEY_B));
+        assertTrue(aliases.getStats(), aliases.getStats().contains("deduped=1"));
+    }
+
+    @Test
+    public void sameFingerprintWithDifferentTailIsKept() throws IOException {
+        byte[] content = TestHttpContent.bytes(CONTENT_LENGTH);
+        byte[] other = content.clone();
+        // 长度和开头都一样，只有指纹范围之后的一个字节不同
+        other[CONTENT_LENGTH - 1] ^= 1;
+        write(KEY_A, content);
+        write(KEY_B, other);
+
+        aliases.deduplicate(cache);
+
+        assertEquals(2, cache.getKeys().size());
+        assertEquals(KEY_A, aliases.resolve(KEY_A));
+        assertEquals(KEY_B, aliases.resolve(KEY_B));
+        assertTrue(aliases.getStats(), aliases.getStats().contains("deduped=0"));
+    }
+
+    @Test
+    public void keyBeingWrittenIsSkippedUntilReleased() throws Exception {
+        byte[] content = TestHttpContent.bytes(CONTENT_LENGTH);
+        write(KEY_A, content);
+        write(KEY_B, content);
+        // 模拟播放器正在往KEY_B写数据
+        CacheSpan lock = cache.startReadWriteNonBlocking(KEY_B, CONTENT_LENGTH);
+        assertNotNull(lock);
+
+        aliases.deduplicate(cache);
+        assertEquals(2, cache.getKeys().size());
+        assertEquals(KEY_B, aliases.resolve(KEY_B));
+
+        cache.releaseHoleSpan(lock);
+        aliases.deduplicate(cache);
+        assertEquals(1, cache.getKeys().size());
+    }
+
+    private void write(String key, byte[] content) throws IOException {
+        CacheDataSource dataSource = new CacheDataSource(cache, new ByteArrayDataSource(content));
+        dataSource.open(new DataSpec(Uri.parse(key), 0, C.LENGTH_UNSET, key));
+        TestHttpContent.readAll(dataSource, content.length);
+        dataSource.close();
+        assertTrue(cache.isCached(key, 0, content.length));
+    }
+}
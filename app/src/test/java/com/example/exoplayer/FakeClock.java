@@ -0,0 +1,47 @@
+package com.example.exoplayer;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.util.Clock;
+import com.google.android.exoplayer2.util.HandlerWrapper;
+
+/**
+ * 手动推进的时钟
+ */
+final class FakeClock implements Clock {
+    private long nowMs;
+
+    FakeClock(long nowMs) {
+        this.nowMs = nowMs;
+    }
+
+    void advance(long ms) {
+        nowMs += ms;
+    }
+
+    public long currentTimeMillis() {
+        return nowMs;
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        return nowMs;
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return nowMs;
+    }
+
+    public void sleep(long sleepTimeMs) {
+        nowMs += sleepTimeMs;
+    }
+
+    @Override
+    public HandlerWrapper createHandler(Looper looper, @Nullable Handler.Callback callback) {
+        return Clock.DEFAULT.createHandler(looper, callback);
+    }
+}
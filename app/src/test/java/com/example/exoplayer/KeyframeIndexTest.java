@@ -0,0 +1,191 @@
+package com.example.exoplayer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+public class KeyframeIndexTest {
+    private static final String KEY = "video";
+    private static final int TIMESCALE = 1000;
+
+    @Test
+    public void multipleStscRunsMapKeyframesToChunkOffsets() {
+        // 前两个chunk每个2帧，从第3个chunk开始每个4帧
+        byte[] stbl = box("stbl",
+                stts(4, 500, 4, 250),
+                stsz(0, 100, 10, 20, 30, 200, 40, 50, 60),
+                stsc(1, 2, 3, 4),
+                stco(1000, 5000, 9000),
+                stss(1, 4, 5, 7));
+
+        KeyframeIndex index = KeyframeIndex.parseMoov(KEY, moov(audioTrak(), videoTrak(stbl)));
+
+        assertNotNull(index);
+        assertKeyframes(index,
+                new long[]{0, 1_500_000, 2_000_000, 2_500_000},
+                new long[]{1000, 5000 + 20, 9000, 9000 + 200 + 40});
+    }
+
+    @Test
+    public void missingStssMeansEverySampleIsKeyframe() {
+        byte[] stbl = box("stbl",
+                stts(5, 400),
+                stsz(100, 5),
+                stsc(1, 3),
+                stco(2000, 8000));
+
+        KeyframeIndex index = KeyframeIndex.parseMoov(KEY, moov(videoTrak(stbl)));
+
+        assertNotNull(index);
+        assertKeyframes(index,
+                new long[]{0, 400_000, 800_000, 1_200_000, 1_600_000},
+                new long[]{2000, 2100, 2200, 8000, 8100});
+        assertEquals(2, index.floorIndex(1_000_000));
+    }
+
+    @Test
+    public void co64OffsetsBeyond4GbAreKept() {
+        long base = 5_000_000_000L;
+        byte[] stbl = box("stbl",
+                stts(4, 1000),
+                stsz(0, 300, 30, 300, 30),
+                stsc(1, 2),
+                co64(base, base + 1_000_000),
+                stss(1, 3));
+
+        KeyframeIndex index = KeyframeIndex.parseMoov(KEY, moov(videoTrak(stbl)));
+
+        assertNotNull(index);
+        assertKeyframes(index, new long[]{0, 2_000_000}, new long[]{base, base + 1_000_000});
+    }
+
+    @Test
+    public void moovWithoutVideoTrackReturnsNull() {
+        assertNull(KeyframeIndex.parseMoov(KEY, moov(audioTrak())));
+    }
+
+    private static void assertKeyframes(KeyframeIndex index, long[] timesUs, long[] offsets) {
+        assertEquals(timesUs.length, index.size());
+        for (int i = 0; i < timesUs.length; i++) {
+            assertEquals("time " + i, timesUs[i], index.getTimeUs(i));
+            assertEquals("offset " + i, offsets[i], index.getOffset(i));
+        }
+    }
+
+    /**
+     * parseMoov接收的是moov的内容，不带moov自己的header
+     */
+    private static byte[] moov(byte[]... traks) {
+        return concat(traks);
+    }
+
+    private static byte[] videoTrak(byte[] stbl) {
+        return trak("vide", stbl);
+    }
+
+    private static byte[] audioTrak() {
+        return trak("soun", box("stbl", stts(1, 1024), stsz(10, 1), stsc(1, 1), stco(100)));
+    }
+
+    private static byte[] trak(String handler, byte[] stbl) {
+        byte[] mdhd = fullBox("mdhd", 0, 0, TIMESCALE, 0, 0);
+        byte[] hdlr = box("hdlr", ints(0, 0, fourCc(handler), 0, 0, 0), new byte[]{0});
+        return box("trak", box("mdia", mdhd, hdlr, box("minf", stbl)));
+    }
+
+    /**
+     * @param entries 依次是每段的帧数和时长
+     */
+    private static byte[] stts(int... entries) {
+        return fullBox("stts", prepend(entries.length / 2, entries));
+    }
+
+    private static byte[] stsz(int fixedSize, int... sizesOrCount) {
+        if (fixedSize != 0) {
+            return fullBox("stsz", fixedSize, sizesOrCount[0]);
+        }
+        return fullBox("stsz", prepend(0, prepend(sizesOrCount.length, sizesOrCount)));
+    }
+
+    /**
+     * @param runs 依次是每段的first_chunk和samples_per_chunk
+     */
+    private static byte[] stsc(int... runs) {
+        int count = runs.length / 2;
+        int[] values = new int[1 + count * 3];
+        values[0] = count;
+        for (int i = 0; i < count; i++) {
+            values[1 + i * 3] = runs[i * 2];
+            values[2 + i * 3] = runs[i * 2 + 1];
+            values[3 + i * 3] = 1;
+        }
+        return fullBox("stsc", values);
+    }
+
+    private static byte[] stco(int... offsets) {
+        return fullBox("stco", prepend(offsets.length, offsets));
+    }
+
+    private static byte[] co64(long... offsets) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + offsets.length * 8);
+        buffer.putInt(0).putInt(offsets.length);
+        for (long offset : offsets) {
+            buffer.putLong(offset);
+        }
+        return box("co64", buffer.array());
+    }
+
+    private static byte[] stss(int... samples) {
+        return fullBox("stss", prepend(samples.length, samples));
+    }
+
+    /**
+     * version和flags都是0的full box
+     */
+    private static byte[] fullBox(String type, int... values) {
+        return box(type, ints(prepend(0, values)));
+    }
+
+    private static byte[] box(String type, byte[]... children) {
+        byte[] payload = concat(children);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+        buffer.putInt(8 + payload.length).putInt(fourCc(type)).put(payload);
+        return buffer.array();
+    }
+
+    private static byte[] ints(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+
+    private static int[] prepend(int first, int[] rest) {
+        int[] values = new int[rest.length + 1];
+        values[0] = first;
+        System.arraycopy(rest, 0, values, 1, rest.length);
+        return values;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            output.write(part, 0, part.length);
+        }
+        return output.toByteArray();
+    }
+
+    private static int fourCc(String type) {
+        return ByteBuffer.wrap(type.getBytes(StandardCharsets.US_ASCII)).getInt();
+    }
+}
@@ -0,0 +1,168 @@
+package com.example.exoplayer;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.database.ExoDatabaseProvider;
+import com.google.android.exoplayer2.ext.okhttp.OkHttpDataSourceFactory;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.upstream.cache.NoOpCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ParallelRangeDataSourceTest {
+    private static final int CONTENT_LENGTH = 4 * 1024 * 1024;
+    private static final long LATENCY_MS = 200;
+    /**
+     * ftyp和mdat头
+     */
+    private static final int HEADER_BYTES = 32 * 1024;
+    /**
+     * 跳回mdat后读到这么多数据就当作可以起播，跨过开头和第一段媒体数据的边界
+     */
+    private static final int READY_BYTES = 768 * 1024;
+
+    @Rule
+    public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private MockWebServer server;
+    private TestHttpContent.RangeDispatcher dispatcher;
+    private byte[] content;
+    private DataSource.Factory upstreamFactory;
+
+    @Before
+    public void setUp() throws IOException {
+        content = TestHttpContent.bytes(CONTENT_LENGTH);
+        server = new MockWebServer();
+        dispatcher = new TestHttpContent.RangeDispatcher(content);
+        server.setDispatcher(dispatcher);
+        server.start();
+        upstreamFactory = new OkHttpDataSourceFactory(new OkHttpClient(), "test");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void prefetchedBytesReachTransferListener() throws Exception {
+        ParallelRangeDataSource.Stash stash = new ParallelRangeDataSource.Stash(upstreamFactory, null);
+        ParallelRangeDataSource dataSource = new ParallelRangeDataSource(upstreamFactory, stash);
+        CountingListener listener = new CountingListener();
+        dataSource.addTransferListener(listener);
+
+        Uri uri = uri("/video.mp4");
+        assertEquals(CONTENT_LENGTH, dataSource.open(new DataSpec(uri)));
+        assertArrayEquals(content, TestHttpContent.readAll(dataSource, CONTENT_LENGTH));
+        dataSource.close();
+
+        // 开头、第一段媒体数据和结尾的预取，加上预取之后从网络读的部分
+        long expected = CONTENT_LENGTH + ParallelRangeDataSource.TAIL_BYTES;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (listener.bytes.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, listener.bytes.get());
+        assertTrue(server.getRequestCount() >= 4);
+    }
+
+    /**
+     * 按moov在末尾的MP4的读取顺序：读文件头，跳到末尾读moov，再跳回mdat开头读到能起播的数据量。
+     * 服务器每个请求都加上延迟，和现在关闭并行预取的路径比较起播耗时
+     */
+    @Test
+    public void parallelRangesReachReadyFasterWithLatency() throws Exception {
+        dispatcher.setHeadersDelayMs(LATENCY_MS);
+        Context context = ApplicationProvider.getApplicationContext();
+        UpstreamStack upstreamStack = new UpstreamStack(context, UpstreamStack.DEFAULT_CONNECT_TIMEOUT_MS,
+                UpstreamStack.DEFAULT_READ_TIMEOUT_MS, UpstreamStack.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        SimpleCache cache = new SimpleCache(tempFolder.newFolder("cache"), new NoOpCacheEvictor(),
+                new ExoDatabaseProvider(context));
+        DataSource.Factory factory = upstreamStack.getCacheDataSourceFactory(cache);
+
+        upstreamStack.setParallelRangeEnabled(false);
+        long serialMs = readLikeMp4Extractor(factory, uri("/serial.mp4"));
+        upstreamStack.setParallelRangeEnabled(true);
+        long parallelMs = readLikeMp4Extractor(factory, uri("/parallel.mp4"));
+        cache.release();
+
+        // 串行是三次往返，并行时结尾和开头的数据只差一次往返，跳回mdat后直接读内存
+        assertTrue("serial=" + serialMs + "ms, parallel=" + parallelMs + "ms",
+                parallelMs + LATENCY_MS / 2 < serialMs);
+    }
+
+    private long readLikeMp4Extractor(DataSource.Factory factory, Uri uri) throws IOException {
+        long startNs = System.nanoTime();
+        readRange(factory, uri, 0, HEADER_BYTES);
+        readRange(factory, uri, CONTENT_LENGTH - ParallelRangeDataSource.TAIL_BYTES,
+                ParallelRangeDataSource.TAIL_BYTES);
+        readRange(factory, uri, HEADER_BYTES, READY_BYTES);
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+    }
+
+    private void readRange(DataSource.Factory factory, Uri uri, long position, int length) throws IOException {
+        DataSource dataSource = factory.createDataSource();
+        try {
+            dataSource.open(new DataSpec(uri, position, C.LENGTH_UNSET, null));
+            byte[] data = TestHttpContent.readAll(dataSource, length);
+            byte[] expected = new byte[length];
+            System.arraycopy(content, (int) position, expected, 0, length);
+            assertArrayEquals(expected, data);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    private Uri uri(String path) {
+        return Uri.parse(server.url(path).toString());
+    }
+
+    private static final class CountingListener implements TransferListener {
+        final AtomicLong bytes = new AtomicLong();
+
+        @Override
+        public void onTransferInitializing(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+
+        }
+
+        @Override
+        public void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+
+        }
+
+        @Override
+        public void onBytesTransferred(DataSource source, DataSpec dataSpec, boolean isNetwork, int bytesTransferred) {
+            bytes.addAndGet(bytesTransferred);
+        }
+
+        @Override
+        public void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.exoplayer;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.android.exoplayer2.mediacodec.MediaCodecInfo;
+import com.google.android.exoplayer2.util.MimeTypes;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class PlaybackHintsTest {
+    private static final String MIME_TYPE = MimeTypes.VIDEO_H264;
+    private static final List<MediaCodecInfo> DECODERS = Arrays.asList(
+            decoder("c2.vendor.avc.decoder"), decoder("omx.vendor.avc.decoder"), decoder("c2.android.avc.decoder"));
+
+    @Rule
+    public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private Context context;
+    private File file;
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        file = new File(tempFolder.getRoot(), "playback-hints");
+    }
+
+    @Test
+    public void decoderIsDemotedOnlyAfterRepeatedFailures() {
+        PlaybackHints hints = newHints("1");
+        hints.orderDecoders(MIME_TYPE, DECODERS);
+
+        for (int i = 1; i < PlaybackHints.DEMOTE_FAILURE_COUNT; i++) {
+            hints.onDecoderInitFailed(MIME_TYPE, "c2.vendor.avc.decoder");
+            assertEquals(names(DECODERS), names(hints.orderDecoders(MIME_TYPE, DECODERS)));
+        }
+        hints.onDecoderInitFailed(MIME_TYPE, "c2.vendor.avc.decoder");
+
+        // 排到最后而不是去掉，别的都失败时还能再试
+        assertEquals(Arrays.asList("omx.vendor.avc.decoder", "c2.android.avc.decoder", "c2.vendor.avc.decoder"),
+                names(hints.orderDecoders(MIME_TYPE, DECODERS)));
+    }
+
+    @Test
+    public void successResetsFailureCount() {
+        PlaybackHints hints = newHints("1");
+        hints.orderDecoders(MIME_TYPE, DECODERS);
+        for (int i = 1; i < PlaybackHints.DEMOTE_FAILURE_COUNT; i++) {
+            hints.onDecoderInitFailed(MIME_TYPE, "c2.vendor.avc.decoder");
+        }
+        hints.onDecoderInitialized("c2.vendor.avc.decoder", 20);
+        hints.onDecoderInitFailed(MIME_TYPE, "c2.vendor.avc.decoder");
+
+        assertEquals(names(DECODERS), names(hints.orderDecoders(MIME_TYPE, DECODERS)));
+    }
+
+    @Test
+    public void preferredDecoderIsKeptForSameBuildAndDroppedAfterUpgrade() {
+        PlaybackHints hints = newHints("1");
+        hints.orderDecoders(MIME_TYPE, DECODERS);
+        hints.onDecoderInitialized("c2.android.avc.decoder", 20);
+        for (int i = 0; i < PlaybackHints.DEMOTE_FAILURE_COUNT; i++) {
+            hints.onDecoderInitFailed(MIME_TYPE, "c2.vendor.avc.decoder");
+        }
+        hints.save();
+        List<String> expected = Arrays.asList(
+                "c2.android.avc.decoder", "omx.vendor.avc.decoder", "c2.vendor.avc.decoder");
+        assertEquals(expected, names(hints.orderDecoders(MIME_TYPE, DECODERS)));
+
+        assertEquals(expected, names(newHints("1").orderDecoders(MIME_TYPE, DECODERS)));
+        // 应用或系统升级后解码器的问题可能已经修好，按默认顺序重新来
+        assertEquals(names(DECODERS), names(newHints("2").orderDecoders(MIME_TYPE, DECODERS)));
+    }
+
+    private PlaybackHints newHints(String buildId) {
+        PlaybackHints hints = new PlaybackHints(context, file, buildId);
+        hints.awaitLoaded(5000);
+        return hints;
+    }
+
+    private static List<String> names(List<MediaCodecInfo> infos) {
+        ArrayList<String> names = new ArrayList<>(infos.size());
+        for (MediaCodecInfo info : infos) {
+            names.add(info.name);
+        }
+        return names;
+    }
+
+    private static MediaCodecInfo decoder(String name) {
+        return MediaCodecInfo.newInstance(name, MIME_TYPE, MIME_TYPE, null,
+                true, false, true, false, false);
+    }
+}
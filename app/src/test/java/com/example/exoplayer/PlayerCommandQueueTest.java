@@ -0,0 +1,173 @@
+package com.example.exoplayer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PlayerCommandQueueTest {
+    private FakeTarget target;
+    private ManualExecutor executor;
+    private PlayerCommandQueue queue;
+
+    @Before
+    public void setUp() {
+        target = new FakeTarget();
+        executor = new ManualExecutor();
+        queue = new PlayerCommandQueue(target, executor);
+    }
+
+    @Test
+    public void startPauseStartBurstIssuesOneStart() {
+        queue.start();
+        queue.pause();
+        queue.start();
+        executor.runAll();
+
+        assertEquals(1, target.startCount);
+        assertEquals(0, target.pauseCount);
+        assertEquals(1, queue.getIssuedCount());
+    }
+
+    @Test
+    public void burstEndingInCurrentIntentIssuesNothing() {
+        target.playRequested = true;
+        queue.pause();
+        queue.start();
+        executor.runAll();
+
+        assertEquals(0, target.startCount);
+        assertEquals(0, target.pauseCount);
+        assertEquals(0, queue.getIssuedCount());
+    }
+
+    @Test
+    public void seeksThenStartIssueLastSeekBeforeStart() {
+        queue.seek(1000);
+        queue.seek(2000);
+        queue.seek(3000);
+        queue.start();
+        executor.runAll();
+
+        assertEquals(1, target.seekCount);
+        assertEquals(1, target.startCount);
+        assertEquals("seek 3000", target.calls.get(0));
+        assertEquals("start", target.calls.get(1));
+    }
+
+    @Test
+    public void clearMidBurstDropsPendingCommands() {
+        queue.seek(1000);
+        queue.start();
+        queue.clear();
+        executor.runAll();
+
+        assertEquals(0, target.seekCount);
+        assertEquals(0, target.startCount);
+
+        queue.pause();
+        target.playRequested = true;
+        executor.runAll();
+        assertEquals(1, target.pauseCount);
+    }
+
+    @Test
+    public void drainIsScheduledOncePerBurst() {
+        queue.start();
+        queue.seek(500);
+        queue.pause();
+        assertEquals(1, executor.pending.size());
+        executor.runAll();
+
+        queue.start();
+        assertEquals(1, executor.pending.size());
+    }
+
+    @Test
+    public void validTransitions() {
+        assertTrue(PlayerCommandQueue.isValidTransition(BaseVideoView.STATE_IDLE, BaseVideoView.STATE_PREPARING));
+        assertTrue(PlayerCommandQueue.isValidTransition(BaseVideoView.STATE_PREPARING, BaseVideoView.STATE_PREPARED));
+        assertTrue(PlayerCommandQueue.isValidTransition(BaseVideoView.STATE_IDLE, BaseVideoView.STATE_PREPARED));
+        assertTrue(PlayerCommandQueue.isValidTransition(BaseVideoView.STATE_PREPARED,
+                BaseVideoView.STATE_TEXTURE_AVAILABLE));
+        assertTrue(PlayerCommandQueue.isValidTransition(BaseVideoView.STATE_TEXTURE_AVAILABLE,
+                BaseVideoView.STATE_PLAYING));
+        assertTrue(PlayerCommandQueue.isValidTransition(BaseVideoView.STATE_PLAYING, BaseVideoView.STATE_PAUSED));
+        assertTrue(PlayerCommandQueue.isValidTransition(BaseVideoView.STATE_PAUSED, BaseVideoView.STATE_PLAYING));
+        assertTrue(PlayerCommandQueue.isValidTransition(BaseVideoView.STATE_PLAYING, BaseVideoView.STATE_ERROR));
+        assertTrue(PlayerCommandQueue.isValidTransition(BaseVideoView.STATE_PAUSED, BaseVideoView.STATE_IDLE));
+        assertTrue(PlayerCommandQueue.isValidTransition(BaseVideoView.STATE_PLAYING, BaseVideoView.STATE_PLAYING));
+    }
+
+    @Test
+    public void invalidTransitions() {
+        assertFalse(PlayerCommandQueue.isValidTransition(BaseVideoView.STATE_IDLE, BaseVideoView.STATE_PLAYING));
+        assertFalse(PlayerCommandQueue.isValidTransition(BaseVideoView.STATE_PREPARING, BaseVideoView.STATE_PLAYING));
+        assertFalse(PlayerCommandQueue.isValidTransition(BaseVideoView.STATE_IDLE,
+                BaseVideoView.STATE_TEXTURE_AVAILABLE));
+        assertFalse(PlayerCommandQueue.isValidTransition(BaseVideoView.STATE_IDLE, BaseVideoView.STATE_PAUSED));
+        assertFalse(PlayerCommandQueue.isValidTransition(BaseVideoView.STATE_ERROR, BaseVideoView.STATE_PLAYING));
+        assertFalse(PlayerCommandQueue.isValidTransition(BaseVideoView.STATE_IDLE, 42));
+    }
+
+    @Test
+    public void rejectedTransitionIsTraced() {
+        assertFalse(queue.onTransition(BaseVideoView.STATE_IDLE, BaseVideoView.STATE_PLAYING, "test"));
+        assertTrue(queue.getTrace().get(0).endsWith("IDLE->PLAYING (test) rejected"));
+        assertTrue(queue.getStats().contains("rejectedTransitions=1"));
+    }
+
+    private static final class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            pending.add(command);
+        }
+
+        void runAll() {
+            while (!pending.isEmpty()) {
+                pending.poll().run();
+            }
+        }
+    }
+
+    private static final class FakeTarget implements PlayerCommandQueue.Target {
+        final ArrayList<String> calls = new ArrayList<>();
+        boolean playRequested;
+        int startCount;
+        int pauseCount;
+        int seekCount;
+
+        @Override
+        public boolean isPlayRequested() {
+            return playRequested;
+        }
+
+        @Override
+        public void performStart() {
+            startCount++;
+            playRequested = true;
+            calls.add("start");
+        }
+
+        @Override
+        public void performPause() {
+            pauseCount++;
+            playRequested = false;
+            calls.add("pause");
+        }
+
+        @Override
+        public void performSeek(int positionMs) {
+            seekCount++;
+            calls.add("seek " + positionMs);
+        }
+    }
+}
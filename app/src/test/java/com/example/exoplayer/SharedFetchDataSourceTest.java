@@ -0,0 +1,152 @@
+package com.example.exoplayer;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.android.exoplayer2.database.ExoDatabaseProvider;
+import com.google.android.exoplayer2.ext.okhttp.OkHttpDataSourceFactory;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.NoOpCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class SharedFetchDataSourceTest {
+    private static final int CONTENT_LENGTH = 2 * 1024 * 1024;
+    /**
+     * 读到这么多数据就当作播放器可以起播
+     */
+    private static final int READY_BYTES = 512 * 1024;
+    private static final long BYTES_PER_SECOND = 1024 * 1024;
+
+    @Rule
+    public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private byte[] content;
+    private MockWebServer server;
+    private TestHttpContent.RangeDispatcher dispatcher;
+
+    @Before
+    public void setUp() throws IOException {
+        content = TestHttpContent.bytes(CONTENT_LENGTH);
+        dispatcher = new TestHttpContent.RangeDispatcher(content);
+        server = new MockWebServer();
+        server.setDispatcher(dispatcher);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void twoPlayersOfOneUrlShareOneUpstreamRequest() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        UpstreamStack upstreamStack = new UpstreamStack(context, UpstreamStack.DEFAULT_CONNECT_TIMEOUT_MS,
+                UpstreamStack.DEFAULT_READ_TIMEOUT_MS, UpstreamStack.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        upstreamStack.setParallelRangeEnabled(false);
+        SimpleCache cache = new SimpleCache(tempFolder.newFolder("cache"), new NoOpCacheEvictor(),
+                new ExoDatabaseProvider(context));
+        DataSource.Factory factory = upstreamStack.getCacheDataSourceFactory(cache);
+        dispatcher.setBytesPerSecond(BYTES_PER_SECOND);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        CountDownLatch startSignal = new CountDownLatch(1);
+        Uri uri = uri("/shared.mp4");
+        Future<byte[]> first = executor.submit(() -> readToReady(factory, uri, startSignal));
+        Future<byte[]> second = executor.submit(() -> readToReady(factory, uri, startSignal));
+        startSignal.countDown();
+        byte[] expected = new byte[READY_BYTES];
+        System.arraycopy(content, 0, expected, 0, READY_BYTES);
+        assertArrayEquals(expected, first.get(10, TimeUnit.SECONDS));
+        assertArrayEquals(expected, second.get(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        cache.release();
+
+        // 第二个读者加入第一个的下载，不用等缓存锁也不会再发请求
+        assertEquals(1, dispatcher.getRequestCount("/shared.mp4"));
+    }
+
+    @Test
+    public void readerJoiningStoppingFetchReadsToEnd() throws IOException {
+        DataSource.Factory upstreamFactory = new OkHttpDataSourceFactory(new OkHttpClient(), "test");
+        SharedFetchDataSource.Registry registry = new SharedFetchDataSource.Registry();
+        Uri uri = uri("/race.mp4");
+        byte[] buffer = new byte[4096];
+        for (int i = 0; i < 20; i++) {
+            // 前一个读者关闭的同时下一个读者打开，可能加入正在停止的下载
+            SharedFetchDataSource previous = new SharedFetchDataSource(upstreamFactory, registry);
+            previous.open(new DataSpec(uri));
+            previous.read(buffer, 0, buffer.length);
+            previous.close();
+
+            SharedFetchDataSource next = new SharedFetchDataSource(upstreamFactory, registry);
+            next.open(new DataSpec(uri));
+            byte[] data = TestHttpContent.readAll(next, CONTENT_LENGTH);
+            next.close();
+            assertArrayEquals("iteration " + i, content, data);
+        }
+    }
+
+    @Test
+    public void readersBeyondFetchLimitReadDirectly() throws IOException {
+        DataSource.Factory upstreamFactory = new OkHttpDataSourceFactory(new OkHttpClient(), "test");
+        SharedFetchDataSource.Registry registry = new SharedFetchDataSource.Registry();
+        int readerCount = SharedFetchDataSource.MAX_FETCHES + 2;
+        ArrayList<SharedFetchDataSource> dataSources = new ArrayList<>();
+        for (int i = 0; i < readerCount; i++) {
+            SharedFetchDataSource dataSource = new SharedFetchDataSource(upstreamFactory, registry);
+            dataSource.open(new DataSpec(uri("/video-" + i + ".mp4")));
+            dataSources.add(dataSource);
+        }
+        for (SharedFetchDataSource dataSource : dataSources) {
+            assertArrayEquals(content, TestHttpContent.readAll(dataSource, CONTENT_LENGTH));
+            dataSource.close();
+        }
+
+        String stats = registry.getStats();
+        assertTrue(stats, stats.contains("started=" + SharedFetchDataSource.MAX_FETCHES + ", joined=0, rejected=2"));
+    }
+
+    private static byte[] readToReady(DataSource.Factory factory, Uri uri, CountDownLatch startSignal)
+            throws Exception {
+        startSignal.await();
+        DataSource dataSource = factory.createDataSource();
+        try {
+            dataSource.open(new DataSpec(uri));
+            return TestHttpContent.readAll(dataSource, READY_BYTES);
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    private Uri uri(String path) {
+        return Uri.parse(server.url(path).toString());
+    }
+}
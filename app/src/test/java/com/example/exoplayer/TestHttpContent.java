@@ -0,0 +1,155 @@
+package com.example.exoplayer;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * 测试用的视频内容，以及支持Range请求的本地HTTP服务
+ */
+final class TestHttpContent {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private TestHttpContent() {
+    }
+
+    static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + (i >> 8));
+        }
+        return data;
+    }
+
+    /**
+     * 一直读到结束，最多读maxLength字节
+     */
+    static byte[] readAll(DataSource dataSource, int maxLength) throws IOException {
+        byte[] data = new byte[maxLength];
+        int filled = 0;
+        while (filled < maxLength) {
+            int read = dataSource.read(data, filled, maxLength - filled);
+            if (read == C.RESULT_END_OF_INPUT) {
+                break;
+            }
+            filled += read;
+        }
+        if (filled == maxLength) {
+            return data;
+        }
+        byte[] result = new byte[filled];
+        System.arraycopy(data, 0, result, 0, filled);
+        return result;
+    }
+
+    /**
+     * 按Range头返回内容的一部分，可以设置每次响应的限速
+     */
+    static final class RangeDispatcher extends Dispatcher {
+        private final byte[] content;
+        private final ConcurrentHashMap<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+        private volatile long bytesPerSecond;
+        private volatile long headersDelayMs;
+        private final AtomicInteger pendingResponses = new AtomicInteger();
+        private final AtomicInteger maxPendingResponses = new AtomicInteger();
+
+        RangeDispatcher(byte[] content) {
+            this.content = content;
+        }
+
+        /**
+         * @param bytesPerSecond 0表示不限速
+         */
+        void setBytesPerSecond(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        /**
+         * 每个请求过这么久才返回响应头，模拟网络延迟
+         */
+        void setHeadersDelayMs(long headersDelayMs) {
+            this.headersDelayMs = headersDelayMs;
+        }
+
+        /**
+         * @return 同时在等待响应头的请求数的最大值
+         */
+        int getMaxPendingResponses() {
+            return maxPendingResponses.get();
+        }
+
+        /**
+         * @return 某个路径收到的请求数
+         */
+        int getRequestCount(String path) {
+            AtomicInteger count = requestCounts.get(path);
+            return count == null ? 0 : count.get();
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            int pending = pendingResponses.incrementAndGet();
+            int max;
+            do {
+                max = maxPendingResponses.get();
+            } while (pending > max && !maxPendingResponses.compareAndSet(max, pending));
+            try {
+                long delayMs = headersDelayMs;
+                if (delayMs > 0) {
+                    Thread.sleep(delayMs);
+                }
+                return respond(request);
+            } finally {
+                pendingResponses.decrementAndGet();
+            }
+        }
+
+        private MockResponse respond(RecordedRequest request) {
+            AtomicInteger count = requestCounts.get(request.getPath());
+            if (count == null) {
+                requestCounts.putIfAbsent(request.getPath(), new AtomicInteger());
+                count = requestCounts.get(request.getPath());
+            }
+            count.incrementAndGet();
+            int start = 0;
+            int end = content.length - 1;
+            String range = request.getHeader("Range");
+            MockResponse response = new MockResponse();
+            if (range != null) {
+                Matcher matcher = RANGE.matcher(range);
+                if (!matcher.matches()) {
+                    return response.setResponseCode(416);
+                }
+                start = Integer.parseInt(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) {
+                    end = Math.min(end, Integer.parseInt(matcher.group(2)));
+                }
+                if (start > end) {
+                    return response.setResponseCode(416)
+                            .setHeader("Content-Range", "bytes */" + content.length);
+                }
+                response.setResponseCode(206)
+                        .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+            }
+            response.setHeader("Accept-Ranges", "bytes")
+                    .setBody(new Buffer().write(content, start, end - start + 1));
+            long limit = bytesPerSecond;
+            if (limit > 0) {
+                // 每100ms发送limit/10字节
+                response.throttleBody(Math.max(1, limit / 10), 100, TimeUnit.MILLISECONDS);
+            }
+            return response;
+        }
+    }
+}
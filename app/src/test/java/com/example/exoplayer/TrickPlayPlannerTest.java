@@ -0,0 +1,96 @@
+package com.example.exoplayer;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.SeekParameters;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 模拟10秒的快进快退：每200ms一帧，关键帧间隔2秒，播放器按seek参数把位置解析到关键帧。
+ * 每次seek都要从关键帧解码一帧，seek次数就是解码器的负载。
+ * 以前每帧都用CLOSEST_SYNC seek，10秒固定解码50次；现在只在越过新的关键帧时解码
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TrickPlayPlannerTest {
+    private static final long KEYFRAME_INTERVAL_MS = 2000;
+    private static final long DURATION_MS = 600_000;
+    private static final long TICK_MS = 200;
+    private static final int TICKS = 50;
+    private static final long FORWARD_START_MS = 10_000;
+    private static final long REWIND_START_MS = 590_000;
+
+    @Test
+    public void decodesOncePerKeyframeCrossed() {
+        float[] speeds = {4, 8, 16, -4, -8, -16};
+        // 4倍速和8倍速每帧走不到一个关键帧间隔，16倍速每帧都有新的关键帧
+        int[] expectedDecodes = {21, 41, 50, 21, 41, 50};
+        for (int i = 0; i < speeds.length; i++) {
+            assertEquals("speed " + speeds[i] + " without index", expectedDecodes[i], simulate(speeds[i], false));
+            assertEquals("speed " + speeds[i] + " with index", expectedDecodes[i], simulate(speeds[i], true));
+        }
+    }
+
+    @Test
+    public void seekParametersFollowDirection() {
+        TrickPlayPlanner planner = new TrickPlayPlanner();
+        planner.start(-4);
+        assertEquals(SeekParameters.PREVIOUS_SYNC, planner.getSeekParameters());
+        planner.setSpeed(8);
+        assertEquals(SeekParameters.NEXT_SYNC, planner.getSeekParameters());
+    }
+
+    /**
+     * @return 解码的关键帧数，同时检查显示的位置只朝一个方向走
+     */
+    private static int simulate(float speed, boolean withIndex) {
+        TrickPlayPlanner planner = new TrickPlayPlanner();
+        planner.start(speed);
+        KeyframeIndex index = withIndex ? keyframeIndex() : null;
+        long startMs = speed > 0 ? FORWARD_START_MS : REWIND_START_MS;
+        long lastShownMs = C.TIME_UNSET;
+        for (int tick = 0; tick < TICKS; tick++) {
+            long targetMs = startMs + (long) (tick * TICK_MS * speed);
+            long seekMs = planner.nextSeekPositionMs(targetMs, index);
+            if (seekMs == C.TIME_UNSET) {
+                continue;
+            }
+            long shownMs = resolve(seekMs, planner.getSeekParameters());
+            planner.onKeyframeShown(shownMs);
+            assertEquals(0, shownMs % KEYFRAME_INTERVAL_MS);
+            if (lastShownMs != C.TIME_UNSET) {
+                assertTrue("shown " + shownMs + " after " + lastShownMs,
+                        speed > 0 ? shownMs > lastShownMs : shownMs < lastShownMs);
+            }
+            lastShownMs = shownMs;
+        }
+        assertEquals(TICKS, planner.getSeekCount() + planner.getSameKeyframeCount());
+        return planner.getSeekCount();
+    }
+
+    /**
+     * 和播放器一样按seek参数把位置解析到前一个或后一个关键帧
+     */
+    private static long resolve(long positionMs, SeekParameters seekParameters) {
+        long previous = positionMs / KEYFRAME_INTERVAL_MS * KEYFRAME_INTERVAL_MS;
+        if (seekParameters.equals(SeekParameters.PREVIOUS_SYNC) || previous == positionMs) {
+            return previous;
+        }
+        return Math.min(previous + KEYFRAME_INTERVAL_MS, DURATION_MS);
+    }
+
+    private static KeyframeIndex keyframeIndex() {
+        int count = (int) (DURATION_MS / KEYFRAME_INTERVAL_MS);
+        long[] timesUs = new long[count];
+        long[] offsets = new long[count];
+        for (int i = 0; i < count; i++) {
+            timesUs[i] = C.msToUs(i * KEYFRAME_INTERVAL_MS);
+            offsets[i] = i * 100_000L;
+        }
+        return new KeyframeIndex("video", timesUs, offsets);
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.exoplayer;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class UpstreamStackTest {
+    private static final int BODY_BYTES = 256 * 1024;
+
+    private MockWebServer server;
+    private UpstreamStack upstreamStack;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        Context context = ApplicationProvider.getApplicationContext();
+        // 每个host只允许一个建立中的请求
+        upstreamStack = new UpstreamStack(context, UpstreamStack.DEFAULT_CONNECT_TIMEOUT_MS,
+                UpstreamStack.DEFAULT_READ_TIMEOUT_MS, 1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void responseBytesCountedBeforeBodyEnds() throws IOException {
+        server.enqueue(new MockResponse().setBody(new Buffer().write(new byte[BODY_BYTES])));
+        DataSource dataSource = upstreamStack.getUpstreamFactory().createDataSource();
+        dataSource.open(new DataSpec(uri("/a.mp4")));
+        byte[] buffer = new byte[4096];
+        int read = dataSource.read(buffer, 0, buffer.length);
+
+        assertTrue(read > 0);
+        assertEquals(read, upstreamStack.getResponseBytes());
+        dataSource.close();
+    }
+
+    @Test
+    public void openDoesNotWaitForLongLivedConnection() throws Exception {
+        server.setDispatcher(new TestHttpContent.RangeDispatcher(TestHttpContent.bytes(BODY_BYTES)));
+        DataSource playing = upstreamStack.getUpstreamFactory().createDataSource();
+        playing.open(new DataSpec(uri("/playing.mp4")));
+        playing.read(new byte[4096], 0, 4096);
+
+        // 正在播放的连接不占名额，不会一直等下去
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        DataSource next = upstreamStack.getUpstreamFactory().createDataSource();
+        Future<Long> opened = executor.submit(() -> next.open(new DataSpec(uri("/next.mp4"))));
+        assertEquals(BODY_BYTES, (long) opened.get(5, TimeUnit.SECONDS));
+        executor.shutdown();
+        next.close();
+        playing.close();
+    }
+
+    @Test
+    public void concurrentOpensAreCappedPerHost() throws Exception {
+        TestHttpContent.RangeDispatcher dispatcher = new TestHttpContent.RangeDispatcher(
+                TestHttpContent.bytes(BODY_BYTES));
+        dispatcher.setHeadersDelayMs(100);
+        server.setDispatcher(dispatcher);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        ArrayList<Future<DataSource>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Uri uri = uri("/video-" + i + ".mp4");
+            futures.add(executor.submit(() -> {
+                DataSource dataSource = upstreamStack.getUpstreamFactory().createDataSource();
+                dataSource.open(new DataSpec(uri));
+                return dataSource;
+            }));
+        }
+        for (Future<DataSource> future : futures) {
+            future.get(5, TimeUnit.SECONDS).close();
+        }
+        executor.shutdown();
+
+        assertEquals(1, dispatcher.getMaxPendingResponses());
+    }
+
+    @Test
+    public void sequentialRequestsReuseConnectionAndRecordTtfb() throws IOException {
+        TestHttpContent.RangeDispatcher dispatcher = new TestHttpContent.RangeDispatcher(
+                TestHttpContent.bytes(BODY_BYTES));
+        dispatcher.setHeadersDelayMs(100);
+        server.setDispatcher(dispatcher);
+        for (int i = 0; i < 2; i++) {
+            DataSource dataSource = upstreamStack.getUpstreamFactory().createDataSource();
+            dataSource.open(new DataSpec(uri("/video-" + i + ".mp4")));
+            // 读到结尾，连接才会回到连接池
+            assertEquals(BODY_BYTES, TestHttpContent.readAll(dataSource, BODY_BYTES + 1).length);
+            dataSource.close();
+        }
+
+        String metrics = upstreamStack.getMetrics();
+        assertTrue(metrics, metrics.contains("requests=2, newConnections=1, reusedConnections=1"));
+        Matcher matcher = Pattern.compile("maxTtfbMs=(\\d+)").matcher(metrics);
+        assertTrue(metrics, matcher.find());
+        assertTrue(metrics, Long.parseLong(matcher.group(1)) >= 100);
+    }
+
+    private Uri uri(String path) {
+        return Uri.parse(server.url(path).toString());
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.exoplayer;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ext.okhttp.OkHttpDataSourceFactory;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class VideoDownloadManagerTest {
+    private static final int CONTENT_LENGTH = 3 * 1024 * 1024;
+
+    @Rule
+    public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private Context context;
+    private byte[] content;
+    private MockWebServer server;
+    private DataSource.Factory upstreamFactory;
+
+    @Before
+    public void setUp() throws Exception {
+        context = ApplicationProvider.getApplicationContext();
+        VideoCache.resetForTest();
+        File[] files = context.getExternalCacheDir().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteRecursively(file);
+            }
+        }
+        content = TestHttpContent.bytes(CONTENT_LENGTH);
+        server = new MockWebServer();
+        server.setDispatcher(new TestHttpContent.RangeDispatcher(content));
+        server.start();
+        upstreamFactory = new OkHttpDataSourceFactory(new OkHttpClient(), "test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        VideoCache.resetForTest();
+        server.shutdown();
+    }
+
+    @Test
+    public void pinnedDownloadSurvivesRestartAndEviction() throws Exception {
+        String url = server.url("/offline.mp4").toString();
+        VideoDownloadManager manager = newManager();
+        manager.add(url);
+        awaitState(manager, url, VideoDownloadManager.STATE_COMPLETED);
+        String key = VideoCache.buildCacheKey(Uri.parse(url));
+
+        VideoCache.resetForTest();
+        assertFalse(VideoCache.isPinned(key));
+        // 重启后还没有创建下载管理器，固定已经随缓存一起恢复
+        SimpleCache cache = VideoCache.getCache(context);
+        assertTrue(VideoCache.isPinned(key));
+
+        long written = fillCache(cache, VideoCache.MAX_CACHE_SIZE + 2 * CONTENT_LENGTH);
+        assertTrue("cacheSpace=" + cache.getCacheSpace(), cache.getCacheSpace() < written + CONTENT_LENGTH);
+        assertTrue(VideoCache.isFullyCached(cache, key));
+
+        DataSource offline = VideoCache.getOfflineFactory(cache).createDataSource();
+        offline.open(new DataSpec(Uri.parse(url), 0, CONTENT_LENGTH, key));
+        assertArrayEquals(content, TestHttpContent.readAll(offline, CONTENT_LENGTH));
+        offline.close();
+    }
+
+    @Test
+    public void restartRestoresQueueAndRemovalUnpins() throws Exception {
+        String url = server.url("/removed.mp4").toString();
+        VideoDownloadManager manager = newManager();
+        manager.add(url);
+        awaitState(manager, url, VideoDownloadManager.STATE_COMPLETED);
+        String key = VideoCache.buildCacheKey(Uri.parse(url));
+
+        VideoCache.resetForTest();
+        VideoDownloadManager restarted = newManager();
+        awaitState(restarted, url, VideoDownloadManager.STATE_COMPLETED);
+        assertTrue(VideoCache.isPinned(key));
+        restarted.remove(url, false);
+
+        VideoCache.resetForTest();
+        VideoCache.getCache(context);
+        assertFalse(VideoCache.isPinned(key));
+    }
+
+    private VideoDownloadManager newManager() {
+        VideoDownloadManager manager = new VideoDownloadManager(context, upstreamFactory,
+                new File(tempFolder.getRoot(), "downloads"));
+        manager.setRequireNetwork(false);
+        return manager;
+    }
+
+    /**
+     * 写入别的视频，直到总量超过bytes，让淘汰器开始淘汰
+     *
+     * @return 写入的字节数
+     */
+    private long fillCache(SimpleCache cache, long bytes) throws IOException {
+        long written = 0;
+        for (int i = 0; written < bytes; i++) {
+            Uri uri = Uri.parse(server.url("/filler-" + i + ".mp4").toString());
+            DataSource dataSource = VideoCache.createDataSource(cache, upstreamFactory.createDataSource(), 0);
+            dataSource.open(new DataSpec(uri, 0, C.LENGTH_UNSET, VideoCache.buildCacheKey(uri)));
+            written += TestHttpContent.readAll(dataSource, CONTENT_LENGTH).length;
+            dataSource.close();
+        }
+        return written;
+    }
+
+    private static void awaitState(VideoDownloadManager manager, String url, int state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (manager.getState(url) != state && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(state, manager.getState(url));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
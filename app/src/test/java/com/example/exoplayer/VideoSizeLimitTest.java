@@ -0,0 +1,153 @@
+package com.example.exoplayer;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.RendererCapabilities;
+import com.google.android.exoplayer2.Timeline;
+import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.source.TrackGroup;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
+import com.google.android.exoplayer2.trackselection.TrackSelection;
+import com.google.android.exoplayer2.trackselection.TrackSelectorResult;
+import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
+import com.google.android.exoplayer2.util.MimeTypes;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class VideoSizeLimitTest {
+    private static final Format FORMAT_1080P = videoFormat("1080p", 1920, 1080, 5_000_000);
+    private static final Format FORMAT_720P = videoFormat("720p", 1280, 720, 2_500_000);
+    private static final Format FORMAT_360P = videoFormat("360p", 640, 360, 800_000);
+
+    private DefaultTrackSelector trackSelector;
+
+    @Before
+    public void setUp() {
+        Context context = ApplicationProvider.getApplicationContext();
+        trackSelector = new DefaultTrackSelector(context);
+        trackSelector.init(() -> {
+        }, new DefaultBandwidthMeter.Builder(context).build());
+    }
+
+    @Test
+    public void limitToViewSizeLowersSelectableBitrateAndPixels() throws Exception {
+        TrackSelection unlimited = selectVideo(0, 0);
+        // 1024x576的view，按1.25倍过采样
+        TrackSelection limited = selectVideo(1280, 720);
+
+        assertEquals(3, unlimited.length());
+        assertEquals(2, limited.length());
+        assertEquals(FORMAT_1080P.bitrate, maxBitrate(unlimited));
+        assertEquals(FORMAT_720P.bitrate, maxBitrate(limited));
+        assertEquals(1920 * 1080, maxPixels(unlimited));
+        assertEquals(1280 * 720, maxPixels(limited));
+    }
+
+    @Test
+    public void limitBelowSmallestTrackStillSelectsSmallest() throws Exception {
+        TrackSelection limited = selectVideo(320, 180);
+
+        assertEquals(1, limited.length());
+        assertEquals(FORMAT_360P, limited.getFormat(0));
+    }
+
+    /**
+     * 只检查dump的格式和按是否限制分开汇总，会话里的数字是构造的，不代表实际效果
+     */
+    @Test
+    public void dumpGroupsSessionsBySizeLimit() {
+        PlaybackMetrics metrics = new PlaybackMetrics();
+        metrics.onSessionEnd(session(false, 1920, 1080, 37_500_000));
+        metrics.onSessionEnd(session(true, 1280, 720, 18_750_000));
+        metrics.onSessionEnd(session(true, 640, 360, 6_250_000));
+
+        String dump = metrics.dump();
+        assertTrue(dump, dump.contains("videoSizeLimit off: sessions=1 bytesPerMin=37500000 avgDecodedPixels=2073600"));
+        assertTrue(dump, dump.contains("videoSizeLimit on: sessions=2 bytesPerMin=12500000 avgDecodedPixels=576000"));
+    }
+
+    private TrackSelection selectVideo(int maxWidth, int maxHeight) throws Exception {
+        DefaultTrackSelector.ParametersBuilder builder = trackSelector.buildUponParameters();
+        MediaPlayerExo.applyVideoSizeLimit(builder, maxWidth, maxHeight);
+        trackSelector.setParameters(builder);
+        TrackGroupArray trackGroups = new TrackGroupArray(new TrackGroup(FORMAT_1080P, FORMAT_720P, FORMAT_360P));
+        TrackSelectorResult result = trackSelector.selectTracks(
+                new RendererCapabilities[]{new VideoRendererCapabilities()}, trackGroups,
+                new MediaSource.MediaPeriodId(new Object()), Timeline.EMPTY);
+        TrackSelection selection = result.selections.get(0);
+        assertTrue(selection != null);
+        return selection;
+    }
+
+    private static int maxBitrate(TrackSelection selection) {
+        int max = 0;
+        for (int i = 0; i < selection.length(); i++) {
+            max = Math.max(max, selection.getFormat(i).bitrate);
+        }
+        return max;
+    }
+
+    private static int maxPixels(TrackSelection selection) {
+        int max = 0;
+        for (int i = 0; i < selection.length(); i++) {
+            Format format = selection.getFormat(i);
+            max = Math.max(max, format.width * format.height);
+        }
+        return max;
+    }
+
+    private static PlaybackMetrics.Session session(boolean limited, int width, int height, long bytes) {
+        PlaybackMetrics.Session session = new PlaybackMetrics.Session("http://test/video.mp4", 0);
+        session.endRealtimeMs = 60_000;
+        session.videoSizeLimited = limited;
+        session.videoWidth = width;
+        session.videoHeight = height;
+        session.bytesLoaded = bytes;
+        return session;
+    }
+
+    private static Format videoFormat(String id, int width, int height, int bitrate) {
+        return new Format.Builder()
+                .setId(id)
+                .setSampleMimeType(MimeTypes.VIDEO_H264)
+                .setWidth(width)
+                .setHeight(height)
+                .setAverageBitrate(bitrate)
+                .setPeakBitrate(bitrate)
+                .build();
+    }
+
+    private static final class VideoRendererCapabilities implements RendererCapabilities {
+        @Override
+        public String getName() {
+            return "FakeVideoRenderer";
+        }
+
+        @Override
+        public int getTrackType() {
+            return C.TRACK_TYPE_VIDEO;
+        }
+
+        @Override
+        public int supportsFormat(Format format) {
+            return RendererCapabilities.create(FORMAT_HANDLED, ADAPTIVE_SEAMLESS, TUNNELING_NOT_SUPPORTED);
+        }
+
+        @Override
+        public int supportsMixedMimeTypeAdaptation() {
+            return ADAPTIVE_NOT_SUPPORTED;
+        }
+    }
+}